@@ -1,3 +1,8 @@
+import groovy.json.JsonGenerator
+import groovy.json.JsonParserType
+import groovy.json.JsonSlurper
+import java.io.DataOutputStream
+
 plugins {
   alias(libs.plugins.android.application)
   alias(libs.plugins.kotlin)
@@ -54,6 +59,11 @@ android {
 
   lint { abortOnError = false }
 
+  testOptions { unitTests.isReturnDefaultValues = true }
+
+  // The grammar bundle is memory-mapped, see packGrammars
+  androidResources { noCompress += "pack" }
+
   buildFeatures {
     viewBinding = true
     buildConfig = true
@@ -61,6 +71,102 @@ android {
   }
 }
 
+/**
+ * Packs the TextMate grammars and language configurations into a single asset, which is stored
+ * uncompressed so it can be memory-mapped at runtime.
+ *
+ * The bundle starts with a table of the files, each one with its asset path, offset and length,
+ * followed by the files. Every file starts at a page boundary of the bundle. JSON files are
+ * minified, dropping their whitespace and comments.
+ */
+abstract class PackGrammarsTask : DefaultTask() {
+
+  @get:InputDirectory
+  abstract val grammarsDirectory: DirectoryProperty
+
+  @get:OutputDirectory
+  abstract val outputDirectory: DirectoryProperty
+
+  @TaskAction
+  fun pack() {
+    val root = grammarsDirectory.get().asFile
+    val files = root.walkTopDown().filter { it.isFile }.sortedBy { it.path }.toList()
+    val paths = files.map {
+      "$ASSET_DIR/${it.relativeTo(root).invariantSeparatorsPath}".toByteArray(Charsets.UTF_8)
+    }
+
+    val sources = files.map { minify(it) }
+
+    val tableSize = 12 + paths.sumOf { 2 + it.size + 8 }
+    var end = tableSize
+    val offsets = sources.map { source ->
+      align(end).also { end = it + source.size }
+    }
+
+    val bundle = outputDirectory.get().file("$ASSET_DIR/$BUNDLE_NAME").asFile
+    bundle.parentFile.mkdirs()
+    DataOutputStream(bundle.outputStream().buffered()).use { output ->
+      output.writeInt(MAGIC)
+      output.writeInt(FORMAT_VERSION)
+      output.writeInt(files.size)
+      for (i in files.indices) {
+        output.writeShort(paths[i].size)
+        output.write(paths[i])
+        output.writeInt(offsets[i])
+        output.writeInt(sources[i].size)
+      }
+
+      var position = tableSize
+      for (i in files.indices) {
+        repeat(offsets[i] - position) { output.write(0) }
+        output.write(sources[i])
+        position = offsets[i] + sources[i].size
+      }
+    }
+  }
+
+  /** Minifies a JSON source, other sources and those that don't parse are kept as they are. */
+  private fun minify(file: File): ByteArray {
+    val source = file.readBytes()
+    if (file.extension != "json") return source
+
+    return try {
+      // The lax parser accepts the comments found in language configurations
+      val parser = JsonSlurper().setType(JsonParserType.LAX)
+      val json = parser.parseText(source.toString(Charsets.UTF_8))
+      jsonGenerator.toJson(json).toByteArray(Charsets.UTF_8)
+    } catch (e: Exception) {
+      logger.warn("Could not minify ${file.path}: ${e.message}")
+      source
+    }
+  }
+
+  private val jsonGenerator = JsonGenerator.Options().disableUnicodeEscaping().build()
+
+  private fun align(offset: Int) = (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE
+
+  companion object {
+    const val ASSET_DIR = "editor/textmate"
+    const val BUNDLE_NAME = "grammars.pack"
+    const val MAGIC = 0x56435350 // VCSP
+    const val FORMAT_VERSION = 1
+    const val PAGE_SIZE = 4096
+  }
+}
+
+val packGrammars = tasks.register<PackGrammarsTask>("packGrammars") {
+  grammarsDirectory.set(layout.projectDirectory.dir("src/main/textmate"))
+}
+
+androidComponents {
+  onVariants { variant ->
+    variant.sources.assets?.addGeneratedSourceDirectory(
+      packGrammars,
+      PackGrammarsTask::outputDirectory
+    )
+  }
+}
+
 dependencies {
   implementation(fileTree(mapOf("dir" to "libs", "include" to listOf("*.jar"))))
   implementation(libs.androidx.lifecycle.runtime.ktx)
@@ -80,6 +186,8 @@ dependencies {
 
   implementation(libs.konfetti.compose)
 
+  testImplementation(libs.test.junit)
+
   androidTestImplementation(platform(libs.androidx.compose.bom))
   androidTestImplementation(libs.androidx.ui.test.junit4)
 
@@ -45,6 +45,7 @@ import com.teixeira.vcspace.activities.base.BaseComposeActivity
 import com.teixeira.vcspace.app.noLocalProvidedFor
 import com.teixeira.vcspace.core.settings.Settings.File.rememberShowHiddenFiles
 import com.teixeira.vcspace.editor.events.OnContentChangeEvent
+import com.teixeira.vcspace.editor.events.OnEditsRestoredEvent
 import com.teixeira.vcspace.extensions.toFile
 import com.teixeira.vcspace.preferences.pluginsPath
 import com.teixeira.vcspace.ui.screens.editor.EditorScreen
@@ -84,6 +85,16 @@ class EditorActivity : BaseComposeActivity() {
     }
   }
 
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  fun onEditsRestoredEvent(e: OnEditsRestoredEvent) {
+    editorViewModel.setModified(e.file, true)
+  }
+
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+    editorViewModel.onTrimMemory(level)
+  }
+
   @Composable
   override fun MainScreen() {
     val fileExplorerViewModel: FileExplorerViewModel = viewModel()
@@ -3,18 +3,19 @@ package com.teixeira.vcspace.app
 import android.app.Activity
 import android.content.Intent
 import android.os.Bundle
+import com.blankj.utilcode.util.PathUtils
 import com.blankj.utilcode.util.ThreadUtils
 import com.blankj.utilcode.util.ThrowableUtils
 import com.downloader.PRDownloader
 import com.teixeira.vcspace.activities.CrashActivity
 import com.teixeira.vcspace.activities.EditorActivity
+import com.teixeira.vcspace.providers.GrammarPreloader
 import com.teixeira.vcspace.providers.GrammarProvider
+import com.teixeira.vcspace.providers.ThemeProvider
 import com.vcspace.plugins.internal.PluginManager
 import io.github.rosemoe.sora.langs.textmate.registry.FileProviderRegistry
-import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
-import io.github.rosemoe.sora.langs.textmate.registry.model.ThemeModel
 import io.github.rosemoe.sora.langs.textmate.registry.provider.AssetsFileResolver
-import org.eclipse.tm4e.core.registry.IThemeSource
+import java.io.File
 import java.util.concurrent.TimeUnit
 import kotlin.system.exitProcess
 
@@ -26,6 +27,8 @@ class VCSpaceApplication : BaseApplication() {
   companion object {
     @JvmStatic
     val instance by lazy { VCSpaceApplication() }
+
+    private const val USER_THEMES_DIR = "themes"
   }
 
   override fun onCreate() {
@@ -51,6 +54,7 @@ class VCSpaceApplication : BaseApplication() {
     PRDownloader.initialize(applicationContext)
     GrammarProvider.initialize(this)
     loadDefaultThemes()
+    GrammarPreloader.start(File(EditorActivity.LAST_OPENED_FILES_JSON_PATH))
 
     ThreadUtils.executeByIoWithDelay(object : ThreadUtils.Task<Unit>() {
       override fun doInBackground() {
@@ -73,23 +77,11 @@ class VCSpaceApplication : BaseApplication() {
 
   private fun loadDefaultThemes() {
     FileProviderRegistry.getInstance().dispose()
+    FileProviderRegistry.getInstance().addFileProvider(GrammarProvider.sourceResolver)
     FileProviderRegistry.getInstance().addFileProvider(AssetsFileResolver(assets))
 
-    val themes = arrayOf("darcula", "quietlight", "abyss", "solarized_drak")
-    val themeRegistry = ThemeRegistry.getInstance()
-    themes.forEach { name ->
-      val path = "editor/schemes/$name.json"
-      themeRegistry.loadTheme(
-        ThemeModel(
-          IThemeSource.fromInputStream(
-            FileProviderRegistry.getInstance().tryGetInputStream(path),
-            path,
-            null,
-          ),
-          name,
-        ).apply { isDark = name != "quietlight" }
-      )
-    }
+    // Themes are parsed when they are first used
+    ThemeProvider.initialize(this, File(PathUtils.getExternalAppFilesPath(), USER_THEMES_DIR))
   }
 
   private fun uncaughtException(thread: Thread, th: Throwable) {
@@ -0,0 +1,353 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.core.components.search
+
+import androidx.compose.foundation.clickable
+import androidx.compose.foundation.layout.Arrangement
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Row
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.layout.size
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.text.KeyboardActions
+import androidx.compose.foundation.text.KeyboardOptions
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.rounded.Close
+import androidx.compose.material.icons.rounded.Search
+import androidx.compose.material3.Button
+import androidx.compose.material3.FilterChip
+import androidx.compose.material3.Icon
+import androidx.compose.material3.IconButton
+import androidx.compose.material3.LinearProgressIndicator
+import androidx.compose.material3.MaterialTheme
+import androidx.compose.material3.OutlinedTextField
+import androidx.compose.material3.OutlinedButton
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateMapOf
+import androidx.compose.runtime.remember
+import androidx.compose.ui.Alignment
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.graphics.vector.ImageVector
+import androidx.compose.ui.res.stringResource
+import androidx.compose.ui.res.vectorResource
+import androidx.compose.ui.text.AnnotatedString
+import androidx.compose.ui.text.SpanStyle
+import androidx.compose.ui.text.buildAnnotatedString
+import androidx.compose.ui.text.font.FontFamily
+import androidx.compose.ui.text.font.FontWeight
+import androidx.compose.ui.text.input.ImeAction
+import androidx.compose.ui.text.style.TextDecoration
+import androidx.compose.ui.text.style.TextOverflow
+import androidx.compose.ui.unit.dp
+import androidx.lifecycle.compose.collectAsStateWithLifecycle
+import com.teixeira.vcspace.editor.search.WorkspaceSearch
+import com.teixeira.vcspace.providers.FileIconProvider
+import com.teixeira.vcspace.resources.R
+import com.teixeira.vcspace.ui.screens.editor.EditorViewModel
+import com.teixeira.vcspace.ui.screens.search.FindInFilesViewModel
+import java.io.File
+
+/**
+ * Searches the files under [root] and lists the matches grouped by file, as they are found. In
+ * replace mode the matches preview their replacement, which [onReplaceAll] then applies.
+ */
+@Composable
+fun FindInFilesPanel(
+  viewModel: FindInFilesViewModel,
+  editorViewModel: EditorViewModel,
+  root: File,
+  includeHidden: Boolean,
+  modifier: Modifier = Modifier,
+  onReplaceAll: () -> Unit,
+  onMatchClick: (File, WorkspaceSearch.Match) -> Unit
+) {
+  val uiState by viewModel.uiState.collectAsStateWithLifecycle()
+  val collapsedFiles = remember { mutableStateMapOf<String, Boolean>() }
+
+  fun search() {
+    collapsedFiles.clear()
+    viewModel.search(root, includeHidden, editorViewModel)
+  }
+
+  Column(modifier = modifier) {
+    OutlinedTextField(
+      value = uiState.query,
+      onValueChange = { viewModel.setQuery(it) },
+      singleLine = true,
+      isError = uiState.invalidQuery,
+      placeholder = { Text(stringResource(R.string.find_in_files_hint)) },
+      supportingText = if (uiState.invalidQuery) {
+        { Text(stringResource(R.string.editor_search_invalid_regex)) }
+      } else null,
+      trailingIcon = {
+        if (uiState.isSearching) {
+          IconButton(onClick = { viewModel.cancel() }) {
+            Icon(Icons.Rounded.Close, stringResource(R.string.find_in_files_stop))
+          }
+        } else {
+          IconButton(onClick = { search() }, enabled = uiState.query.isNotEmpty()) {
+            Icon(Icons.Rounded.Search, stringResource(R.string.editor_search))
+          }
+        }
+      },
+      keyboardOptions = KeyboardOptions(imeAction = ImeAction.Search),
+      keyboardActions = KeyboardActions(onSearch = { search() }),
+      modifier = Modifier
+        .fillMaxWidth()
+        .padding(horizontal = 8.dp)
+    )
+
+    Row(
+      horizontalArrangement = Arrangement.spacedBy(8.dp),
+      modifier = Modifier.padding(horizontal = 8.dp)
+    ) {
+      FilterChip(
+        selected = !uiState.ignoreCase,
+        onClick = { viewModel.setIgnoreCase(!uiState.ignoreCase) },
+        label = { Text(stringResource(R.string.find_in_files_match_case)) }
+      )
+      FilterChip(
+        selected = uiState.regex,
+        onClick = { viewModel.setRegex(!uiState.regex) },
+        label = { Text(stringResource(R.string.editor_search_option_use_regex)) }
+      )
+      FilterChip(
+        selected = uiState.replaceMode,
+        onClick = { viewModel.setReplaceMode(!uiState.replaceMode) },
+        label = { Text(stringResource(R.string.editor_search_replace)) }
+      )
+    }
+
+    if (uiState.replaceMode) {
+      OutlinedTextField(
+        value = uiState.replacement,
+        onValueChange = { viewModel.setReplacement(it) },
+        singleLine = true,
+        placeholder = { Text(stringResource(R.string.editor_search_replace_text)) },
+        keyboardOptions = KeyboardOptions(imeAction = ImeAction.Search),
+        keyboardActions = KeyboardActions(onSearch = { search() }),
+        modifier = Modifier
+          .fillMaxWidth()
+          .padding(horizontal = 8.dp)
+      )
+
+      Row(
+        horizontalArrangement = Arrangement.spacedBy(8.dp),
+        modifier = Modifier.padding(horizontal = 8.dp)
+      ) {
+        OutlinedButton(
+          onClick = { search() },
+          enabled = uiState.query.isNotEmpty() && !uiState.isReplacing
+        ) {
+          Text(stringResource(R.string.find_in_files_preview))
+        }
+        Button(onClick = onReplaceAll, enabled = uiState.canReplace) {
+          Text(stringResource(R.string.editor_search_replaceall))
+        }
+      }
+    }
+
+    if (uiState.isSearching || uiState.isReplacing) {
+      LinearProgressIndicator(modifier = Modifier.fillMaxWidth())
+    }
+
+    val summary = uiState.summary
+    val replaceSummary = uiState.replaceSummary
+    val status = when {
+      replaceSummary != null -> stringResource(
+        R.string.find_in_files_replaced,
+        replaceSummary.replacements,
+        replaceSummary.filesChanged,
+        replaceSummary.elapsedMillis,
+        replaceSummary.throughput / (1024 * 1024)
+      )
+
+      summary != null && summary.limitReached -> stringResource(
+        R.string.find_in_files_limit_reached,
+        summary.hits,
+        summary.filesMatched
+      )
+
+      summary != null -> stringResource(
+        R.string.find_in_files_summary,
+        summary.hits,
+        summary.filesMatched,
+        summary.filesSearched,
+        summary.elapsedMillis
+      )
+
+      uiState.isSearching -> stringResource(
+        R.string.find_in_files_searching,
+        uiState.hits,
+        uiState.results.size
+      )
+
+      else -> null
+    }
+    if (status != null) {
+      Text(
+        text = status,
+        style = MaterialTheme.typography.labelSmall,
+        color = MaterialTheme.colorScheme.onSurfaceVariant,
+        modifier = Modifier.padding(horizontal = 12.dp, vertical = 4.dp)
+      )
+    }
+    val incomplete = uiState.replaceMode && !uiState.isSearching && !uiState.isComplete &&
+      uiState.results.isNotEmpty()
+    if (incomplete) {
+      Text(
+        text = stringResource(R.string.find_in_files_replace_incomplete),
+        style = MaterialTheme.typography.labelSmall,
+        color = MaterialTheme.colorScheme.error,
+        modifier = Modifier.padding(horizontal = 12.dp, vertical = 4.dp)
+      )
+    }
+    if (replaceSummary != null && (replaceSummary.skipped + replaceSummary.failed).isNotEmpty()) {
+      Text(
+        text = stringResource(
+          R.string.find_in_files_replace_skipped,
+          replaceSummary.skipped.size,
+          replaceSummary.failed.size
+        ),
+        style = MaterialTheme.typography.labelSmall,
+        color = MaterialTheme.colorScheme.error,
+        modifier = Modifier.padding(horizontal = 12.dp, vertical = 4.dp)
+      )
+    }
+
+    LazyColumn(modifier = Modifier.weight(1f)) {
+      for (result in uiState.results) {
+        val path = result.file.path
+        val collapsed = collapsedFiles[path] == true
+
+        item(key = path) {
+          FileHeader(
+            file = result.file,
+            root = uiState.root,
+            count = result.matches.size,
+            onClick = { collapsedFiles[path] = !collapsed }
+          )
+        }
+
+        if (!collapsed) {
+          items(result.matches) { match ->
+            MatchItem(match = match, onClick = { onMatchClick(result.file, match) })
+          }
+        }
+      }
+    }
+  }
+}
+
+@Composable
+private fun FileHeader(file: File, root: File?, count: Int, onClick: () -> Unit) {
+  val parent = file.parentFile?.let { if (root != null) it.relativeTo(root).path else it.path }
+
+  Row(
+    verticalAlignment = Alignment.CenterVertically,
+    horizontalArrangement = Arrangement.spacedBy(6.dp),
+    modifier = Modifier
+      .fillMaxWidth()
+      .clickable(onClick = onClick)
+      .padding(horizontal = 8.dp, vertical = 6.dp)
+  ) {
+    Icon(
+      imageVector = ImageVector.vectorResource(FileIconProvider.findFileIconResource(file)),
+      contentDescription = null,
+      modifier = Modifier.size(18.dp)
+    )
+    Text(
+      text = file.name,
+      style = MaterialTheme.typography.bodyMedium,
+      fontWeight = FontWeight.Medium,
+      maxLines = 1
+    )
+    Text(
+      text = parent.orEmpty(),
+      style = MaterialTheme.typography.labelSmall,
+      color = MaterialTheme.colorScheme.onSurfaceVariant,
+      maxLines = 1,
+      overflow = TextOverflow.Ellipsis,
+      modifier = Modifier.weight(1f)
+    )
+    Text(text = count.toString(), style = MaterialTheme.typography.labelSmall)
+  }
+}
+
+@Composable
+private fun MatchItem(match: WorkspaceSearch.Match, onClick: () -> Unit) {
+  val highlight = SpanStyle(
+    background = MaterialTheme.colorScheme.tertiaryContainer,
+    color = MaterialTheme.colorScheme.onTertiaryContainer
+  )
+
+  Row(
+    modifier = Modifier
+      .fillMaxWidth()
+      .clickable(onClick = onClick)
+      .padding(start = 32.dp, end = 8.dp, top = 2.dp, bottom = 2.dp)
+  ) {
+    Text(
+      text = "${match.line + 1}",
+      style = MaterialTheme.typography.labelSmall,
+      color = MaterialTheme.colorScheme.onSurfaceVariant,
+      modifier = Modifier.padding(end = 8.dp)
+    )
+    Text(
+      text = previewOf(match, highlight),
+      style = MaterialTheme.typography.bodySmall,
+      fontFamily = FontFamily.Monospace,
+      maxLines = 1,
+      overflow = TextOverflow.Ellipsis
+    )
+  }
+}
+
+/**
+ * The line of the match, starting a bit before it so it stays visible, with it highlighted. If
+ * the match has a replacement it is shown struck through, followed by the replacement.
+ */
+private fun previewOf(match: WorkspaceSearch.Match, highlight: SpanStyle): AnnotatedString {
+  val preview = match.preview
+  val start = match.startColumn.coerceIn(0, preview.length)
+  val end = match.endColumn.coerceIn(start, preview.length)
+  val from = (start - PREVIEW_CONTEXT).coerceAtLeast(0)
+
+  return buildAnnotatedString {
+    if (from > 0) append('…')
+    append(preview.substring(from, start).trimStart())
+    val replacement = match.replacement
+    if (replacement != null) {
+      pushStyle(SpanStyle(textDecoration = TextDecoration.LineThrough))
+      append(preview.substring(start, end))
+      pop()
+      pushStyle(highlight)
+      append(replacement)
+      pop()
+    } else {
+      pushStyle(highlight)
+      append(preview.substring(start, end))
+      pop()
+    }
+    append(preview.substring(end))
+  }
+}
+
+private const val PREVIEW_CONTEXT = 24
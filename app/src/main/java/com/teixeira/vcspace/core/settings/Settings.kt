@@ -119,6 +119,9 @@ object Settings {
     private val USE_TAB = booleanPreferencesKey("use_tab")
     private val DELETE_LINE_ON_BACKSPACE = booleanPreferencesKey("delete_line_on_backspace")
     private val DELETE_INDENT_ON_BACKSPACE = booleanPreferencesKey("delete_indent_on_backspace")
+    private val LARGE_FILE_THRESHOLD = floatPreferencesKey("large_file_threshold_mb")
+    private val MEMORY_BUDGET = floatPreferencesKey("memory_budget_mb")
+    private val PROGRESSIVE_LINES = floatPreferencesKey("progressive_highlighting_lines")
 
     @Composable
     fun rememberFontSize() = rememberPreference(key = FONT_SIZE, defaultValue = 14f)
@@ -158,6 +161,27 @@ object Settings {
       key = DELETE_INDENT_ON_BACKSPACE,
       defaultValue = false
     )
+
+    /** Size in megabytes above which files are opened in the read-only large file viewer. */
+    @Composable
+    fun rememberLargeFileThreshold() = rememberPreference(
+      key = LARGE_FILE_THRESHOLD,
+      defaultValue = 50f
+    )
+
+    /**
+     * Lines above which files are highlighted progressively, starting from the visible lines.
+     * Files as large as that many average lines are too.
+     */
+    @Composable
+    fun rememberProgressiveLines() = rememberPreference(
+      key = PROGRESSIVE_LINES,
+      defaultValue = 20000f
+    )
+
+    /** Memory in megabytes the open editors may use before the least recently used are evicted. */
+    @Composable
+    fun rememberMemoryBudget() = rememberPreference(key = MEMORY_BUDGET, defaultValue = 64f)
   }
 
   object EditorTabs {
@@ -0,0 +1,136 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import android.content.res.AssetManager
+import android.util.Log
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * The TextMate grammars and language configurations, packed at build time into a single
+ * uncompressed asset by the `packGrammars` task.
+ *
+ * The JSON sources are minified when they are packed. The asset is memory-mapped once and each
+ * source is served as a slice of the mapping by [open]. Nothing is decompressed or copied, and no
+ * file descriptor is kept open.
+ */
+class GrammarBundle private constructor(
+  private val buffer: ByteBuffer,
+  private val entries: Map<String, Entry>
+) {
+
+  private class Entry(val offset: Int, val length: Int)
+
+  /** Opens the source at the asset [path], or returns null if it is not in the bundle. */
+  fun open(path: String): InputStream? {
+    val entry = entries[path] ?: return null
+    val slice = buffer.duplicate()
+    slice.limit(entry.offset + entry.length)
+    slice.position(entry.offset)
+    return ByteBufferInputStream(slice.slice())
+  }
+
+  private class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+
+    override fun read(): Int {
+      return if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+    }
+
+    override fun read(bytes: ByteArray, offset: Int, length: Int): Int {
+      if (length == 0) return 0
+      if (!buffer.hasRemaining()) return -1
+      val count = minOf(length, buffer.remaining())
+      buffer.get(bytes, offset, count)
+      return count
+    }
+
+    override fun skip(count: Long): Long {
+      val skipped = count.coerceIn(0, buffer.remaining().toLong()).toInt()
+      buffer.position(buffer.position() + skipped)
+      return skipped.toLong()
+    }
+
+    override fun available() = buffer.remaining()
+  }
+
+  companion object {
+    const val ASSET_PATH = "editor/textmate/grammars.pack"
+
+    private const val TAG = "GrammarBundle"
+
+    private const val MAGIC = 0x56435350 // VCSP
+    private const val FORMAT_VERSION = 1
+
+    /**
+     * Maps the bundle from the [assets], or reads it if the asset was compressed. Returns null if
+     * it is missing or invalid.
+     */
+    @JvmStatic
+    fun open(assets: AssetManager): GrammarBundle? {
+      return try {
+        val buffer = try {
+          map(assets)
+        } catch (e: FileNotFoundException) {
+          // openFd fails for compressed assets, see noCompress in the app build script
+          Log.w(TAG, "$ASSET_PATH is compressed, reading it into memory")
+          ByteBuffer.wrap(assets.open(ASSET_PATH).use { it.readBytes() })
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+          Log.e(TAG, "$ASSET_PATH has an unknown format")
+          return null
+        }
+
+        val count = buffer.getInt()
+        val entries = HashMap<String, Entry>(count * 2)
+        repeat(count) {
+          val path = ByteArray(buffer.getShort().toInt() and 0xFFFF).also { buffer.get(it) }
+          val offset = buffer.getInt()
+          val length = buffer.getInt()
+          if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            Log.e(TAG, "$ASSET_PATH is truncated")
+            return null
+          }
+          entries[String(path, Charsets.UTF_8)] = Entry(offset, length)
+        }
+        GrammarBundle(buffer, entries)
+      } catch (e: IOException) {
+        Log.e(TAG, "Could not open $ASSET_PATH", e)
+        null
+      } catch (e: BufferUnderflowException) {
+        Log.e(TAG, "$ASSET_PATH is truncated", e)
+        null
+      }
+    }
+
+    private fun map(assets: AssetManager): ByteBuffer {
+      return assets.openFd(ASSET_PATH).use { descriptor ->
+        FileInputStream(descriptor.fileDescriptor).channel.use { channel ->
+          channel.map(
+            FileChannel.MapMode.READ_ONLY,
+            descriptor.startOffset,
+            descriptor.declaredLength
+          )
+        }
+      }
+    }
+  }
+}
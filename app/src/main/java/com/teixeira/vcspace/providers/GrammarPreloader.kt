@@ -0,0 +1,66 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.teixeira.vcspace.models.FileHistory
+import java.io.File
+import java.io.IOException
+import kotlin.concurrent.thread
+import kotlinx.coroutines.runBlocking
+
+/**
+ * Registers the grammars that will most likely be needed on a low priority thread at startup, so
+ * the files reopened from the last session don't wait for their grammars to be loaded.
+ */
+object GrammarPreloader {
+
+  private const val MAX_PRELOADED = 6
+
+  /** Starts preloading, [lastOpenedFilesJson] is the list of files open in the last session. */
+  fun start(lastOpenedFilesJson: File) {
+    thread(name = "GrammarPreloader", priority = Thread.MIN_PRIORITY) {
+      val files = readLastOpenedFiles(lastOpenedFilesJson)
+      runBlocking {
+        for (grammar in GrammarProvider.preloadCandidates(files, MAX_PRELOADED)) {
+          try {
+            GrammarProvider.preloadGrammar(grammar)
+          } catch (e: Exception) {
+            // The grammar will be registered again when a file needs it
+            e.printStackTrace()
+          }
+        }
+      }
+    }
+  }
+
+  /** Reads the files of the last session that still exist. */
+  fun readLastOpenedFiles(lastOpenedFilesJson: File): List<File> {
+    if (!lastOpenedFilesJson.isFile) return emptyList()
+
+    return try {
+      val fileHistory = Gson().fromJson(lastOpenedFilesJson.readText(), FileHistory::class.java)
+      fileHistory?.lastOpenedFilesPath.orEmpty().map { File(it) }.filter { it.isFile }
+    } catch (e: IOException) {
+      e.printStackTrace()
+      emptyList()
+    } catch (e: JsonParseException) {
+      e.printStackTrace()
+      emptyList()
+    }
+  }
+}
@@ -16,12 +16,23 @@
 package com.teixeira.vcspace.providers
 
 import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import androidx.core.content.pm.PackageInfoCompat
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
+import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
 import io.github.rosemoe.sora.langs.textmate.registry.FileProviderRegistry
 import io.github.rosemoe.sora.langs.textmate.registry.GrammarRegistry
 import io.github.rosemoe.sora.langs.textmate.registry.model.DefaultGrammarDefinition
+import io.github.rosemoe.sora.langs.textmate.registry.provider.FileResolver
+import java.io.File
 import java.nio.charset.Charset
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import org.eclipse.tm4e.core.grammar.IGrammar
 import org.eclipse.tm4e.core.registry.IGrammarSource
 
 /**
@@ -31,12 +42,33 @@ import org.eclipse.tm4e.core.registry.IGrammarSource
  */
 object GrammarProvider {
 
+  private const val TAG = "GrammarProvider"
+  private const val GRAMMAR_USAGE_PREFS = "grammar_usage"
+  private const val FOREGROUND_WAIT_MS = 20L
+
   private val grammarRegistry = GrammarRegistry.getInstance()
   private var _grammars: List<GrammarModel> = mutableListOf()
+  private var detector = LanguageDetector(emptyList())
+  private var bundle: GrammarBundle? = null
+  private var usageHistory: SharedPreferences? = null
+
+  // The registry is not thread-safe, and the preloader gives way to the files being opened
+  private val registrationLock = Mutex()
+  private val foregroundRegistrations = AtomicInteger()
+
+  /**
+   * Resolves the grammar sources from the [GrammarBundle] once [initialize] is called, it has to
+   * be registered before the assets resolver.
+   */
+  val sourceResolver = FileResolver { path -> bundle?.open(path) }
 
   val grammars: List<GrammarModel>
     get() = _grammars
 
+  /** Identifies the installed grammars, it changes when the app or the grammar index changes. */
+  var grammarVersion = ""
+    private set
+
   fun initialize(context: Context) {
     if (_grammars.isNotEmpty()) {
       return
@@ -45,31 +77,100 @@ object GrammarProvider {
     val grammarsJson =
       context.assets.open("editor/textmate/grammars.json").bufferedReader().use { it.readText() }
     _grammars = Gson().fromJson(grammarsJson, object : TypeToken<List<GrammarModel>>() {})
+    detector = LanguageDetector(_grammars)
+    usageHistory = context.getSharedPreferences(GRAMMAR_USAGE_PREFS, Context.MODE_PRIVATE)
+
+    bundle = GrammarBundle.open(context.assets)
+    if (bundle == null) {
+      // The sources are only packed in the bundle, the files open without highlighting
+      Log.e(TAG, "No grammar bundle, syntax highlighting is disabled")
+    }
+
+    val packageInfo = context.packageManager.getPackageInfo(context.packageName, 0)
+    val versionCode = PackageInfoCompat.getLongVersionCode(packageInfo)
+    grammarVersion = "$versionCode.${packageInfo.lastUpdateTime}.${grammarsJson.hashCode()}"
+  }
+
+  /** Finds the scope of [file] with the [LanguageDetector], registering its grammar if needed. */
+  suspend fun findScopeForFile(file: File?): String? {
+    val grammar = file?.let { detector.detect(it) } ?: return null
+    recordUsage(grammar)
+    ensureRegistered(grammar)
+    return grammar.scopeName
+  }
+
+  /** Finds the grammar of [file], registering it if needed, without counting it as used. */
+  suspend fun findGrammarForFile(file: File): IGrammar? {
+    val grammar = detector.detect(file) ?: return null
+    return withRegistered(grammar) { grammarRegistry.findGrammar(grammar.scopeName) }
   }
 
   suspend fun findScopeByFileExtension(extension: String?): String? {
     val grammar = findGrammarByFileExtension(extension) ?: return null
-    if (grammarRegistry.findGrammar(grammar.scopeName) == null) {
-      registerGrammar(grammar)
-    }
+    ensureRegistered(grammar)
     return grammar.scopeName
   }
 
   suspend fun registerGrammarByFileExtension(extension: String?) {
     val grammar = findGrammarByFileExtension(extension) ?: return
-    registerGrammar(grammar)
+    ensureRegistered(grammar)
+  }
+
+  /**
+   * Grammars worth loading before they are needed, most likely first: those of the [files] that
+   * will be reopened, then the most used ones.
+   */
+  fun preloadCandidates(files: List<File>, limit: Int): List<GrammarModel> {
+    val reopened = files.mapNotNull { detector.detect(it) }
+    val mostUsed = usageHistory?.all.orEmpty().entries
+      .sortedByDescending { it.value as? Int ?: 0 }
+      .mapNotNull { findGrammarByScope(it.key) }
+    return (reopened + mostUsed).distinctBy { it.scopeName }.take(limit)
+  }
+
+  /**
+   * Registers a grammar and its embedded languages in the background. It waits for the grammars
+   * being registered to open a file, so preloading never delays them by more than one grammar.
+   */
+  suspend fun preloadGrammar(grammar: GrammarModel) {
+    while (foregroundRegistrations.get() > 0) delay(FOREGROUND_WAIT_MS)
+    registrationLock.withLock { registerGrammar(grammar) }
+  }
+
+  private suspend fun ensureRegistered(grammar: GrammarModel) {
+    withRegistered(grammar) {}
+  }
+
+  /** Registers [grammar] if needed and runs [block], both with the registry locked. */
+  private suspend fun <T> withRegistered(grammar: GrammarModel, block: () -> T): T {
+    foregroundRegistrations.incrementAndGet()
+    try {
+      return registrationLock.withLock {
+        registerGrammar(grammar)
+        block()
+      }
+    } finally {
+      foregroundRegistrations.decrementAndGet()
+    }
+  }
+
+  private fun recordUsage(grammar: GrammarModel) {
+    val usageHistory = usageHistory ?: return
+    val count = usageHistory.getInt(grammar.scopeName, 0)
+    usageHistory.edit().putInt(grammar.scopeName, count + 1).apply()
   }
 
   private suspend fun registerGrammar(grammar: GrammarModel) {
     if (grammarRegistry.findGrammar(grammar.scopeName) == null) {
       registerEmbeddedLanguagesGrammar(grammar)
 
+      val input = FileProviderRegistry.getInstance().tryGetInputStream(grammar.grammar)
+      if (input == null) {
+        Log.w(TAG, "Grammar source ${grammar.grammar} not found")
+        return
+      }
       val grammarSource =
-        IGrammarSource.fromInputStream(
-          FileProviderRegistry.getInstance().tryGetInputStream(grammar.grammar),
-          grammar.grammar,
-          Charset.defaultCharset(),
-        )
+        IGrammarSource.fromInputStream(input, grammar.grammar, Charset.defaultCharset())
 
       grammarRegistry.loadGrammar(
         DefaultGrammarDefinition.withLanguageConfiguration(
@@ -94,13 +195,27 @@ object GrammarProvider {
     }
   }
 
+  /**
+   * Creates a language for a document of the given scope, registering its grammar if needed. The
+   * grammar and language configuration are loaded once per scope and shared through the registry,
+   * only the analyzer state belongs to the new language.
+   */
+  suspend fun createLanguage(scopeName: String, autoComplete: Boolean = true): TextMateLanguage? {
+    val grammar = findGrammarByScope(scopeName) ?: return null
+    return withRegistered(grammar) {
+      // Not registered if its source is missing
+      if (grammarRegistry.findGrammar(scopeName) != null) {
+        TextMateLanguage.create(scopeName, grammarRegistry, autoComplete)
+      } else null
+    }
+  }
+
   fun findGrammarByFileExtension(extension: String?): GrammarModel? =
-    _grammars.find { it.fileExtensions?.contains(extension) ?: false }
+    detector.findByExtension(extension)
 
-  fun findGrammarByName(name: String): GrammarModel? = _grammars.find { it.name == name }
+  fun findGrammarByName(name: String): GrammarModel? = detector.findByName(name)
 
-  fun findGrammarByScope(scopeName: String): GrammarModel? =
-    _grammars.find { it.scopeName == scopeName }
+  fun findGrammarByScope(scopeName: String): GrammarModel? = detector.findByScope(scopeName)
 
   class GrammarModel(
     val name: String,
@@ -109,5 +224,7 @@ object GrammarProvider {
     val languageConfiguration: String? = null,
     val embeddedLanguages: Map<String, String>? = null,
     val fileExtensions: Array<String>? = null,
+    val fileNames: Array<String>? = null,
+    val firstLine: String? = null,
   )
 }
@@ -0,0 +1,122 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import com.teixeira.vcspace.providers.GrammarProvider.GrammarModel
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.regex.Pattern
+import java.util.regex.PatternSyntaxException
+
+/**
+ * Finds the grammar of a file, built once from the registered grammars.
+ *
+ * Files are matched by their exact name first, so names like `.bashrc` or `Jenkinsfile` work
+ * without an extension, then by extension, and finally by the first line of the file, which
+ * catches scripts with a shebang and documents like `<?xml`. Name, extension, scope and grammar
+ * name lookups are hash map lookups, only the first line matchers are tried in order.
+ *
+ * Results are cached by path and modification time.
+ */
+class LanguageDetector(grammars: List<GrammarModel>) {
+
+  private val byFileName = HashMap<String, GrammarModel>()
+  private val byExtension = HashMap<String, GrammarModel>()
+  private val byScope = HashMap<String, GrammarModel>()
+  private val byName = HashMap<String, GrammarModel>()
+  private val firstLineMatchers = mutableListOf<Pair<Pattern, GrammarModel>>()
+
+  private class CacheEntry(val lastModified: Long, val grammar: GrammarModel?)
+
+  private val cache = object : LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CacheEntry>?): Boolean {
+      return size > MAX_CACHED_FILES
+    }
+  }
+
+  init {
+    // The first grammar declaring a name or extension wins, like the previous linear search
+    for (grammar in grammars) {
+      grammar.fileNames?.forEach { byFileName.putIfAbsent(it, grammar) }
+      grammar.fileExtensions?.forEach { byExtension.putIfAbsent(it.lowercase(), grammar) }
+      byScope.putIfAbsent(grammar.scopeName, grammar)
+      byName.putIfAbsent(grammar.name, grammar)
+
+      val firstLine = grammar.firstLine ?: continue
+      try {
+        firstLineMatchers.add(Pattern.compile(firstLine) to grammar)
+      } catch (e: PatternSyntaxException) {
+        e.printStackTrace()
+      }
+    }
+  }
+
+  fun findByFileName(fileName: String): GrammarModel? = byFileName[fileName]
+
+  fun findByExtension(extension: String?): GrammarModel? {
+    return if (extension.isNullOrEmpty()) null else byExtension[extension.lowercase()]
+  }
+
+  fun findByScope(scopeName: String): GrammarModel? = byScope[scopeName]
+
+  fun findByName(name: String): GrammarModel? = byName[name]
+
+  fun findByFirstLine(firstLine: String): GrammarModel? {
+    return firstLineMatchers.firstOrNull { (pattern, _) -> pattern.matcher(firstLine).find() }
+      ?.second
+  }
+
+  /** Finds the grammar of [file], reading its first line only if the name doesn't tell. */
+  fun detect(file: File): GrammarModel? {
+    val lastModified = file.lastModified()
+    synchronized(cache) {
+      val entry = cache[file.path]
+      if (entry != null && entry.lastModified == lastModified) return entry.grammar
+    }
+
+    val grammar = findByFileName(file.name)
+      ?: findByExtension(file.extension)
+      ?: readFirstLine(file)?.let { findByFirstLine(it) }
+
+    synchronized(cache) {
+      cache[file.path] = CacheEntry(lastModified, grammar)
+    }
+    return grammar
+  }
+
+  private fun readFirstLine(file: File): String? {
+    if (firstLineMatchers.isEmpty() || !file.isFile) return null
+
+    return try {
+      val sample = ByteArray(FIRST_LINE_SAMPLE_SIZE)
+      val read = FileInputStream(file).use { it.read(sample) }
+      if (read <= 0) return null
+
+      var end = 0
+      while (end < read && sample[end] != '\n'.code.toByte()) end++
+      String(sample, 0, end, Charsets.UTF_8).removePrefix("\uFEFF").trimEnd('\r')
+    } catch (e: IOException) {
+      e.printStackTrace()
+      null
+    }
+  }
+
+  companion object {
+    private const val MAX_CACHED_FILES = 512
+    private const val FIRST_LINE_SAMPLE_SIZE = 256
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.content.res.AssetManager
+import android.os.SystemClock
+import android.util.Log
+import com.google.gson.JsonParseException
+import com.google.gson.JsonParser
+import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
+import io.github.rosemoe.sora.langs.textmate.registry.model.ThemeModel
+import java.io.ByteArrayInputStream
+import java.io.File
+import kotlin.concurrent.thread
+import org.eclipse.tm4e.core.registry.IThemeSource
+
+/**
+ * Provides the editor themes, bundled and from the user themes directory, to the [ThemeRegistry].
+ *
+ * Only the theme names are known at startup, a theme is parsed the first time it is set. The
+ * last used theme is parsed in the background while the app starts, so it is usually ready when
+ * the first editor needs it.
+ */
+object ThemeProvider {
+
+  private const val TAG = "ThemeProvider"
+  private const val THEME_PREFS = "themes"
+  private const val KEY_LAST_THEME = "last_theme"
+  private const val DEFAULT_THEME = "darcula"
+
+  private val BUNDLED_THEMES = arrayOf("darcula", "quietlight", "abyss", "solarized_drak")
+  private val LIGHT_THEMES = setOf("quietlight")
+
+  /**
+   * A theme that can be loaded.
+   *
+   * @param path Asset path of a bundled theme, or absolute path of a user theme.
+   */
+  private class ThemeEntry(val name: String, val path: String, val isBundled: Boolean) {
+    var model: ThemeModel? = null
+  }
+
+  private val themes = LinkedHashMap<String, ThemeEntry>()
+  private var assets: AssetManager? = null
+  private var preferences: SharedPreferences? = null
+
+  /** Names of the available themes. */
+  val themeNames: List<String>
+    get() = synchronized(themes) { themes.keys.toList() }
+
+  /**
+   * Indexes the bundled themes and the `.json` themes of [userThemesDir], which replace bundled
+   * themes with the same name, and starts loading the last used theme.
+   */
+  fun initialize(context: Context, userThemesDir: File) {
+    val startTime = SystemClock.uptimeMillis()
+    synchronized(themes) {
+      themes.clear()
+      for (name in BUNDLED_THEMES) {
+        themes[name] = ThemeEntry(name, "editor/schemes/$name.json", isBundled = true)
+      }
+      userThemesDir.listFiles { file -> file.isFile && file.extension == "json" }?.forEach {
+        themes[it.nameWithoutExtension] = ThemeEntry(it.nameWithoutExtension, it.path, false)
+      }
+    }
+    assets = context.assets
+    preferences = context.getSharedPreferences(THEME_PREFS, Context.MODE_PRIVATE)
+    Log.d(TAG, "Indexed ${themes.size} themes in ${SystemClock.uptimeMillis() - startTime} ms")
+
+    val lastTheme = preferences?.getString(KEY_LAST_THEME, null) ?: DEFAULT_THEME
+    thread(name = "ThemePreloader", priority = Thread.MIN_PRIORITY) {
+      val loadTime = SystemClock.uptimeMillis()
+      if (loadModel(lastTheme) != null) {
+        Log.d(TAG, "Loaded $lastTheme in ${SystemClock.uptimeMillis() - loadTime} ms")
+      }
+    }
+  }
+
+  /**
+   * Sets the current theme of the [ThemeRegistry], parsing it first if needed. This notifies the
+   * color schemes of the editors, so it must be called from the main thread.
+   *
+   * @return Whether the theme exists and could be loaded.
+   */
+  fun setTheme(name: String): Boolean {
+    val themeRegistry = ThemeRegistry.getInstance()
+    if (themeRegistry.currentThemeModel?.name == name) return true
+
+    val model = loadModel(name) ?: return false
+    return try {
+      if (!themeRegistry.setTheme(name)) {
+        themeRegistry.loadTheme(model, true)
+      }
+      preferences?.edit()?.putString(KEY_LAST_THEME, name)?.apply()
+      true
+    } catch (e: Exception) {
+      e.printStackTrace()
+      false
+    }
+  }
+
+  /** Sets the last used theme if there is no current theme yet, editors need one to be created. */
+  fun ensureCurrentTheme() {
+    if (ThemeRegistry.getInstance().currentThemeModel != null) return
+    val lastTheme = preferences?.getString(KEY_LAST_THEME, null) ?: DEFAULT_THEME
+    if (!setTheme(lastTheme)) setTheme(DEFAULT_THEME)
+  }
+
+  /** Parses the theme once, concurrent calls for the same theme wait for the first one. */
+  private fun loadModel(name: String): ThemeModel? {
+    val entry = synchronized(themes) { themes[name] } ?: return null
+
+    synchronized(entry) {
+      entry.model?.let { return it }
+
+      return try {
+        val bytes = if (entry.isBundled) {
+          val assets = assets ?: return null
+          assets.open(entry.path).use { it.readBytes() }
+        } else File(entry.path).readBytes()
+
+        ThemeModel(
+          IThemeSource.fromInputStream(ByteArrayInputStream(bytes), entry.path, null),
+          name
+        ).apply {
+          isDark = if (entry.isBundled) name !in LIGHT_THEMES else isDarkTheme(bytes)
+          load()
+        }.also { entry.model = it }
+      } catch (e: Exception) {
+        e.printStackTrace()
+        null
+      }
+    }
+  }
+
+  /** Reads the `type` of a VS Code theme, themes without one are considered dark. */
+  private fun isDarkTheme(source: ByteArray): Boolean {
+    return try {
+      val theme = JsonParser.parseString(String(source, Charsets.UTF_8)).asJsonObject
+      theme.get("type")?.asString != "light"
+    } catch (e: JsonParseException) {
+      true
+    } catch (e: IllegalStateException) {
+      true
+    }
+  }
+}
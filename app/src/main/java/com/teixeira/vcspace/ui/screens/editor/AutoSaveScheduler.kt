@@ -0,0 +1,96 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.editor
+
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Coalesces auto save requests per file.
+ *
+ * A save runs once the file has been idle for [idleTimeout] milliseconds, but never later than
+ * [maxLatency] milliseconds after the first pending request. Each new request replaces the pending
+ * save of the same file, and writes of the same file never run at the same time.
+ *
+ * Requests must be made from the main thread.
+ */
+class AutoSaveScheduler(
+  private val scope: CoroutineScope,
+  private val idleTimeout: Long = DEFAULT_IDLE_TIMEOUT,
+  private val maxLatency: Long = DEFAULT_MAX_LATENCY,
+  private val save: suspend (path: String) -> Unit
+) {
+
+  private class PendingSave(val firstRequestTime: Long, val job: Job)
+
+  private val pendingSaves = mutableMapOf<String, PendingSave>()
+  private val writeLocks = ConcurrentHashMap<String, Mutex>()
+
+  /** Schedules a save of the file at [path], superseding any pending save of it. */
+  fun request(path: String) {
+    val now = SystemClock.uptimeMillis()
+    val pending = pendingSaves.remove(path)
+    pending?.job?.cancel()
+
+    val firstRequestTime = pending?.firstRequestTime ?: now
+    val delayMillis = minOf(idleTimeout, maxLatency - (now - firstRequestTime)).coerceAtLeast(0)
+
+    val job = scope.launch {
+      delay(delayMillis)
+      // From now on this save can't be superseded, later requests will wait for it instead.
+      pendingSaves.remove(path)
+      runSave(path)
+    }
+    pendingSaves[path] = PendingSave(firstRequestTime, job)
+  }
+
+  /** Cancels any pending save of the file and saves it right away. */
+  suspend fun saveNow(path: String) {
+    pendingSaves.remove(path)?.job?.cancel()
+    runSave(path)
+  }
+
+  /** Cancels the pending save of the file at [path], if any. */
+  fun cancel(path: String) {
+    pendingSaves.remove(path)?.job?.cancel()
+  }
+
+  /** Cancels all pending saves. */
+  fun cancelAll() {
+    pendingSaves.values.forEach { it.job.cancel() }
+    pendingSaves.clear()
+  }
+
+  /** Runs [action] holding the write lock of the file at [path], can be called from any thread. */
+  suspend fun <T> withWriteLock(path: String, action: suspend () -> T): T {
+    return writeLocks.getOrPut(path) { Mutex() }.withLock { action() }
+  }
+
+  private suspend fun runSave(path: String) {
+    withWriteLock(path) { save(path) }
+  }
+
+  companion object {
+    const val DEFAULT_IDLE_TIMEOUT = 500L
+    const val DEFAULT_MAX_LATENCY = 2000L
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.editor
+
+import com.teixeira.vcspace.ui.screens.editor.components.view.CodeEditorView
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * Keeps the live editors within a memory budget.
+ *
+ * Editors are tracked in least recently used order. When the estimated size of all of them
+ * exceeds the budget, the least recently used ones are evicted: their cursor, scroll position and
+ * undo history are written to [stateDir] in the background and the view is released. The editor
+ * of the selected file, editors with unsaved changes and editors still loading are never evicted.
+ *
+ * All the methods must be called from the main thread.
+ */
+class EditorPool(
+  private val scope: CoroutineScope,
+  private val stateDir: File,
+  private val budgetBytes: () -> Long
+) {
+
+  private val usage = LinkedHashSet<String>()
+
+  /** Evicted editors, with the job writing their state. */
+  private val evicted = mutableMapOf<String, Job>()
+
+  /** Paths of the editors, live or evicted, from the most recently used. */
+  fun recentlyUsed(): List<String> = usage.toList().asReversed()
+
+  /** Marks the editor of [path] as the most recently used. */
+  fun onEditorUsed(path: String) {
+    usage.remove(path)
+    usage.add(path)
+  }
+
+  /**
+   * Evicts the least recently used editors until the others fit in the budget.
+   *
+   * @param editors The live editors by path, evicted ones are removed from it.
+   * @param activePath Path of the selected file, which is never evicted.
+   * @return Paths of the evicted editors.
+   */
+  fun trim(editors: MutableMap<String, CodeEditorView>, activePath: String?): List<String> {
+    val sizes = editors.mapValues { (_, editorView) -> editorView.estimatedBytes }
+    var total = sizes.values.sum()
+    val budget = budgetBytes()
+
+    val evictedPaths = mutableListOf<String>()
+    val candidates = usage.filter { it in editors } + editors.keys.filter { it !in usage }
+    for (path in candidates) {
+      if (total <= budget) break
+      if (path == activePath) continue
+
+      val editorView = editors[path] ?: continue
+      if (editorView.modified || editorView.isLoadingContent) continue
+
+      val state = editorView.saveState()
+      editors.remove(path)
+      editorView.release()
+      evicted[path] = scope.launch(Dispatchers.IO) { writeState(path, state) }
+      evictedPaths.add(path)
+      total -= sizes[path] ?: 0
+    }
+
+    return evictedPaths
+  }
+
+  /** Restores the state the editor of [path] had when it was evicted, if it was. */
+  fun rehydrate(path: String, editorView: CodeEditorView) {
+    val writeJob = evicted.remove(path) ?: return
+
+    scope.launch(Dispatchers.IO) {
+      writeJob.join()
+      val file = stateFile(path)
+      val state = readState(file)
+      file.delete()
+
+      if (state != null) {
+        withContext(Dispatchers.Main) { editorView.restoreState(state) }
+      }
+    }
+  }
+
+  /** Forgets the editor of [path], when its file is closed. */
+  fun remove(path: String) {
+    usage.remove(path)
+
+    val writeJob = evicted.remove(path) ?: return
+    scope.launch(Dispatchers.IO) {
+      writeJob.join()
+      stateFile(path).delete()
+    }
+  }
+
+  fun clear() {
+    val writeJobs = evicted.values.toList()
+    usage.clear()
+    evicted.clear()
+
+    scope.launch(Dispatchers.IO) {
+      writeJobs.forEach { it.join() }
+      stateDir.listFiles()?.forEach { it.delete() }
+    }
+  }
+
+  private fun stateFile(path: String): File {
+    return File(stateDir, "${path.hashCode().toUInt()}_${File(path).name}.state")
+  }
+
+  private fun writeState(path: String, state: CodeEditorView.SavedState) {
+    try {
+      stateDir.mkdirs()
+      DataOutputStream(stateFile(path).outputStream().buffered()).use { output ->
+        output.writeInt(STATE_VERSION)
+        output.writeLong(state.lastModified)
+        output.writeInt(state.textLength)
+        output.writeInt(state.cursorLine)
+        output.writeInt(state.cursorColumn)
+        output.writeInt(state.scrollX)
+        output.writeInt(state.scrollY)
+
+        val undoManager = state.undoManager
+        output.writeInt(undoManager?.size ?: -1)
+        undoManager?.let { output.write(it) }
+      }
+    } catch (e: IOException) {
+      // The editor is reloaded without its state
+      e.printStackTrace()
+    }
+  }
+
+  private fun readState(file: File): CodeEditorView.SavedState? {
+    if (!file.exists()) return null
+
+    return try {
+      DataInputStream(file.inputStream().buffered()).use { input ->
+        if (input.readInt() != STATE_VERSION) return null
+
+        CodeEditorView.SavedState(
+          lastModified = input.readLong(),
+          textLength = input.readInt(),
+          cursorLine = input.readInt(),
+          cursorColumn = input.readInt(),
+          scrollX = input.readInt(),
+          scrollY = input.readInt(),
+          undoManager = input.readInt().takeIf { it >= 0 }?.let { size ->
+            ByteArray(size).also { input.readFully(it) }
+          }
+        )
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+      null
+    }
+  }
+
+  companion object {
+    private const val STATE_VERSION = 1
+  }
+}
@@ -21,8 +21,11 @@ import androidx.compose.foundation.layout.Arrangement
 import androidx.compose.foundation.layout.Column
 import androidx.compose.foundation.layout.Spacer
 import androidx.compose.foundation.layout.fillMaxSize
+import androidx.compose.foundation.layout.fillMaxWidth
 import androidx.compose.foundation.layout.height
+import androidx.compose.foundation.layout.padding
 import androidx.compose.material3.ElevatedButton
+import androidx.compose.material3.LinearProgressIndicator
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
@@ -35,6 +38,8 @@ import androidx.compose.runtime.rememberCoroutineScope
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.platform.LocalContext
+import androidx.compose.ui.res.stringResource
+import androidx.compose.ui.text.style.TextAlign
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.viewinterop.AndroidView
 import androidx.core.content.res.ResourcesCompat
@@ -49,6 +54,9 @@ import com.teixeira.vcspace.core.settings.Settings.Editor.rememberFontFamily
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberFontLigatures
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberFontSize
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberIndentSize
+import com.teixeira.vcspace.core.settings.Settings.Editor.rememberLargeFileThreshold
+import com.teixeira.vcspace.core.settings.Settings.Editor.rememberMemoryBudget
+import com.teixeira.vcspace.core.settings.Settings.Editor.rememberProgressiveLines
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberLineNumber
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberStickyScroll
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberUseTab
@@ -60,11 +68,13 @@ import com.teixeira.vcspace.core.settings.Settings.General.rememberIsDarkMode
 import com.teixeira.vcspace.core.settings.Settings.General.rememberIsDynamicColor
 import com.teixeira.vcspace.editor.VCSpaceEditor
 import com.teixeira.vcspace.resources.R
+import com.teixeira.vcspace.ui.screens.editor.components.LargeFileViewer
 import com.teixeira.vcspace.ui.screens.file.FileExplorerViewModel
 import com.teixeira.vcspace.ui.theme.atLeastS
-import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
-import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
 import kotlinx.coroutines.launch
+import java.io.File
+import java.io.IOException
+import kotlin.math.roundToInt
 
 @Composable
 fun EditorScreen(
@@ -85,6 +95,9 @@ fun EditorScreen(
   val openLastFiles by rememberLastOpenedFile()
   val showHiddenFiles by rememberShowHiddenFiles()
   val isDynamicColor by rememberIsDynamicColor()
+  val largeFileThreshold by rememberLargeFileThreshold()
+  val memoryBudget by rememberMemoryBudget()
+  val progressiveLines by rememberProgressiveLines()
 
   DisposableEffect(openLastFiles) {
     if (openLastFiles) {
@@ -99,6 +112,16 @@ fun EditorScreen(
     }
   }
 
+  configureColorScheme(viewModel)
+
+  LaunchedEffect(memoryBudget) {
+    viewModel.setMemoryBudget(memoryBudget)
+  }
+
+  LaunchedEffect(progressiveLines) {
+    viewModel.setProgressiveLines(progressiveLines.roundToInt())
+  }
+
   val context = LocalContext.current
 
   Column(modifier = modifier) {
@@ -110,7 +133,35 @@ fun EditorScreen(
     val openedFile = openedFiles.getOrNull(selectedFileIndex)
 
     openedFile?.let { fileEntry ->
+      LaunchedEffect(fileEntry.file.path, largeFileThreshold) {
+        viewModel.resolveOpenMode(fileEntry.file, largeFileThreshold)
+      }
+
+      when (val openMode = viewModel.openModes[fileEntry.file.path]) {
+        EditorViewModel.OpenMode.Editor -> Unit
+
+        is EditorViewModel.OpenMode.LargeFile -> {
+          key(fileEntry.file.path) {
+            LargeFileViewer(mappedFile = openMode.mappedFile)
+          }
+          return@let
+        }
+
+        is EditorViewModel.OpenMode.Failed -> {
+          FileOpenFailed(fileEntry.file, openMode.error)
+          return@let
+        }
+
+        null -> {
+          LinearProgressIndicator(modifier = Modifier.fillMaxWidth())
+          return@let
+        }
+      }
+
       val editorView = viewModel.getEditorForFile(context, fileEntry.file)
+      LaunchedEffect(fileEntry.file.path) {
+        viewModel.onEditorShown(fileEntry.file.path)
+      }
 
       key(editorConfigMap[fileEntry.file.path]) {
         configureEditor(editorView.editor)
@@ -157,10 +208,30 @@ fun NoOpenedFiles() {
   }
 }
 
+@Composable
+private fun FileOpenFailed(file: File, error: IOException) {
+  Column(
+    modifier = Modifier
+      .fillMaxSize()
+      .padding(16.dp),
+    horizontalAlignment = Alignment.CenterHorizontally,
+    verticalArrangement = Arrangement.Center
+  ) {
+    Text(
+      text = stringResource(
+        R.string.file_read_failed,
+        file.name,
+        error.localizedMessage ?: error.javaClass.simpleName
+      ),
+      style = MaterialTheme.typography.bodyLarge,
+      textAlign = TextAlign.Center
+    )
+  }
+}
+
 @Composable
 private fun configureEditor(editor: VCSpaceEditor) {
   configureFontSettings(editor)
-  configureColorScheme(editor)
   configureIndentation(editor)
   configureMiscSettings(editor)
 }
@@ -190,7 +261,7 @@ private fun configureFontSettings(editor: VCSpaceEditor) {
 }
 
 @Composable
-private fun configureColorScheme(editor: VCSpaceEditor) {
+private fun configureColorScheme(viewModel: EditorViewModel) {
   val colorScheme by rememberColorScheme()
   val isDarkTheme = isSystemInDarkTheme()
 
@@ -199,21 +270,18 @@ private fun configureColorScheme(editor: VCSpaceEditor) {
 
   val context = LocalContext.current
 
+  // Applied once for all the editors, switching the theme recolors them in place
   LaunchedEffect(colorScheme, isDarkTheme, followSystemTheme, isDarkMode) {
-    editor.apply {
-      ThemeRegistry.getInstance().setTheme(
-        when (colorScheme) {
-          context.getString(R.string.pref_editor_colorscheme_value_followui) -> if ((followSystemTheme && isDarkTheme) || isDarkMode) "darcula" else "quietlight"
-          "Quietlight" -> "quietlight"
-          "Darcula" -> "darcula"
-          "Abyss" -> "abyss"
-          "Solarized Dark" -> "solarized_drak"
-          else -> if ((followSystemTheme && isDarkTheme) || isDarkMode) "darcula" else "quietlight"
-        }
-      ).also {
-        setText(text.toString()) // Required to update colors correctly
+    viewModel.applyTheme(
+      when (colorScheme) {
+        context.getString(R.string.pref_editor_colorscheme_value_followui) -> if ((followSystemTheme && isDarkTheme) || isDarkMode) "darcula" else "quietlight"
+        "Quietlight" -> "quietlight"
+        "Darcula" -> "darcula"
+        "Abyss" -> "abyss"
+        "Solarized Dark" -> "solarized_drak"
+        else -> if ((followSystemTheme && isDarkTheme) || isDarkMode) "darcula" else "quietlight"
       }
-    }
+    )
   }
 }
 
@@ -224,8 +292,8 @@ private fun configureIndentation(editor: VCSpaceEditor) {
 
   LaunchedEffect(indentSize, useTab) {
     editor.apply {
-      (editorLanguage as? TextMateLanguage)?.tabSize = indentSize
-      (editorLanguage as? TextMateLanguage)?.useTab(useTab)
+      textMateLanguage?.tabSize = indentSize
+      textMateLanguage?.useTab(useTab)
       tabWidth = indentSize
     }
   }
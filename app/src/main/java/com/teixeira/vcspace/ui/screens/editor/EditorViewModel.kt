@@ -15,22 +15,35 @@
 
 package com.teixeira.vcspace.ui.screens.editor
 
+import android.content.ComponentCallbacks2
 import android.content.Context
 import androidx.compose.runtime.mutableStateMapOf
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import com.blankj.utilcode.util.FileUtils
+import com.blankj.utilcode.util.PathUtils
 import com.google.gson.Gson
+import com.teixeira.vcspace.editor.io.MappedTextFile
+import com.teixeira.vcspace.editor.io.TextFormatDetector
+import com.teixeira.vcspace.editor.io.UnencodableTextException
 import com.teixeira.vcspace.extensions.toFile
 import com.teixeira.vcspace.models.FileHistory
+import com.teixeira.vcspace.providers.ThemeProvider
 import com.teixeira.vcspace.activities.EditorActivity.Companion.LAST_OPENED_FILES_JSON_PATH
 import com.teixeira.vcspace.ui.screens.editor.components.view.CodeEditorView
+import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
 
 class EditorViewModel : ViewModel() {
   data class OpenedFile(
@@ -38,6 +51,27 @@ class EditorViewModel : ViewModel() {
     val isModified: Boolean = false
   )
 
+  /**
+   * Result of saving a file.
+   *
+   * @param error The error thrown while writing the file, if any.
+   */
+  data class SaveResult(
+    val file: File,
+    val isSuccess: Boolean,
+    val error: Throwable? = null
+  )
+
+  /** How an opened file is shown, see [resolveOpenMode]. */
+  sealed interface OpenMode {
+    data object Editor : OpenMode
+
+    /** Mapped in the read-only large file viewer. */
+    class LargeFile(val mappedFile: MappedTextFile) : OpenMode
+
+    class Failed(val error: IOException) : OpenMode
+  }
+
   data class UiState(
     val openedFiles: List<OpenedFile> = emptyList(),
     val selectedFileIndex: Int = 0
@@ -51,9 +85,38 @@ class EditorViewModel : ViewModel() {
   private val _editors = mutableStateMapOf<String, CodeEditorView>()
   val editors get() = _editors
 
+  private val _openModes = mutableStateMapOf<String, OpenMode>()
+  val openModes get() = _openModes
+  private val resolvingPaths = mutableSetOf<String>()
+
   private val _editorConfigMap = mutableStateMapOf<String, Boolean>()
   val editorConfigMap get() = _editorConfigMap
 
+  private val autoSaveScheduler = AutoSaveScheduler(viewModelScope) { path -> writeFile(path) }
+
+  private val openFilesWatcher = OpenFilesWatcher { file ->
+    _editors[file.path]?.onExternalChange { setModified(file, false) }
+  }
+
+  /** Memory in megabytes the live editors may use, from the editor settings. */
+  private var memoryBudget = DEFAULT_MEMORY_BUDGET
+
+  private val editorPool = EditorPool(
+    viewModelScope,
+    File(PathUtils.getInternalAppCachePath(), EDITOR_STATE_DIR)
+  ) { (memoryBudget * 1024 * 1024).toLong() }
+
+  /** Lines above which files are highlighted progressively, from the editor settings. */
+  private var progressiveLines = CodeEditorView.DEFAULT_PROGRESSIVE_LINES
+
+  private val tabPrewarmer = TabPrewarmer(viewModelScope) { progressiveLines }
+
+  /** Selections requested by [openFileAt] for editors that were not created yet. */
+  private val pendingSelections = mutableMapOf<String, (CodeEditorView) -> Unit>()
+
+  @OptIn(ExperimentalCoroutinesApi::class)
+  private val saveAllDispatcher = Dispatchers.IO.limitedParallelism(SAVE_ALL_PARALLELISM)
+
   fun setEditorConfiguredForFile(file: File) {
     _editorConfigMap[file.path] = true
   }
@@ -62,8 +125,86 @@ class EditorViewModel : ViewModel() {
     context: Context,
     file: File
   ): CodeEditorView {
-    return _editors.getOrPut(file.path) {
-      CodeEditorView(context, file)
+    val editorView = _editors.getOrPut(file.path) {
+      openFilesWatcher.watch(file)
+      CodeEditorView(context, file, tabPrewarmer.take(file), progressiveLines).also {
+        editorPool.rehydrate(file.path, it)
+      }
+    }
+    editorPool.onEditorUsed(file.path)
+    pendingSelections.remove(file.path)?.invoke(editorView)
+    return editorView
+  }
+
+  /**
+   * Called once the editor of [path] is shown, after composition. Evicts the editors over the
+   * memory budget and prepares the tabs likely to be opened next.
+   */
+  fun onEditorShown(path: String) {
+    _editors[path]?.onShown()
+    trimEditors(path)
+    prewarmTabs(path)
+  }
+
+  /** Prepares the tabs next to the selected one and the most recently used ones. */
+  private fun prewarmTabs(activePath: String) {
+    val openedFiles = uiState.value.openedFiles.map { it.file }
+    val index = openedFiles.indexOfFirst { it.path == activePath }
+    if (index < 0) return
+
+    val adjacent = listOfNotNull(openedFiles.getOrNull(index + 1), openedFiles.getOrNull(index - 1))
+    val recent = editorPool.recentlyUsed().mapNotNull { path ->
+      openedFiles.find { it.path == path }
+    }
+    tabPrewarmer.prewarm(
+      (adjacent + recent).filter { file ->
+        !_editors.containsKey(file.path) && _openModes[file.path] !is OpenMode.LargeFile
+      }
+    )
+  }
+
+  /** Releases memory that can be rebuilt, see [ComponentCallbacks2.onTrimMemory]. */
+  fun onTrimMemory(level: Int) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      tabPrewarmer.cancel()
+    }
+  }
+
+  /**
+   * Switches the editor theme, recoloring the open editors in place without touching their text
+   * or undo history. Only the shown editor is recolored right away, the others when they are
+   * shown. Does nothing if [themeName] is already the current theme.
+   */
+  fun applyTheme(themeName: String) {
+    if (ThemeRegistry.getInstance().currentThemeModel?.name == themeName) return
+
+    if (ThemeProvider.setTheme(themeName)) {
+      val shownPath = uiState.value.selectedFile?.file?.path
+      _editors.forEach { (path, editorView) -> editorView.onThemeChanged(path == shownPath) }
+    }
+  }
+
+  /** Sets the lines above which the files opened from now on are highlighted progressively. */
+  fun setProgressiveLines(lines: Int) {
+    if (lines == progressiveLines) return
+    progressiveLines = lines
+    // Prepared with the previous limit
+    tabPrewarmer.cancel()
+  }
+
+  /** Sets the memory budget of the live editors, evicting those over it. */
+  fun setMemoryBudget(megabytes: Float) {
+    if (megabytes == memoryBudget) return
+    memoryBudget = megabytes
+    uiState.value.selectedFile?.let { trimEditors(it.file.path) }
+  }
+
+  private fun trimEditors(activePath: String) {
+    editorPool.trim(_editors, activePath).forEach { path ->
+      // The reloaded editor has to be configured again
+      _editorConfigMap[path] = false
+      autoSaveScheduler.cancel(path)
+      openFilesWatcher.unwatch(File(path))
     }
   }
 
@@ -71,6 +212,43 @@ class EditorViewModel : ViewModel() {
     return _editors[file.path]
   }
 
+  /**
+   * Decides in the background whether [file] is opened in the editor or mapped in the read-only
+   * large file viewer, and keeps the result in [openModes].
+   *
+   * @param thresholdMb Size in megabytes above which a file is considered large.
+   */
+  fun resolveOpenMode(file: File, thresholdMb: Float) {
+    val path = file.path
+    // Files already open keep their mode
+    if (_editors.containsKey(path)) {
+      _openModes[path] = OpenMode.Editor
+      return
+    }
+    if (_openModes[path] is OpenMode.LargeFile || !resolvingPaths.add(path)) return
+
+    viewModelScope.launch {
+      val mode = withContext(Dispatchers.IO) {
+        if (file.length() < thresholdMb * 1024L * 1024L) return@withContext OpenMode.Editor
+        try {
+          val format = TextFormatDetector.detect(file)
+          // The viewer splits lines on single bytes, other charsets are shown as UTF-8
+          val charset = if (format.isAsciiCompatible) format.charset else Charsets.UTF_8
+          OpenMode.LargeFile(MappedTextFile.open(file, charset))
+        } catch (e: IOException) {
+          e.printStackTrace()
+          OpenMode.Failed(e)
+        }
+      }
+      resolvingPaths.remove(path)
+
+      if (uiState.value.openedFiles.none { it.file.path == path }) {
+        // Closed while it was being opened
+        (mode as? OpenMode.LargeFile)?.mappedFile?.close()
+      } else _openModes[path] = mode
+    }
+  }
+
   fun getSelectedEditor(): CodeEditorView? {
     return _editors[uiState.value.openedFiles[uiState.value.selectedFileIndex].file.path]
   }
@@ -109,15 +287,75 @@ class EditorViewModel : ViewModel() {
   }
 
   suspend fun saveFile(editorView: CodeEditorView? = null) {
-    editorView?.saveFile() ?: getSelectedEditor()?.saveFile()
-    (editorView?.file ?: getSelectedEditor()?.file)?.let { setModified(it, false) }
+    val file = (editorView ?: getSelectedEditor())?.file ?: return
+    autoSaveScheduler.saveNow(file.path)
   }
 
-  suspend fun saveAll() {
-    editors.values.forEach {
-      it.saveFile()
-      it.file?.let { file -> setModified(file, false) }
+  /** Schedules an auto save of the file, coalescing it with other pending saves of the same file. */
+  fun requestAutoSave(file: File) {
+    autoSaveScheduler.request(file.path)
+  }
+
+  private suspend fun writeFile(path: String) {
+    val editorView = _editors[path] ?: return
+    val file = editorView.file ?: return
+    editorView.saveFile(onConverted = { saveConverted(editorView) })
+    setModified(file, editorView.modified)
+  }
+
+  /** Saves the editor again after its charset was switched to UTF-8. */
+  private fun saveConverted(editorView: CodeEditorView) {
+    viewModelScope.launch { saveFile(editorView) }
+  }
+
+  /**
+   * Saves all modified editors. Their text is copied on the calling (main) thread and then the
+   * files are written in parallel, a few at a time.
+   *
+   * @return The result of each saved file.
+   */
+  suspend fun saveAll(): List<SaveResult> {
+    val snapshots = _editors.values
+      .filter { it.modified }
+      .mapNotNull { editorView -> editorView.createSnapshot()?.let { editorView to it } }
+    if (snapshots.isEmpty()) return emptyList()
+
+    snapshots.forEach { (_, snapshot) -> autoSaveScheduler.cancel(snapshot.file.path) }
+
+    val results = coroutineScope {
+      snapshots.map { (editorView, snapshot) ->
+        async(saveAllDispatcher) {
+          autoSaveScheduler.withWriteLock(snapshot.file.path) {
+            try {
+              SaveResult(snapshot.file, editorView.writeSnapshot(snapshot))
+            } catch (e: IOException) {
+              SaveResult(snapshot.file, false, e)
+            }
+          }
+        }
+      }.awaitAll()
     }
+
+    snapshots.forEachIndexed { index, (editorView, snapshot) ->
+      val result = results[index]
+      if (result.isSuccess) editorView.onSnapshotSaved(snapshot)
+      if (result.error is UnencodableTextException) {
+        editorView.confirmSaveAsUtf8(result.error) { saveConverted(editorView) }
+      }
+    }
+
+    val modifiedFiles = snapshots.associate { (editorView, snapshot) ->
+      snapshot.file to editorView.modified
+    }
+    _uiState.update { currentState ->
+      val updatedFiles = currentState.openedFiles.map { openedFile ->
+        val modified = modifiedFiles[openedFile.file] ?: return@map openedFile
+        openedFile.copy(isModified = modified)
+      }
+      currentState.copy(openedFiles = updatedFiles)
+    }
+
+    return results
   }
 
   fun addFile(file: File) {
@@ -134,6 +372,17 @@ class EditorViewModel : ViewModel() {
     )
   }
 
+  /** Opens [file] and selects a range of [line], as soon as its editor is created. */
+  fun openFileAt(file: File, line: Int, startColumn: Int, endColumn: Int) {
+    addFile(file)
+    val editor = _editors[file.path]
+    if (editor != null) {
+      editor.selectRange(line, startColumn, endColumn)
+    } else {
+      pendingSelections[file.path] = { it.selectRange(line, startColumn, endColumn) }
+    }
+  }
+
   fun addFiles(vararg files: File) {
     viewModelScope.launch {
       files.forEach { addFile(it) }
@@ -156,6 +405,7 @@ class EditorViewModel : ViewModel() {
     }
 
     _editorConfigMap[closingFilePath] = false
+    autoSaveScheduler.cancel(closingFilePath)
 
     _uiState.value = uiState.value.copy(
       openedFiles = newOpenedFiles,
@@ -163,6 +413,10 @@ class EditorViewModel : ViewModel() {
     )
 
     _editors.remove(closingFilePath)?.release()
+    editorPool.remove(closingFilePath)
+    tabPrewarmer.drop(closingFilePath)
+    openFilesWatcher.unwatch(File(closingFilePath))
+    (_openModes.remove(closingFilePath) as? OpenMode.LargeFile)?.mappedFile?.close()
   }
 
   fun closeOthers(index: Int) {
@@ -177,10 +431,29 @@ class EditorViewModel : ViewModel() {
 
   fun closeAll() {
     _editorConfigMap.clear()
+    autoSaveScheduler.cancelAll()
 
     _uiState.value = uiState.value.copy(openedFiles = emptyList())
 
     _editors.values.forEach { it.release() }
     _editors.clear()
+    editorPool.clear()
+    tabPrewarmer.cancel()
+    openFilesWatcher.unwatchAll()
+
+    _openModes.values.forEach { (it as? OpenMode.LargeFile)?.mappedFile?.close() }
+    _openModes.clear()
+  }
+
+  override fun onCleared() {
+    openFilesWatcher.unwatchAll()
+    autoSaveScheduler.cancelAll()
+    tabPrewarmer.cancel()
+  }
+
+  companion object {
+    private const val SAVE_ALL_PARALLELISM = 4
+    private const val EDITOR_STATE_DIR = "editor-state"
+    private const val DEFAULT_MEMORY_BUDGET = 64f
   }
 }
@@ -0,0 +1,74 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.editor
+
+import android.os.FileObserver
+import com.blankj.utilcode.util.ThreadUtils
+import com.teixeira.vcspace.utils.DirectoryWatcher
+import java.io.File
+
+/**
+ * Watches the open files for changes made outside of the app.
+ *
+ * The parent directory of each open file is watched through the [DirectoryWatcher], once for all
+ * the open files inside it. Files saved by the app are replaced through a rename, so both
+ * [FileObserver.CLOSE_WRITE] and [FileObserver.MOVED_TO] are reported. [onFileChanged] is always
+ * called on the main thread.
+ */
+class OpenFilesWatcher(private val onFileChanged: (File) -> Unit) {
+
+  // Names of the watched files in each directory
+  private val fileNames = mutableMapOf<String, MutableSet<String>>()
+
+  private val listener = DirectoryWatcher.Listener { _, file ->
+    val watched = synchronized(this@OpenFilesWatcher) {
+      fileNames[file.parent]?.contains(file.name) == true
+    }
+    if (watched) {
+      ThreadUtils.runOnUiThread { onFileChanged(file) }
+    }
+  }
+
+  @Synchronized
+  fun watch(file: File) {
+    val dir = file.parentFile ?: return
+    fileNames.getOrPut(dir.path) {
+      DirectoryWatcher.watch(dir, EVENTS, listener)
+      mutableSetOf()
+    }.add(file.name)
+  }
+
+  @Synchronized
+  fun unwatch(file: File) {
+    val dir = file.parentFile ?: return
+    val names = fileNames[dir.path] ?: return
+    names.remove(file.name)
+    if (names.isEmpty()) {
+      DirectoryWatcher.unwatch(dir, listener)
+      fileNames.remove(dir.path)
+    }
+  }
+
+  @Synchronized
+  fun unwatchAll() {
+    fileNames.keys.forEach { DirectoryWatcher.unwatch(File(it), listener) }
+    fileNames.clear()
+  }
+
+  companion object {
+    private const val EVENTS = FileObserver.CLOSE_WRITE or FileObserver.MOVED_TO
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.editor
+
+import com.teixeira.vcspace.editor.io.ChunkedFileReader
+import com.teixeira.vcspace.editor.io.TextFileFormat
+import com.teixeira.vcspace.editor.io.TextFormatDetector
+import com.teixeira.vcspace.ui.screens.editor.components.view.CodeEditorView
+import io.github.rosemoe.sora.lang.Language
+import io.github.rosemoe.sora.text.Content
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+
+/**
+ * Prepares the tabs the user is likely to open next, so switching to them only has to attach an
+ * already decoded buffer to a new editor.
+ *
+ * Files are prepared one at a time in the background, once the tabs have been idle for
+ * [idleDelay] milliseconds. At most [maxPrepared] files are kept, and [cancel] drops all of them
+ * when memory is low.
+ *
+ * All the methods must be called from the main thread.
+ */
+class TabPrewarmer(
+  private val scope: CoroutineScope,
+  private val maxPrepared: Int = DEFAULT_MAX_PREPARED,
+  private val idleDelay: Long = DEFAULT_IDLE_DELAY,
+  private val progressiveLines: () -> Int
+) {
+
+  /**
+   * A decoded file with its language, ready to be attached to an editor.
+   *
+   * @param lastModified Modification time of the file when it was read.
+   * @param length Size of the file when it was read.
+   */
+  class PreparedFile(
+    val file: File,
+    val lastModified: Long,
+    val length: Long,
+    val format: TextFileFormat,
+    val content: Content,
+    val language: Language
+  ) {
+    fun isUpToDate(lastModified: Long, length: Long): Boolean {
+      return this.lastModified == lastModified && this.length == length
+    }
+  }
+
+  @OptIn(ExperimentalCoroutinesApi::class)
+  private val dispatcher = Dispatchers.IO.limitedParallelism(1)
+
+  private val prepared = LinkedHashMap<String, PreparedFile>()
+  private var job: Job? = null
+
+  /**
+   * Prepares the given [files], most likely first, replacing the previous request. Files no longer
+   * requested are dropped.
+   */
+  fun prewarm(files: List<File>) {
+    job?.cancel()
+
+    val candidates = files.distinctBy { it.path }.take(maxPrepared)
+    val paths = candidates.mapTo(HashSet()) { it.path }
+    prepared.keys.filter { it !in paths }.forEach { drop(it) }
+
+    job = scope.launch {
+      delay(idleDelay)
+      for (file in candidates) {
+        if (prepared.containsKey(file.path)) continue
+        withContext(dispatcher) {
+          val preparedFile = prepare(file) ?: return@withContext
+          // Hand it over on the main thread, its language is destroyed if that is cancelled
+          var kept = false
+          try {
+            withContext(Dispatchers.Main) {
+              prepared[file.path] = preparedFile
+              kept = true
+            }
+          } finally {
+            if (!kept) destroy(preparedFile)
+          }
+        }
+      }
+    }
+  }
+
+  /** Takes the prepared buffer of [file], if there is one. */
+  fun take(file: File): PreparedFile? {
+    return prepared.remove(file.path)
+  }
+
+  /** Drops the prepared buffer of the file at [path], if there is one. */
+  fun drop(path: String) {
+    prepared.remove(path)?.let { destroy(it) }
+  }
+
+  /** Stops preparing files and drops the prepared ones. */
+  fun cancel() {
+    job?.cancel()
+    job = null
+    prepared.values.forEach { destroy(it) }
+    prepared.clear()
+  }
+
+  private fun destroy(preparedFile: PreparedFile) {
+    CodeEditorView.destroyLanguage(preparedFile.language)
+  }
+
+  private suspend fun prepare(file: File): PreparedFile? {
+    val lastModified = file.lastModified()
+    val length = file.length()
+    val maxLines = progressiveLines()
+    // Files highlighted progressively are too large to be kept around just in case
+    if (!file.isFile || length > CodeEditorView.progressiveSize(maxLines)) return null
+
+    return try {
+      val format = TextFormatDetector.detect(file)
+      val content = Content().apply { isUndoEnabled = false }
+      ChunkedFileReader(format).read(file) { batch ->
+        val lastLine = content.lineCount - 1
+        content.insert(lastLine, content.getColumnCount(lastLine), batch.text)
+      }
+      content.isUndoEnabled = true
+
+      val progressive = CodeEditorView.isProgressive(length, content.lineCount, maxLines)
+      val language = CodeEditorView.createLanguage(file, progressive)
+      PreparedFile(file, lastModified, length, format, content, language)
+    } catch (e: IOException) {
+      e.printStackTrace()
+      null
+    }
+  }
+
+  companion object {
+    const val DEFAULT_MAX_PREPARED = 2
+    const val DEFAULT_IDLE_DELAY = 1000L
+  }
+}
@@ -26,12 +26,14 @@ import androidx.compose.foundation.layout.widthIn
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.automirrored.rounded.MenuOpen
 import androidx.compose.material.icons.outlined.Folder
+import androidx.compose.material.icons.outlined.Search
 import androidx.compose.material.icons.outlined.Settings
 import androidx.compose.material.icons.outlined.Terminal
 import androidx.compose.material.icons.rounded.Add
 import androidx.compose.material.icons.rounded.ErrorOutline
 import androidx.compose.material.icons.rounded.Folder
 import androidx.compose.material.icons.rounded.Refresh
+import androidx.compose.material.icons.rounded.Search
 import androidx.compose.material.icons.rounded.Settings
 import androidx.compose.material.icons.rounded.Terminal
 import androidx.compose.material3.AlertDialog
@@ -57,6 +59,7 @@ import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.util.fastForEachIndexed
 import androidx.lifecycle.compose.collectAsStateWithLifecycle
+import androidx.lifecycle.viewmodel.compose.viewModel
 import com.blankj.utilcode.util.ClipboardUtils
 import com.blankj.utilcode.util.FileUtils
 import com.teixeira.vcspace.activities.LocalEditorDrawerState
@@ -69,15 +72,18 @@ import com.teixeira.vcspace.core.components.editor.NavigationSpace
 import com.teixeira.vcspace.core.components.editor.NavigationSpaceItem
 import com.teixeira.vcspace.core.components.editor.rememberNavigationSpaceState
 import com.teixeira.vcspace.core.components.file.FileExplorer
+import com.teixeira.vcspace.core.components.search.FindInFilesPanel
 import com.teixeira.vcspace.core.settings.Settings.File.rememberShowHiddenFiles
 import com.teixeira.vcspace.events.OnDeleteFileEvent
 import com.teixeira.vcspace.events.OnRenameFileEvent
 import com.teixeira.vcspace.extensions.open
+import com.teixeira.vcspace.extensions.toFile
 import com.teixeira.vcspace.resources.R
 import com.teixeira.vcspace.resources.R.string
 import com.teixeira.vcspace.ui.LocalToastHostState
 import com.teixeira.vcspace.ui.screens.editor.EditorViewModel
 import com.teixeira.vcspace.ui.screens.file.FileExplorerViewModel
+import com.teixeira.vcspace.ui.screens.search.FindInFilesViewModel
 import com.teixeira.vcspace.utils.launchWithProgressDialog
 import com.teixeira.vcspace.utils.showShortToast
 import kotlinx.coroutines.Dispatchers
@@ -90,25 +96,29 @@ import java.io.IOException
 @Composable
 fun EditorDrawerSheet(
   fileExplorerViewModel: FileExplorerViewModel,
-  editorViewModel: EditorViewModel
+  editorViewModel: EditorViewModel,
+  findInFilesViewModel: FindInFilesViewModel = viewModel()
 ) {
   val context = LocalContext.current
   val drawerState = LocalEditorDrawerState.current
   val scope = rememberCoroutineScope()
-  val selectedItem by remember { mutableIntStateOf(0) }
+  var selectedItem by remember { mutableIntStateOf(0) }
 
   val navigationRailItems = listOf(
     stringResource(string.file_explorer),
+    stringResource(string.find_in_files),
     stringResource(string.terminal),
     stringResource(string.settings)
   )
   val navRailItemIconsUnselected = listOf(
     Icons.Outlined.Folder,
+    Icons.Outlined.Search,
     Icons.Outlined.Terminal,
     Icons.Outlined.Settings
   )
   val navRailItemIconsSelected = listOf(
     Icons.Rounded.Folder,
+    Icons.Rounded.Search,
     Icons.Rounded.Terminal,
     Icons.Rounded.Settings
   )
@@ -140,8 +150,9 @@ fun EditorDrawerSheet(
           selected = selectedItem == i,
           onClick = {
             when (i) {
-              1 -> context.open(TerminalActivity::class.java)
-              2 -> context.open(SettingsActivity::class.java)
+              0, 1 -> selectedItem = i
+              2 -> context.open(TerminalActivity::class.java)
+              3 -> context.open(SettingsActivity::class.java)
             }
           }
         )
@@ -153,7 +164,9 @@ fun EditorDrawerSheet(
     ) {
       Row {
         Text(
-          text = stringResource(string.workspace),
+          text = stringResource(
+            if (selectedItem == 1) string.find_in_files else string.workspace
+          ),
           style = MaterialTheme.typography.headlineSmall,
           modifier = Modifier
             .padding(5.dp)
@@ -181,17 +194,37 @@ fun EditorDrawerSheet(
       val editorUiState by editorViewModel.uiState.collectAsStateWithLifecycle()
       var currentFile by remember { mutableStateOf<File?>(null) }
 
-      FileExplorer(
-        viewModel = fileExplorerViewModel,
-        selectedFile = editorUiState.selectedFile,
-        editorViewModel = editorViewModel,
-        onFileClick = { file ->
-          currentFile = file
-          closeDrawer()
-        },
-        onFileLongClick = { selectedFile = it },
-        modifier = Modifier.weight(1f)
-      )
+      if (selectedItem == 1) {
+        val currentPath by fileExplorerViewModel.currentPath.collectAsStateWithLifecycle()
+        val root = remember(currentPath) {
+          currentPath.toFile().let { if (it.isDirectory) it else it.parentFile ?: it }
+        }
+
+        FindInFilesPanel(
+          viewModel = findInFilesViewModel,
+          editorViewModel = editorViewModel,
+          root = root,
+          includeHidden = showHiddenFiles,
+          onReplaceAll = { findInFilesViewModel.replaceAll(editorViewModel) },
+          onMatchClick = { file, match ->
+            editorViewModel.openFileAt(file, match.line, match.startColumn, match.endColumn)
+            closeDrawer()
+          },
+          modifier = Modifier.weight(1f)
+        )
+      } else {
+        FileExplorer(
+          viewModel = fileExplorerViewModel,
+          selectedFile = editorUiState.selectedFile,
+          editorViewModel = editorViewModel,
+          onFileClick = { file ->
+            currentFile = file
+            closeDrawer()
+          },
+          onFileLongClick = { selectedFile = it },
+          modifier = Modifier.weight(1f)
+        )
+      }
 
       val refresh = stringResource(string.refresh)
       val add = stringResource(string.add)
@@ -220,10 +253,12 @@ fun EditorDrawerSheet(
       var renamableFile by remember { mutableStateOf<File?>(null) }
       var deletableFile by remember { mutableStateOf<File?>(null) }
 
-      NavigationSpace(state = navigationSpaceState) {
-        when (it.id) {
-          0 -> fileExplorerViewModel.refreshFiles(showHiddenFiles = showHiddenFiles)
-          1 -> showNewFileDialog = true
+      if (selectedItem == 0) {
+        NavigationSpace(state = navigationSpaceState) {
+          when (it.id) {
+            0 -> fileExplorerViewModel.refreshFiles(showHiddenFiles = showHiddenFiles)
+            1 -> showNewFileDialog = true
+          }
         }
       }
 
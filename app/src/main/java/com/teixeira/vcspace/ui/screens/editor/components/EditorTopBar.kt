@@ -47,7 +47,7 @@ import androidx.compose.material3.IconButton
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
-import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.DisposableEffect
 import androidx.compose.runtime.MutableState
 import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
@@ -85,10 +85,10 @@ import com.teixeira.vcspace.preferences.pythonExtracted
 import com.teixeira.vcspace.ui.screens.editor.EditorViewModel
 import com.teixeira.vcspace.ui.screens.editor.components.view.CodeEditorView
 import com.teixeira.vcspace.utils.launchWithProgressDialog
+import com.teixeira.vcspace.utils.showShortToast
 import io.github.rosemoe.sora.event.ContentChangeEvent
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import org.greenrobot.eventbus.EventBus
 import java.io.File
@@ -125,25 +125,27 @@ fun EditorTopBar(
 
   val autoSave by rememberAutoSave()
 
-  LaunchedEffect(selectedEditor, autoSave) {
-    selectedEditor?.let { editorView ->
+  DisposableEffect(selectedEditor, autoSave) {
+    val receipt = selectedEditor?.let { editorView ->
       canUndo = editorView.canUndo()
       canRedo = editorView.canRedo()
 
       editorView.editor.subscribeEvent(ContentChangeEvent::class.java) { event, _ ->
+        // Batches appended while the file is being loaded are not user changes
+        if (editorView.isLoadingContent) return@subscribeEvent
+
         EventBus.getDefault().post(OnContentChangeEvent(selectedFile.file, event))
         editorView.setModified(event.action != ContentChangeEvent.ACTION_SET_NEW_TEXT)
         canUndo = editorView.canUndo()
         canRedo = editorView.canRedo()
 
         if (autoSave) {
-          scope.launch {
-            delay(100)
-            editorViewModel.saveFile()
-          }
+          editorView.file?.let { editorViewModel.requestAutoSave(it) }
         }
       }
     }
+
+    onDispose { receipt?.unsubscribe() }
   }
 
   val context = LocalContext.current
@@ -316,6 +318,8 @@ fun FileMenu(
   modified: Boolean,
   areModifiedFiles: Boolean
 ) {
+  val context = LocalContext.current
+
   val createFile = rememberLauncherForActivityResult(
     ActivityResultContracts.CreateDocument("text/*")
   ) {
@@ -403,7 +407,10 @@ fun FileMenu(
       enabled = areModifiedFiles,
       onClick = {
         scope.launch {
-          editorViewModel.saveAll()
+          val failed = editorViewModel.saveAll().count { !it.isSuccess }
+          if (failed > 0) {
+            showShortToast(context, context.getString(strings.file_save_all_failed, failed))
+          }
         }
         showFileMenu.value = false
       }
@@ -419,7 +426,9 @@ fun FileMenu(
       },
       enabled = editor != null,
       onClick = {
-        editor?.confirmReload()
+        editor?.confirmReload {
+          editor.file?.let { editorViewModel.setModified(it, false) }
+        }
       }
     )
   }
@@ -0,0 +1,196 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.editor.components
+
+import androidx.compose.foundation.horizontalScroll
+import androidx.compose.foundation.layout.Arrangement
+import androidx.compose.foundation.layout.Box
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Row
+import androidx.compose.foundation.layout.fillMaxSize
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.layout.width
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.rememberLazyListState
+import androidx.compose.foundation.rememberScrollState
+import androidx.compose.foundation.text.KeyboardActions
+import androidx.compose.foundation.text.KeyboardOptions
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.rounded.ArrowDownward
+import androidx.compose.material3.CircularProgressIndicator
+import androidx.compose.material3.HorizontalDivider
+import androidx.compose.material3.Icon
+import androidx.compose.material3.IconButton
+import androidx.compose.material3.MaterialTheme
+import androidx.compose.material3.OutlinedTextField
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.remember
+import androidx.compose.runtime.rememberCoroutineScope
+import androidx.compose.runtime.setValue
+import androidx.compose.ui.Alignment
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.platform.LocalContext
+import androidx.compose.ui.res.stringResource
+import androidx.compose.ui.text.font.FontFamily
+import androidx.compose.ui.text.input.ImeAction
+import androidx.compose.ui.text.input.KeyboardType
+import androidx.compose.ui.unit.dp
+import com.teixeira.vcspace.app.strings
+import com.teixeira.vcspace.editor.io.MappedTextFile
+import com.teixeira.vcspace.utils.showShortToast
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Read-only viewer for files too large to be loaded into the editor. Lines are decoded from the
+ * mapped file only when they are displayed.
+ */
+@Composable
+fun LargeFileViewer(
+  mappedFile: MappedTextFile,
+  modifier: Modifier = Modifier
+) {
+  val context = LocalContext.current
+  val scope = rememberCoroutineScope()
+  val listState = rememberLazyListState()
+
+  var lineCount by remember(mappedFile) { mutableStateOf(mappedFile.lineCount) }
+  var indexed by remember(mappedFile) { mutableStateOf(mappedFile.isIndexed) }
+
+  var query by remember { mutableStateOf("") }
+  var lineToGo by remember { mutableStateOf("") }
+  var searching by remember { mutableStateOf(false) }
+
+  LaunchedEffect(mappedFile) {
+    if (!indexed) {
+      withContext(Dispatchers.IO) { mappedFile.indexLines() }
+      lineCount = mappedFile.lineCount
+      indexed = true
+    }
+  }
+
+  Column(modifier = modifier.fillMaxSize()) {
+    Text(
+      text = stringResource(strings.large_file_read_only),
+      style = MaterialTheme.typography.labelMedium,
+      modifier = Modifier.padding(horizontal = 8.dp, vertical = 4.dp)
+    )
+
+    Row(
+      modifier = Modifier
+        .fillMaxWidth()
+        .padding(horizontal = 8.dp),
+      horizontalArrangement = Arrangement.spacedBy(8.dp),
+      verticalAlignment = Alignment.CenterVertically
+    ) {
+      fun findNext() {
+        if (!indexed || searching || query.isEmpty()) return
+        searching = true
+
+        scope.launch {
+          val from = listState.firstVisibleItemIndex + 1
+          val line = withContext(Dispatchers.Default) { mappedFile.findNext(query, from) }
+          searching = false
+
+          if (line >= 0) {
+            listState.scrollToItem(line)
+          } else showShortToast(context, context.getString(strings.large_file_no_matches))
+        }
+      }
+
+      OutlinedTextField(
+        value = query,
+        onValueChange = { query = it },
+        singleLine = true,
+        label = { Text(stringResource(strings.editor_search_text)) },
+        keyboardOptions = KeyboardOptions(imeAction = ImeAction.Search),
+        keyboardActions = KeyboardActions(onSearch = { findNext() }),
+        trailingIcon = {
+          IconButton(onClick = { findNext() }, enabled = indexed && !searching) {
+            Icon(Icons.Rounded.ArrowDownward, contentDescription = null)
+          }
+        },
+        modifier = Modifier.weight(1f)
+      )
+
+      OutlinedTextField(
+        value = lineToGo,
+        onValueChange = { value -> lineToGo = value.filter { it.isDigit() } },
+        singleLine = true,
+        label = { Text(stringResource(strings.large_file_goto_line)) },
+        keyboardOptions = KeyboardOptions(
+          keyboardType = KeyboardType.Number,
+          imeAction = ImeAction.Go
+        ),
+        keyboardActions = KeyboardActions(onGo = {
+          val line = lineToGo.toIntOrNull() ?: return@KeyboardActions
+          scope.launch { listState.scrollToItem((line - 1).coerceIn(0, lineCount - 1)) }
+        }),
+        enabled = indexed,
+        modifier = Modifier.width(120.dp)
+      )
+    }
+
+    HorizontalDivider(modifier = Modifier.padding(top = 4.dp), thickness = 1.dp)
+
+    if (!indexed) {
+      Box(modifier = Modifier.fillMaxSize(), contentAlignment = Alignment.Center) {
+        Column(horizontalAlignment = Alignment.CenterHorizontally) {
+          CircularProgressIndicator()
+          Text(
+            text = stringResource(strings.large_file_indexing),
+            modifier = Modifier.padding(top = 8.dp)
+          )
+        }
+      }
+    } else {
+      val gutterWidth = remember(lineCount) { lineCount.toString().length * 9 + 12 }
+
+      LazyColumn(
+        state = listState,
+        modifier = Modifier
+          .fillMaxSize()
+          .horizontalScroll(rememberScrollState())
+      ) {
+        items(count = lineCount) { line ->
+          Row {
+            Text(
+              text = "${line + 1}",
+              fontFamily = FontFamily.Monospace,
+              style = MaterialTheme.typography.bodySmall,
+              color = MaterialTheme.colorScheme.outline,
+              modifier = Modifier
+                .width(gutterWidth.dp)
+                .padding(end = 8.dp)
+            )
+            Text(
+              text = remember(mappedFile, line) { mappedFile.getLine(line) },
+              fontFamily = FontFamily.Monospace,
+              style = MaterialTheme.typography.bodySmall,
+              softWrap = false
+            )
+          }
+        }
+      }
+    }
+  }
+}
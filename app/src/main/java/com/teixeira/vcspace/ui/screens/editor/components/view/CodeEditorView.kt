@@ -3,18 +3,28 @@ package com.teixeira.vcspace.ui.screens.editor.components.view
 import android.annotation.SuppressLint
 import android.app.Activity
 import android.content.Context
+import android.os.Parcel
 import android.view.LayoutInflater
 import android.widget.LinearLayout
+import androidx.appcompat.app.AlertDialog
 import androidx.core.content.res.ResourcesCompat
 import androidx.core.view.isVisible
-import com.blankj.utilcode.util.FileIOUtils
+import com.blankj.utilcode.util.PathUtils
 import com.google.android.material.color.DynamicColors
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import com.teixeira.vcspace.editor.VCSpaceEditor
 import com.teixeira.vcspace.editor.databinding.LayoutCodeEditorBinding
+import com.teixeira.vcspace.editor.diff.LineDiff
+import com.teixeira.vcspace.editor.events.OnEditsRestoredEvent
+import com.teixeira.vcspace.editor.io.ChunkedFileReader
+import com.teixeira.vcspace.editor.io.ContentFileWriter
+import com.teixeira.vcspace.editor.io.EditJournal
+import com.teixeira.vcspace.editor.io.TextFileFormat
+import com.teixeira.vcspace.editor.io.TextFormatDetector
+import com.teixeira.vcspace.editor.io.UnencodableTextException
+import com.teixeira.vcspace.editor.language.ProgressiveLanguage
+import com.teixeira.vcspace.editor.language.TokenSnapshot
 import com.teixeira.vcspace.events.OnPreferenceChangeEvent
-import com.teixeira.vcspace.preferences.PREF_APPEARANCE_UI_MODE_KEY
-import com.teixeira.vcspace.preferences.PREF_EDITOR_COLORSCHEME_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_DELETELINEONBACKSPACE_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_DELETETABONBACKSPACE_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_FONTLIGATURES_KEY
@@ -25,7 +35,6 @@ import com.teixeira.vcspace.preferences.PREF_EDITOR_LINENUMBER_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_STICKYSCROLL_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_USETAB_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_WORDWRAP_KEY
-import com.teixeira.vcspace.preferences.editorColorScheme
 import com.teixeira.vcspace.preferences.editorDeleteLineOnBackspace
 import com.teixeira.vcspace.preferences.editorDeleteTabOnBackspace
 import com.teixeira.vcspace.preferences.editorFont
@@ -37,38 +46,84 @@ import com.teixeira.vcspace.preferences.editorStickyScroll
 import com.teixeira.vcspace.preferences.editorUseTab
 import com.teixeira.vcspace.preferences.editorWordWrap
 import com.teixeira.vcspace.providers.GrammarProvider
+import com.teixeira.vcspace.providers.ThemeProvider
 import com.teixeira.vcspace.resources.R
+import com.teixeira.vcspace.ui.screens.editor.TabPrewarmer
 import com.teixeira.vcspace.utils.cancelIfActive
+import com.teixeira.vcspace.utils.showLongToast
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.event.ScrollEvent
 import io.github.rosemoe.sora.lang.EmptyLanguage
 import io.github.rosemoe.sora.lang.Language
 import io.github.rosemoe.sora.langs.textmate.TextMateColorScheme
-import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
-import io.github.rosemoe.sora.langs.textmate.registry.GrammarRegistry
 import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
-import io.github.rosemoe.sora.text.LineSeparator
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.UndoManager
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
 import org.greenrobot.eventbus.ThreadMode
 import java.io.File
+import java.io.IOException
+import java.nio.charset.Charset
 
 @SuppressLint("ViewConstructor")
-class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
+class CodeEditorView(
+  context: Context,
+  file: File,
+  prepared: TabPrewarmer.PreparedFile? = null,
+  private val progressiveLines: Int = DEFAULT_PROGRESSIVE_LINES
+) : LinearLayout(context) {
 
   private val binding = LayoutCodeEditorBinding.inflate(LayoutInflater.from(context))
 
   private val editorScope = CoroutineScope(Dispatchers.Default)
 
+  private var readJob: Job? = null
+
+  /** Writer for the detected format of the file, replaced when the format changes. */
+  @Volatile
+  private var contentWriter = ContentFileWriter()
+  private var encodingDialog: AlertDialog? = null
+  private var declinedCharset: Charset? = null
+
+  /** Journal of the unsaved edits, replayed when the file is opened again after a crash. */
+  private var journal: EditJournal? = null
+
+  /**
+   * Whether the file is large enough to be highlighted progressively, starting from the visible
+   * lines, instead of being tokenized at once.
+   */
+  private var progressiveHighlighting = false
+
+  /** State restored by [restoreState] while the file was loading, applied once it is loaded. */
+  private var pendingState: SavedState? = null
+
+  /** Selection requested by [selectRange] while the file was loading. */
+  private var pendingSelection: (() -> Unit)? = null
+
+  /** Whether the theme changed since the text was last analyzed, see [onThemeChanged]. */
+  private var themeOutdated = false
+
+  /** Last modification time of the file known to match the editor. */
+  @Volatile
+  private var diskModifiedTime = 0L
+
   val editor: VCSpaceEditor
     get() = binding.editor
 
   val modified: Boolean
     get() = editor.modified
 
+  /** Whether the editor text is being replaced with the file content, these are not user edits. */
+  var isLoadingContent = false
+    private set
+
   var file: File?
     get() = editor.file
     set(value) {
@@ -77,14 +132,15 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
 
   init {
     EventBus.getDefault().register(this)
-    binding.searcher.bindSearcher(editor.searcher)
+    binding.searcher.bindEditor(editor)
     binding.editor.apply {
       this.colorScheme = createColorScheme()
-      this.lineSeparator = LineSeparator.LF
       this.file = file
+      subscribeEvent(ContentChangeEvent::class.java) { event, _ -> recordChange(event) }
+      subscribeEvent(ScrollEvent::class.java) { _, _ -> updateViewport() }
     }
     configureEditor()
-    readFile(file)
+    readFile(file, prepared)
 
     addView(binding.root, LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT))
   }
@@ -93,29 +149,191 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
     DynamicColors.applyToActivityIfAvailable(activity)
   }
 
-  private fun readFile(file: File) {
+  private fun readFile(file: File, prepared: TabPrewarmer.PreparedFile? = null) {
+    readJob?.cancel()
+    isLoadingContent = true
     setLoading(true)
-    editorScope.launch(Dispatchers.IO) {
-      val content = FileIOUtils.readFile2String(file)
-      val language = createLanguage()
+    journal?.close()
+    journal = null
+
+    // Owned by the job until it is attached to the editor, destroyed if it never is
+    var pendingLanguage: Language? = prepared?.language
+    val job = editorScope.launch(Dispatchers.IO) {
+      val lastModified = file.lastModified()
+      val length = file.length()
+      val journal = openJournal(file)
+
+      val usePrepared = prepared != null && prepared.isUpToDate(lastModified, length)
+      if (usePrepared) {
+        // Already decoded in the background, only attach it
+        withContext(Dispatchers.Main) {
+          setFormat(prepared!!.format)
+          editor.setText(prepared.content, null)
+        }
+      } else {
+        // The file changed since it was prepared, if it was
+        pendingLanguage?.let { destroyLanguage(it) }
+        pendingLanguage = null
+
+        val format = TextFormatDetector.detect(file)
+        try {
+          ChunkedFileReader(format).read(file) { batch ->
+            withContext(Dispatchers.Main) {
+              if (batch.first) {
+                setFormat(format)
+                editor.setText(batch.text, null)
+                // The remaining batches are part of the initial text, not user edits.
+                editor.text.isUndoEnabled = false
+              } else {
+                val text = editor.text
+                val lastLine = text.lineCount - 1
+                text.insert(lastLine, text.getColumnCount(lastLine), batch.text)
+              }
+              setLoading(true, batch.progress)
+            }
+          }
+        } catch (e: IOException) {
+          e.printStackTrace()
+          journal?.close()
+          withContext(Dispatchers.Main) { onReadFailed(file, e) }
+          return@launch
+        }
+      }
+      // The editor is not editable while loading, the text is not changed by the main thread
+      progressiveHighlighting = isProgressive(length, editor.text.lineCount, progressiveLines)
+      val language = if (usePrepared) {
+        prepared!!.language
+      } else createLanguage().also { pendingLanguage = it }
 
       withContext(Dispatchers.Main) {
-        editor.setText(content, null)
-        editor.setEditorLanguage(language)
+        editor.text.isUndoEnabled = true
+        setLanguage(language)
+        pendingLanguage = null
+        diskModifiedTime = lastModified
+
+        // Edits left unsaved by a crash are restored as a single undoable edit
+        val restored = journal?.replay(editor.text, lastModified, length) == true
+        if (!restored) journal?.begin(lastModified, length)
+        this@CodeEditorView.journal = journal
+
+        setModified(restored)
+        isLoadingContent = false
         setLoading(false)
+
+        pendingState?.let { applyState(it) }
+        pendingState = null
+        // Posted to run after the scroll restored with the state
+        pendingSelection?.let { editor.post(it) }
+        pendingSelection = null
+
+        if (restored) {
+          EventBus.getDefault().post(OnEditsRestoredEvent(file))
+        }
       }
     }
+    job.invokeOnCompletion { pendingLanguage?.let { destroyLanguage(it) } }
+    readJob = job
+  }
+
+  /**
+   * Called when [file] could not be read, the file may have been deleted or its storage removed.
+   * Whatever was read is kept read-only, so it can't be saved over the file.
+   */
+  private fun onReadFailed(file: File, error: IOException) {
+    editor.text.isUndoEnabled = true
+    isLoadingContent = false
+    setLoading(false)
+    editor.isEditable = false
+    pendingState = null
+    pendingSelection = null
+
+    val message = error.localizedMessage ?: error.javaClass.simpleName
+    showLongToast(context, context.getString(R.string.file_read_failed, file.name, message))
   }
 
-  fun confirmReload() {
+  /**
+   * Reloads the file keeping the undo history: only the lines changed on disk are replaced, as a
+   * single undoable edit.
+   */
+  private fun reloadFile(file: File, onReloaded: () -> Unit) {
+    if (readJob?.isActive == true) return
+
+    setLoading(true)
+    readJob = editorScope.launch(Dispatchers.Main) {
+      try {
+        // The diff only applies to the text it was computed from, if the text changed meanwhile
+        // it is computed again
+        var attempts = 0
+        while (attempts++ < MAX_RELOAD_ATTEMPTS) {
+          val text = editor.text
+          val snapshot = text.copyText(false)
+          val version = text.documentVersion
+
+          val reload = withContext(Dispatchers.IO) { readForReload(file, snapshot) }
+          if (editor.text.documentVersion != version) continue
+
+          val (lastModified, format, newContent, hunks) = reload
+
+          setFormat(format)
+          isLoadingContent = true
+          LineDiff.apply(editor.text, newContent, hunks)
+          isLoadingContent = false
+
+          diskModifiedTime = lastModified
+          setModified(false)
+          resetJournal(file)
+          onReloaded()
+          break
+        }
+      } catch (e: IOException) {
+        e.printStackTrace()
+        val message = e.localizedMessage ?: e.javaClass.simpleName
+        showLongToast(context, context.getString(R.string.file_read_failed, file.name, message))
+      }
+      // Not when cancelled, the editor is then being loaded again
+      setLoading(false)
+    }
+  }
+
+  /** The file read for [reloadFile], with the hunks that turn [snapshot] into it. */
+  private data class Reload(
+    val lastModified: Long,
+    val format: TextFileFormat,
+    val content: Content,
+    val hunks: List<LineDiff.Hunk>
+  )
+
+  private suspend fun readForReload(file: File, snapshot: Content): Reload {
+    val lastModified = file.lastModified()
+    val format = TextFormatDetector.detect(file)
+    val newContent = Content().apply { isUndoEnabled = false }
+    ChunkedFileReader(format).read(file) { batch ->
+      val lastLine = newContent.lineCount - 1
+      newContent.insert(lastLine, newContent.getColumnCount(lastLine), batch.text)
+    }
+    return Reload(lastModified, format, newContent, LineDiff.compute(snapshot, newContent))
+  }
+
+  fun confirmReload(onReloaded: () -> Unit = {}) {
+    val file = file ?: return
     if (modified) {
       MaterialAlertDialogBuilder(context)
         .setTitle(R.string.file_reload)
         .setMessage(R.string.file_reload_unsaved_message)
-        .setPositiveButton(R.string.yes) { _, _ -> readFile(file!!) }
+        .setPositiveButton(R.string.yes) { _, _ -> reloadFile(file, onReloaded) }
         .setNegativeButton(R.string.no, null)
         .show()
-    } else readFile(file!!)
+    } else reloadFile(file, onReloaded)
+  }
+
+  /**
+   * Called when the file has been changed outside of the app. Files saved by the editor itself
+   * are ignored.
+   */
+  fun onExternalChange(onReloaded: () -> Unit) {
+    val file = file ?: return
+    if (isLoadingContent || file.lastModified() == diskModifiedTime) return
+    confirmReload(onReloaded)
   }
 
   fun undo() = editor.undo()
@@ -140,27 +358,221 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
 
   fun updateLanguage() {
     setLoading(true)
+    var pendingLanguage: Language? = null
     editorScope.launch {
-      val language = createLanguage()
+      val language = createLanguage().also { pendingLanguage = it }
 
       withContext(Dispatchers.Main) {
-        editor.setEditorLanguage(language)
+        setLanguage(language)
+        pendingLanguage = null
         setLoading(false)
       }
-    }
+    }.invokeOnCompletion { pendingLanguage?.let { destroyLanguage(it) } }
   }
 
   fun release() {
     EventBus.getDefault().unregister(this)
+    binding.searcher.release()
     editorScope.cancelIfActive("Editor has been released")
+    journal?.delete()
+    journal = null
     editor.release()
   }
 
-  suspend fun saveFile(): Boolean {
-    return if (modified && FileIOUtils.writeFileFromString(file, editor.text.toString())) {
+  /**
+   * Saves the text to the file. If the text can't be encoded with the charset of the file the
+   * user is asked to save it as UTF-8 instead, [onConverted] is then called to save it again.
+   */
+  suspend fun saveFile(onConverted: () -> Unit = {}): Boolean {
+    val file = file ?: return false
+    if (!modified) return false
+
+    val content = editor.text
+    val version = content.documentVersion
+    val saved = withContext(Dispatchers.IO) {
+      try {
+        val writer = contentWriter
+        writer.write(content, file).also { saved ->
+          if (saved) onFileWritten(file, writer.format)
+        }
+      } catch (e: UnencodableTextException) {
+        withContext(Dispatchers.Main) { confirmSaveAsUtf8(e, onConverted) }
+        false
+      } catch (e: IOException) {
+        e.printStackTrace()
+        false
+      }
+    }
+
+    // Keep the modified flag if the text was changed while saving
+    if (saved && content.documentVersion == version) {
+      setModified(false)
+      resetJournal(file)
+    }
+    return saved
+  }
+
+  /**
+   * Asks whether to switch the file to UTF-8, since its charset can't encode the text. Only one
+   * dialog is shown at a time, and it isn't shown again once declined for the current charset.
+   */
+  fun confirmSaveAsUtf8(error: UnencodableTextException, onConverted: () -> Unit) {
+    val file = file ?: return
+    if (encodingDialog?.isShowing == true || declinedCharset == error.charset) return
+
+    encodingDialog = MaterialAlertDialogBuilder(context)
+      .setTitle(R.string.file_save_encoding_title)
+      .setMessage(
+        context.getString(
+          R.string.file_save_encoding_message,
+          file.name,
+          error.charset.name(),
+          error.line + 1
+        )
+      )
+      .setPositiveButton(R.string.yes) { _, _ ->
+        val lineSeparator = contentWriter.format.lineSeparator
+        setFormat(TextFileFormat(Charsets.UTF_8, lineSeparator = lineSeparator))
+        onConverted()
+      }
+      .setNegativeButton(R.string.no) { _, _ -> declinedCharset = error.charset }
+      .show()
+  }
+
+  /** Copy of the editor text taken on the main thread, that can be written from any thread. */
+  class Snapshot(val file: File, val content: Content, val version: Long)
+
+  fun createSnapshot(): Snapshot? {
+    val file = file ?: return null
+    val text = editor.text
+    return Snapshot(file, text.copyText(false), text.documentVersion)
+  }
+
+  /** Writes the given snapshot to its file. This can be called from any thread. */
+  @Throws(IOException::class)
+  fun writeSnapshot(snapshot: Snapshot): Boolean {
+    val writer = contentWriter
+    return writer.write(snapshot.content, snapshot.file).also { saved ->
+      if (saved) onFileWritten(snapshot.file, writer.format)
+    }
+  }
+
+  /** Clears the modified flag if the text didn't change since the snapshot was taken. */
+  fun onSnapshotSaved(snapshot: Snapshot) {
+    if (editor.text.documentVersion == snapshot.version) {
       setModified(false)
-      true
-    } else false
+      resetJournal(snapshot.file)
+    }
+  }
+
+  /**
+   * State of the editor kept while it is evicted from memory.
+   *
+   * @param lastModified Modification time of the file when the state was saved.
+   * @param textLength Length of the text when the state was saved.
+   * @param undoManager The parceled undo history, only valid for the same text.
+   */
+  class SavedState(
+    val lastModified: Long,
+    val textLength: Int,
+    val cursorLine: Int,
+    val cursorColumn: Int,
+    val scrollX: Int,
+    val scrollY: Int,
+    val undoManager: ByteArray?
+  )
+
+  /** Rough estimate of the memory used by this editor, in bytes. */
+  val estimatedBytes: Long
+    get() {
+      val text = editor.text
+      return text.length * 2L + text.lineCount * BYTES_PER_LINE + VIEW_BYTES
+    }
+
+  fun saveState(): SavedState {
+    val text = editor.text
+    val cursor = editor.cursor
+    val undoManager = try {
+      val parcel = Parcel.obtain()
+      try {
+        text.undoManager.writeToParcel(parcel, 0)
+        parcel.marshall()
+      } finally {
+        parcel.recycle()
+      }
+    } catch (e: RuntimeException) {
+      e.printStackTrace()
+      null
+    }
+
+    return SavedState(
+      lastModified = diskModifiedTime,
+      textLength = text.length,
+      cursorLine = cursor.leftLine,
+      cursorColumn = cursor.leftColumn,
+      scrollX = editor.offsetX,
+      scrollY = editor.offsetY,
+      undoManager = undoManager
+    )
+  }
+
+  /** Restores a state saved by [saveState], once the file has been loaded. */
+  fun restoreState(state: SavedState) {
+    if (isLoadingContent) {
+      pendingState = state
+    } else applyState(state)
+  }
+
+  private fun applyState(state: SavedState) {
+    val text = editor.text
+
+    // The undo history only applies to the exact same text
+    val undoManager = state.undoManager
+    val sameText = state.lastModified == diskModifiedTime && state.textLength == text.length
+    if (undoManager != null && sameText) {
+      val parcel = Parcel.obtain()
+      try {
+        parcel.unmarshall(undoManager, 0, undoManager.size)
+        parcel.setDataPosition(0)
+        text.undoManager = UndoManager.CREATOR.createFromParcel(parcel)
+      } catch (e: RuntimeException) {
+        e.printStackTrace()
+      } finally {
+        parcel.recycle()
+      }
+    }
+
+    val line = state.cursorLine.coerceIn(0, text.lineCount - 1)
+    editor.setSelection(line, state.cursorColumn.coerceIn(0, text.getColumnCount(line)))
+    editor.post {
+      val scroller = editor.scroller
+      scroller.startScroll(
+        scroller.currX,
+        scroller.currY,
+        state.scrollX - scroller.currX,
+        state.scrollY - scroller.currY,
+        0
+      )
+      editor.invalidate()
+    }
+  }
+
+  /** Selects a range of [line] and scrolls to it, once the file has been loaded. */
+  fun selectRange(line: Int, startColumn: Int, endColumn: Int) {
+    if (isLoadingContent) {
+      pendingSelection = { selectRange(line, startColumn, endColumn) }
+      return
+    }
+
+    val text = editor.text
+    val targetLine = line.coerceIn(0, text.lineCount - 1)
+    val columnCount = text.getColumnCount(targetLine)
+    editor.setSelectionRegion(
+      targetLine,
+      startColumn.coerceIn(0, columnCount),
+      targetLine,
+      endColumn.coerceIn(0, columnCount)
+    )
   }
 
   fun beginSearchMode() {
@@ -170,9 +582,6 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
   @Subscribe(threadMode = ThreadMode.MAIN)
   fun onSharedPreferenceChanged(event: OnPreferenceChangeEvent) {
     when (event.prefKey) {
-      PREF_APPEARANCE_UI_MODE_KEY,
-      PREF_EDITOR_COLORSCHEME_KEY -> updateEditorColorScheme()
-
       PREF_EDITOR_FONT_KEY -> updateEditorFont()
       PREF_EDITOR_FONT_SIZE_KEY -> updateFontSize()
       PREF_EDITOR_INDENT_KEY -> updateEditorIndent()
@@ -198,10 +607,29 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
     updateDeleteTabs()
   }
 
-  private fun updateEditorColorScheme() {
-    ThemeRegistry.getInstance().setTheme(editorColorScheme)
-    // Required to update colors correctly :-)
-    editor.setText(editor.text.toString())
+  /**
+   * Recolors the text after the theme changed. The color scheme follows the theme by itself, but
+   * the highlighted spans refer to the colors of the previous theme by their index in its color
+   * map, so they are only right once analyzed again. Unlike setting the text again, this keeps
+   * the content, the undo history and the cursor.
+   *
+   * Editors that are not [shown] are analyzed again when they are shown, see [onShown], so a
+   * theme switch only analyzes the visible file.
+   */
+  fun onThemeChanged(shown: Boolean) {
+    themeOutdated = true
+    if (shown) recolor()
+  }
+
+  /** Recolors the text if the theme changed while the editor was not shown. */
+  fun onShown() {
+    if (themeOutdated) recolor()
+  }
+
+  private fun recolor() {
+    themeOutdated = false
+    editor.editorLanguage.analyzeManager.rerun()
+    editor.invalidate()
   }
 
   private fun updateEditorFont() {
@@ -215,12 +643,12 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
   }
 
   private fun updateEditorIndent() {
-    (editor.editorLanguage as? TextMateLanguage)?.tabSize = editorIndent
+    editor.textMateLanguage?.tabSize = editorIndent
     editor.tabWidth = editorIndent
   }
 
   private fun updateEditorUseTab() {
-    (editor.editorLanguage as? TextMateLanguage)?.useTab(editorUseTab)
+    editor.textMateLanguage?.useTab(editorUseTab)
   }
 
   private fun updateStickyScroll() {
@@ -247,13 +675,115 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
     editor.props.deleteMultiSpaces = if (editorDeleteTabOnBackspace) -1 else 1
   }
 
-  private fun setLoading(loading: Boolean) {
-    binding.progress.isVisible = loading
+  /**
+   * Shows or hides the loading indicator.
+   *
+   * @param progress The loading progress from 0 to 100, or a negative value if it is unknown.
+   */
+  private fun setLoading(loading: Boolean, progress: Int = -1) {
+    binding.progress.apply {
+      if (progress < 0) {
+        isIndeterminate = true
+      } else {
+        isIndeterminate = false
+        setProgressCompat(progress, true)
+      }
+      isVisible = loading
+    }
     editor.isEditable = !loading
   }
 
+  /** Uses the detected [format] of the file for new lines and when saving it. */
+  private fun setFormat(format: TextFileFormat) {
+    editor.lineSeparator = format.lineSeparator
+    if (contentWriter.format != format) {
+      contentWriter = ContentFileWriter(format)
+    }
+  }
+
+  private fun onFileWritten(file: File, format: TextFileFormat) {
+    diskModifiedTime = file.lastModified()
+    // The format didn't change, don't detect it again when the file is reopened
+    TextFormatDetector.remember(file, format)
+  }
+
+  private fun openJournal(file: File): EditJournal? {
+    return try {
+      EditJournal.open(File(context.filesDir, JOURNAL_DIR), file)
+    } catch (e: IOException) {
+      e.printStackTrace()
+      null
+    }
+  }
+
+  /** Starts the journal over, once the text matches the file on disk again. */
+  private fun resetJournal(file: File) {
+    try {
+      journal?.begin(diskModifiedTime, file.length())
+    } catch (e: IOException) {
+      e.printStackTrace()
+    }
+  }
+
+  private fun recordChange(event: ContentChangeEvent) {
+    if (isLoadingContent) return
+    val journal = journal ?: return
+
+    val start = event.changeStart
+    val end = event.changeEnd
+    try {
+      when (event.action) {
+        ContentChangeEvent.ACTION_INSERT -> {
+          journal.recordInsert(start.line, start.column, event.changedText)
+        }
+
+        ContentChangeEvent.ACTION_DELETE -> {
+          journal.recordDelete(start.line, start.column, end.line, end.column)
+        }
+      }
+
+      if (journal.needsCompaction) {
+        compactJournal(journal)
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+    }
+  }
+
+  /** Writes a snapshot of the text in the background, to replace the records of the [journal]. */
+  private fun compactJournal(journal: EditJournal) {
+    val compaction = journal.startCompaction(editor.text)
+    editorScope.launch(Dispatchers.IO) {
+      try {
+        compaction.write()
+      } catch (e: IOException) {
+        e.printStackTrace()
+      }
+
+      withContext(Dispatchers.Main) {
+        try {
+          journal.finishCompaction(compaction)
+        } catch (e: IOException) {
+          e.printStackTrace()
+        }
+      }
+    }
+  }
+
+  private fun setLanguage(language: Language) {
+    editor.setEditorLanguage(language)
+    updateViewport()
+  }
+
+  /** Lets a progressive language tokenize the visible lines first. */
+  private fun updateViewport() {
+    val language = editor.editorLanguage as? ProgressiveLanguage ?: return
+    language.analyzer.setViewport(editor.firstVisibleLine, editor.lastVisibleLine)
+  }
+
   private fun createColorScheme(): EditorColorScheme {
     return try {
+      ThemeProvider.ensureCurrentTheme()
       TextMateColorScheme.create(ThemeRegistry.getInstance())
     } catch (e: Exception) {
       EditorColorScheme()
@@ -261,13 +791,63 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
   }
 
   private suspend fun createLanguage(): Language {
-    val scopeName: String? = GrammarProvider.findScopeByFileExtension(file?.extension)
+    return createLanguage(file, progressiveHighlighting)
+  }
+
+  companion object {
+    private const val JOURNAL_DIR = "journal"
+    private const val MAX_RELOAD_ATTEMPTS = 3
+    private const val TOKEN_SNAPSHOT_DIR = "token-snapshots"
 
-    return if (scopeName != null) {
-      TextMateLanguage.create(scopeName, GrammarRegistry.getInstance(), true).apply {
-        tabSize = editorIndent
-        useTab(editorUseTab)
+    const val DEFAULT_PROGRESSIVE_LINES = 20_000
+
+    // Files with long lines are large even with few of them
+    private const val PROGRESSIVE_BYTES_PER_LINE = 50L
+
+    /**
+     * Whether a file is large enough to be highlighted with a [ProgressiveLanguage]: it has more
+     * than [maxLines] lines, or the size of that many lines, see [progressiveSize].
+     */
+    fun isProgressive(length: Long, lineCount: Int, maxLines: Int): Boolean {
+      return length > progressiveSize(maxLines) || lineCount > maxLines
+    }
+
+    /** Size in bytes above which a file is highlighted progressively, whatever its lines. */
+    fun progressiveSize(maxLines: Int): Long = maxLines * PROGRESSIVE_BYTES_PER_LINE
+
+    /** Destroys a language that was never attached to an editor, the way the editor would. */
+    fun destroyLanguage(language: Language) {
+      language.analyzeManager.destroy()
+      language.destroy()
+    }
+
+    /** Creates the language of [file], this can be called from any thread. */
+    suspend fun createLanguage(file: File?, progressive: Boolean): Language {
+      val scopeName: String? = GrammarProvider.findScopeForFile(file)
+
+      if (scopeName == null) return EmptyLanguage()
+
+      val language = GrammarProvider.createLanguage(scopeName) ?: return EmptyLanguage()
+      language.tabSize = editorIndent
+      language.useTab(editorUseTab)
+      return if (progressive) {
+        ProgressiveLanguage(language, snapshot = file?.let { tokenSnapshot(it, scopeName) })
+      } else language
+    }
+
+    private fun tokenSnapshot(file: File, scopeName: String): TokenSnapshot {
+      val snapshotDir = File(PathUtils.getInternalAppCachePath(), TOKEN_SNAPSHOT_DIR)
+      return TokenSnapshot.forFile(snapshotDir, file) {
+        // The spans hold the colors of the theme
+        val themeName = ThemeRegistry.getInstance().currentThemeModel?.name
+        "$scopeName ${GrammarProvider.grammarVersion} $themeName"
       }
-    } else EmptyLanguage()
+    }
+
+    // Line object, its char array header and spans
+    private const val BYTES_PER_LINE = 96L
+
+    // View tree, layout and render caches
+    private const val VIEW_BYTES = 512 * 1024L
   }
 }
@@ -0,0 +1,286 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.search
+
+import androidx.lifecycle.ViewModel
+import androidx.lifecycle.viewModelScope
+import com.blankj.utilcode.util.PathUtils
+import com.teixeira.vcspace.editor.search.WorkspaceReplace
+import com.teixeira.vcspace.editor.search.WorkspaceSearch
+import com.teixeira.vcspace.events.OnDeleteFileEvent
+import com.teixeira.vcspace.events.OnRenameFileEvent
+import com.teixeira.vcspace.ui.screens.editor.EditorViewModel
+import io.github.rosemoe.sora.text.Content
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.greenrobot.eventbus.EventBus
+import org.greenrobot.eventbus.Subscribe
+import org.greenrobot.eventbus.ThreadMode
+import java.io.File
+import java.util.concurrent.ConcurrentLinkedQueue
+
+class FindInFilesViewModel : ViewModel() {
+  data class UiState(
+    val query: String = "",
+    val ignoreCase: Boolean = true,
+    val regex: Boolean = false,
+    val isSearching: Boolean = false,
+    val invalidQuery: Boolean = false,
+    val root: File? = null,
+    val results: List<WorkspaceSearch.FileResult> = emptyList(),
+    val hits: Int = 0,
+    val summary: WorkspaceSearch.Summary? = null,
+    val replaceMode: Boolean = false,
+    val replacement: String = "",
+    /** Whether the results carry the current replacement, see [replaceAll]. */
+    val replacementPreviewed: Boolean = false,
+    val isReplacing: Boolean = false,
+    val replaceSummary: WorkspaceReplace.Summary? = null
+  ) {
+    /** Whether the search found all the matches, it was not cancelled nor stopped at the limit. */
+    val isComplete: Boolean
+      get() = summary != null && !summary.limitReached
+
+    val canReplace: Boolean
+      get() = replacementPreviewed && isComplete && !isReplacing && results.isNotEmpty()
+  }
+
+  private val _uiState = MutableStateFlow(UiState())
+  val uiState get() = _uiState.asStateFlow()
+
+  private var searchJob: Job? = null
+
+  /** The text of the open files as they were searched, by path. */
+  private var searchedTexts: Map<String, SearchedText> = emptyMap()
+
+  private class SearchedText(val content: Content, val version: Long)
+
+  private val indexer = WorkspaceIndexer(
+    viewModelScope,
+    File(PathUtils.getInternalAppFilesPath(), WorkspaceIndexer.INDEX_DIR)
+  )
+
+  init {
+    EventBus.getDefault().register(this)
+  }
+
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  fun onRenameFileEvent(event: OnRenameFileEvent) {
+    indexer.onFileChanged(event.oldFile)
+    indexer.onFileChanged(event.newFile)
+  }
+
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  fun onDeleteFileEvent(event: OnDeleteFileEvent) {
+    indexer.onFileChanged(event.file)
+  }
+
+  fun setQuery(query: String) {
+    _uiState.update { it.copy(query = query, invalidQuery = false) }
+  }
+
+  fun setIgnoreCase(ignoreCase: Boolean) {
+    _uiState.update { it.copy(ignoreCase = ignoreCase) }
+  }
+
+  fun setRegex(regex: Boolean) {
+    _uiState.update { it.copy(regex = regex, invalidQuery = false) }
+  }
+
+  fun setReplaceMode(replaceMode: Boolean) {
+    _uiState.update { it.copy(replaceMode = replaceMode, replacementPreviewed = false) }
+  }
+
+  fun setReplacement(replacement: String) {
+    _uiState.update {
+      it.copy(replacement = replacement, replacementPreviewed = false, invalidQuery = false)
+    }
+  }
+
+  /**
+   * Searches the current query in the files under [root], cancelling the previous search. The
+   * files open in the editor are searched in their text, with their unsaved changes. The results
+   * are published in batches while the search runs. In replace mode they also preview the
+   * replacement of each match.
+   */
+  fun search(root: File, includeHidden: Boolean, editorViewModel: EditorViewModel) {
+    cancel()
+    val state = uiState.value
+    if (state.query.isEmpty()) return
+
+    val options = WorkspaceSearch.Options(
+      query = state.query,
+      ignoreCase = state.ignoreCase,
+      regex = state.regex,
+      includeHidden = includeHidden,
+      // Replacing needs all the matches, a search stopped at the limit can't be applied
+      maxHits = if (state.replaceMode) MAX_REPLACE_HITS else WorkspaceSearch.DEFAULT_MAX_HITS,
+      replacement = state.replacement.takeIf { state.replaceMode }
+    )
+    try {
+      // Checks the query before the search starts, it is created again with the files to search
+      WorkspaceSearch(options)
+    } catch (e: IllegalArgumentException) {
+      // Not a valid regex, or a replacement referring to a group that doesn't exist
+      _uiState.update { it.copy(invalidQuery = true) }
+      return
+    }
+    val index = indexer.indexFor(root, includeHidden)
+    val texts = editorViewModel.editors
+      .filterValues { !it.isLoadingContent }
+      .mapValues { (_, editorView) ->
+        val content = editorView.editor.text
+        SearchedText(content, content.documentVersion)
+      }
+    searchedTexts = texts
+
+    val pending = ConcurrentLinkedQueue<WorkspaceSearch.FileResult>()
+    _uiState.update {
+      it.copy(
+        isSearching = true,
+        invalidQuery = false,
+        root = root,
+        results = emptyList(),
+        hits = 0,
+        summary = null,
+        replacementPreviewed = state.replaceMode,
+        replaceSummary = null
+      )
+    }
+
+    searchJob = viewModelScope.launch {
+      // Narrowed down by the index when it is ready, the whole tree is searched otherwise
+      val candidates = withContext(Dispatchers.IO) {
+        index?.candidates(options.query, options.ignoreCase, options.regex)
+      }
+      val running = async(Dispatchers.IO) {
+        // Read off the main thread, an edit made meanwhile changes the version of the document
+        val openFiles = texts.entries.associate { (path, text) ->
+          File(path) to text.content.toString()
+        }
+        WorkspaceSearch(options.copy(candidates = candidates, openFiles = openFiles))
+          .search(root, isActive = { isActive }) { pending.add(it) }
+      }
+      while (!running.isCompleted) {
+        delay(PUBLISH_INTERVAL)
+        publish(pending)
+      }
+
+      val summary = running.await()
+      publish(pending)
+      _uiState.update { it.copy(isSearching = false, summary = summary) }
+    }
+  }
+
+  /**
+   * Applies the previewed replacements. The files that were searched in the editor get a single
+   * undoable edit each and are left unsaved, if they were not edited since. The others are
+   * rewritten on disk by [WorkspaceReplace], unless they were opened in the editor since. Open
+   * files are only edited if all the others were written.
+   */
+  fun replaceAll(editorViewModel: EditorViewModel) {
+    val state = uiState.value
+    if (!state.canReplace) return
+    _uiState.update { it.copy(isReplacing = true, replaceSummary = null) }
+
+    viewModelScope.launch {
+      val (open, closed) = state.results.partition { it.isOpen }
+      // Their editor may have changes, the file on disk is not rewritten under it
+      val (reopened, onDisk) = closed.partition { it.file.path in editorViewModel.editors }
+      val summary = withContext(Dispatchers.IO) {
+        WorkspaceReplace.replaceInFiles(onDisk) { isActive }
+      }
+
+      var filesChanged = summary.filesChanged
+      var replacements = summary.replacements
+      val skipped = (summary.skipped + reopened.map { it.file }).toMutableList()
+      if (summary.failed.isEmpty()) {
+        for (result in open) {
+          val editorView = editorViewModel.editors[result.file.path]
+          val searched = searchedTexts[result.file.path]
+          // The matches only apply to the text they were found in
+          val sameText = editorView != null && searched != null && !editorView.isLoadingContent &&
+            editorView.editor.text === searched.content &&
+            searched.content.documentVersion == searched.version
+          if (!sameText) {
+            skipped.add(result.file)
+            continue
+          }
+
+          val content = editorView!!.editor.text
+          replacements += WorkspaceReplace.replaceInContent(content, result.matches)
+          filesChanged++
+          editorView.setModified(true)
+          editorViewModel.setModified(result.file, true)
+        }
+      }
+      onDisk.forEach { indexer.onFileChanged(it.file) }
+
+      _uiState.update {
+        it.copy(
+          isReplacing = false,
+          results = emptyList(),
+          hits = 0,
+          summary = null,
+          replacementPreviewed = false,
+          replaceSummary = summary.copy(
+            filesChanged = filesChanged,
+            replacements = replacements,
+            skipped = skipped
+          )
+        )
+      }
+    }
+  }
+
+  fun cancel() {
+    searchJob?.cancel()
+    searchJob = null
+    _uiState.update { it.copy(isSearching = false) }
+  }
+
+  override fun onCleared() {
+    EventBus.getDefault().unregister(this)
+    indexer.close()
+    super.onCleared()
+  }
+
+  private fun publish(pending: ConcurrentLinkedQueue<WorkspaceSearch.FileResult>) {
+    if (pending.isEmpty()) return
+
+    val batch = ArrayList<WorkspaceSearch.FileResult>()
+    while (true) batch.add(pending.poll() ?: break)
+    _uiState.update { state ->
+      state.copy(
+        results = state.results + batch,
+        hits = state.hits + batch.sumOf { it.matches.size }
+      )
+    }
+  }
+
+  companion object {
+    private const val PUBLISH_INTERVAL = 100L
+    private const val MAX_REPLACE_HITS = 1_000_000
+  }
+}
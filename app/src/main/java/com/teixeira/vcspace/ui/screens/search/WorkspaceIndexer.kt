@@ -0,0 +1,212 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.search
+
+import android.os.FileObserver
+import com.teixeira.vcspace.editor.search.TrigramIndex
+import com.teixeira.vcspace.utils.DirectoryWatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.IOException
+
+/**
+ * Keeps the [TrigramIndex] of the workspace root up to date.
+ *
+ * The index is loaded and refreshed, or built if there is none, in the background when a root is
+ * first searched. Then the files changed through the app or reported by the [DirectoryWatcher] for
+ * each directory are indexed again after a short delay. Only [MAX_WATCHED_DIRECTORIES] are watched, the
+ * changes made outside of the app in the others are found by refreshing the whole index from time
+ * to time.
+ */
+class WorkspaceIndexer(
+  private val scope: CoroutineScope,
+  private val indexDir: File
+) {
+
+  @OptIn(ExperimentalCoroutinesApi::class)
+  private val dispatcher = Dispatchers.IO.limitedParallelism(1)
+
+  @Volatile
+  private var index: TrigramIndex? = null
+  private var root: File? = null
+  private var includeHidden = false
+  private var prepareJob: Job? = null
+  @Volatile
+  private var lastRefresh = 0L
+
+  private val watchedDirectories = mutableSetOf<String>()
+  private val directoryListener = DirectoryWatcher.Listener { _, file -> onFileChanged(file) }
+  @Volatile
+  private var watchesAllDirectories = true
+
+  private val changedFiles = LinkedHashSet<File>()
+  private var updateScheduled = false
+  private var updateJob: Job? = null
+
+  /**
+   * Returns the index of [root] if it can be queried, or null while it is being built. Switching
+   * to another root starts indexing it.
+   */
+  @Synchronized
+  fun indexFor(root: File, includeHidden: Boolean): TrigramIndex? {
+    if (root != this.root || includeHidden != this.includeHidden) {
+      open(root, includeHidden)
+      return null
+    }
+    val current = index ?: return null
+
+    val refreshDue = System.currentTimeMillis() - lastRefresh > REFRESH_INTERVAL
+    if (!watchesAllDirectories && refreshDue && prepareJob?.isActive != true) {
+      prepareJob = scope.launch(dispatcher) { refresh(current) { isActive } }
+    }
+    return current.takeIf { it.isReady }
+  }
+
+  /** Indexes [file] again after a short delay, or removes it if it doesn't exist anymore. */
+  fun onFileChanged(file: File) {
+    // Renames and deletions are reported for any file, not only those under the root
+    if (index?.contains(file) == false) return
+    synchronized(changedFiles) {
+      changedFiles.add(file)
+      if (updateScheduled) return
+      updateScheduled = true
+    }
+    synchronized(this) {
+      updateJob = scope.launch(dispatcher) {
+        // The changes made while the others are indexed are applied by the same job
+        while (isActive) {
+          delay(UPDATE_DELAY)
+          val files = synchronized(changedFiles) {
+            if (changedFiles.isEmpty()) {
+              updateScheduled = false
+              return@launch
+            }
+            changedFiles.toList().also { changedFiles.clear() }
+          }
+          applyChanges(files)
+        }
+      }
+    }
+  }
+
+  @Synchronized
+  fun close() {
+    prepareJob?.cancel()
+    updateJob?.cancel()
+    synchronized(changedFiles) {
+      changedFiles.clear()
+      updateScheduled = false
+    }
+    unwatchAll()
+    index?.close()
+    index = null
+    root = null
+  }
+
+  private fun open(root: File, includeHidden: Boolean) {
+    prepareJob?.cancel()
+    unwatchAll()
+    index?.close()
+    index = null
+    this.root = root
+    this.includeHidden = includeHidden
+    synchronized(changedFiles) { changedFiles.clear() }
+
+    // Loading the paths of a large index takes a while, it is not done on the caller thread
+    prepareJob = scope.launch(dispatcher) {
+      try {
+        val index = TrigramIndex.open(indexDir, root, includeHidden)
+        synchronized(this@WorkspaceIndexer) {
+          if (!isActive) {
+            index.close()
+            return@launch
+          }
+          this@WorkspaceIndexer.index = index
+        }
+
+        if (index.isReady) {
+          refresh(index) { isActive }
+        } else {
+          index.build(isActive = { isActive }, onDirectory = ::watch)
+          lastRefresh = System.currentTimeMillis()
+        }
+      } catch (e: IOException) {
+        e.printStackTrace()
+      }
+    }
+  }
+
+  private fun refresh(index: TrigramIndex, isActive: () -> Boolean) {
+    index.refresh(isActive, onDirectory = ::watch)
+    lastRefresh = System.currentTimeMillis()
+    compactIfNeeded(index)
+  }
+
+  private fun applyChanges(files: List<File>) {
+    val index = index ?: return
+    for (file in files) {
+      if (file.exists()) index.update(file, ::watch) else index.remove(file)
+    }
+    compactIfNeeded(index)
+  }
+
+  private fun compactIfNeeded(index: TrigramIndex) {
+    if (index.isReady && index.pendingChanges >= COMPACT_THRESHOLD) {
+      try {
+        index.compact()
+      } catch (e: IOException) {
+        e.printStackTrace()
+      }
+    }
+  }
+
+  private fun watch(dir: File) {
+    synchronized(watchedDirectories) {
+      if (dir.path in watchedDirectories) return
+      if (watchedDirectories.size >= MAX_WATCHED_DIRECTORIES) {
+        watchesAllDirectories = false
+        return
+      }
+      watchedDirectories.add(dir.path)
+      DirectoryWatcher.watch(dir, EVENTS, directoryListener)
+    }
+  }
+
+  private fun unwatchAll() {
+    synchronized(watchedDirectories) {
+      watchedDirectories.forEach { DirectoryWatcher.unwatch(File(it), directoryListener) }
+      watchedDirectories.clear()
+      watchesAllDirectories = true
+    }
+  }
+
+  companion object {
+    const val INDEX_DIR = "search-index"
+
+    private const val UPDATE_DELAY = 500L
+    private const val REFRESH_INTERVAL = 60_000L
+    private const val COMPACT_THRESHOLD = 256
+    private const val MAX_WATCHED_DIRECTORIES = 1024
+    private const val EVENTS = FileObserver.CLOSE_WRITE or FileObserver.MOVED_TO or
+      FileObserver.MOVED_FROM or FileObserver.CREATE or FileObserver.DELETE
+  }
+}
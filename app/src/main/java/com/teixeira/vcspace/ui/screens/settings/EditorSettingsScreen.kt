@@ -28,8 +28,11 @@ import androidx.compose.material.icons.automirrored.filled.FormatIndentIncrease
 import androidx.compose.material.icons.automirrored.filled.List
 import androidx.compose.material.icons.automirrored.filled.WrapText
 import androidx.compose.material.icons.filled.FontDownload
+import androidx.compose.material.icons.filled.Memory
+import androidx.compose.material.icons.filled.Speed
 import androidx.compose.material.icons.filled.Palette
 import androidx.compose.material.icons.filled.Save
+import androidx.compose.material.icons.filled.Storage
 import androidx.compose.material.icons.filled.Tab
 import androidx.compose.material.icons.filled.TextFields
 import androidx.compose.material.icons.filled.VerticalAlignTop
@@ -51,7 +54,10 @@ import com.teixeira.vcspace.core.settings.Settings.Editor.rememberFontFamily
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberFontLigatures
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberFontSize
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberIndentSize
+import com.teixeira.vcspace.core.settings.Settings.Editor.rememberLargeFileThreshold
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberLineNumber
+import com.teixeira.vcspace.core.settings.Settings.Editor.rememberMemoryBudget
+import com.teixeira.vcspace.core.settings.Settings.Editor.rememberProgressiveLines
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberStickyScroll
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberUseTab
 import com.teixeira.vcspace.core.settings.Settings.Editor.rememberWordWrap
@@ -80,6 +86,9 @@ fun EditorSettingsScreen(
   val useTab = rememberUseTab()
   val deleteLineOnBackspace = rememberDeleteLineOnBackspace()
   val deleteIndentOnBackspace = rememberDeleteIndentOnBackspace()
+  val largeFileThreshold = rememberLargeFileThreshold()
+  val progressiveLines = rememberProgressiveLines()
+  val memoryBudget = rememberMemoryBudget()
 
   val autoSave = rememberAutoSave()
 
@@ -287,6 +296,50 @@ fun EditorSettingsScreen(
           contentDescription = null
         )
       },
+      modifier = Modifier
+        .clip(PreferenceShape.Middle)
+        .background(backgroundColor)
+    )
+
+    sliderPreference(
+      key = "large_file_threshold_preference",
+      title = { Text(text = stringResource(R.string.large_file_threshold)) },
+      defaultValue = largeFileThreshold.value,
+      rememberState = { largeFileThreshold },
+      valueRange = 10f..200f,
+      valueSteps = 18,
+      valueText = { Text(stringResource(R.string.large_file_threshold_value, it.fastRoundToInt())) },
+      icon = { Icon(Icons.Default.Storage, contentDescription = null) },
+      modifier = Modifier
+        .clip(PreferenceShape.Middle)
+        .background(backgroundColor)
+    )
+
+    sliderPreference(
+      key = "progressive_lines_preference",
+      title = { Text(text = stringResource(R.string.progressive_highlighting)) },
+      defaultValue = progressiveLines.value,
+      rememberState = { progressiveLines },
+      valueRange = 5000f..100000f,
+      valueSteps = 18,
+      valueText = {
+        Text(stringResource(R.string.progressive_highlighting_value, it.fastRoundToInt()))
+      },
+      icon = { Icon(Icons.Default.Speed, contentDescription = null) },
+      modifier = Modifier
+        .clip(PreferenceShape.Middle)
+        .background(backgroundColor)
+    )
+
+    sliderPreference(
+      key = "memory_budget_preference",
+      title = { Text(text = stringResource(R.string.editor_memory_budget)) },
+      defaultValue = memoryBudget.value,
+      rememberState = { memoryBudget },
+      valueRange = 32f..512f,
+      valueSteps = 14,
+      valueText = { Text(stringResource(R.string.editor_memory_budget_value, it.fastRoundToInt())) },
+      icon = { Icon(Icons.Default.Memory, contentDescription = null) },
       modifier = Modifier
         .clip(PreferenceShape.Bottom)
         .background(backgroundColor)
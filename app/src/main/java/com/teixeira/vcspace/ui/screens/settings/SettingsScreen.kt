@@ -30,6 +30,7 @@ import androidx.navigation.NavHostController
 import androidx.navigation.compose.NavHost
 import androidx.navigation.compose.composable
 import androidx.navigation.compose.rememberNavController
+import com.teixeira.vcspace.BuildConfig
 import com.teixeira.vcspace.app.BaseApplication
 import com.teixeira.vcspace.extensions.open
 import com.teixeira.vcspace.resources.R.string
@@ -97,6 +98,24 @@ fun SettingsScreen(modifier: Modifier = Modifier) {
             }
           )
 
+          if (BuildConfig.DEBUG) {
+            item { HorizontalDivider(thickness = 2.dp) }
+
+            preferenceCategory(
+              key = "pref_category_debug",
+              title = { Text(stringResource(string.pref_category_debug)) }
+            )
+
+            preference(
+              key = "pref_tokenizer_profile_key",
+              title = { Text(stringResource(string.tokenizer_profile)) },
+              summary = { Text(stringResource(string.tokenizer_profile_summary)) },
+              onClick = {
+                navController.navigateSingleTop(SettingScreens.TokenizerProfile)
+              }
+            )
+          }
+
           item { HorizontalDivider(thickness = 2.dp) }
 
           preferenceCategory(
@@ -142,6 +161,15 @@ fun SettingsScreen(modifier: Modifier = Modifier) {
         )
       }
     }
+
+    if (BuildConfig.DEBUG) {
+      composable<SettingScreens.TokenizerProfile> {
+        TokenizerProfileScreen(
+          modifier = modifier,
+          onNavigateUp = navController::navigateUp
+        )
+      }
+    }
   }
 }
 
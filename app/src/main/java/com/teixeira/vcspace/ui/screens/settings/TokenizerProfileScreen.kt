@@ -0,0 +1,183 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.ui.screens.settings
+
+import androidx.activity.compose.BackHandler
+import androidx.compose.foundation.layout.Arrangement
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Row
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
+import androidx.compose.material3.Button
+import androidx.compose.material3.MaterialTheme
+import androidx.compose.material3.OutlinedButton
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.remember
+import androidx.compose.runtime.rememberCoroutineScope
+import androidx.compose.runtime.setValue
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.res.stringResource
+import androidx.compose.ui.unit.dp
+import com.blankj.utilcode.util.PathUtils
+import com.teixeira.vcspace.activities.EditorActivity.Companion.LAST_OPENED_FILES_JSON_PATH
+import com.teixeira.vcspace.editor.io.TextFormatDetector
+import com.teixeira.vcspace.editor.language.TokenizationProfiler
+import com.teixeira.vcspace.providers.GrammarPreloader
+import com.teixeira.vcspace.providers.GrammarProvider
+import com.teixeira.vcspace.resources.R
+import java.io.File
+import java.io.IOException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/** Debug screen that tokenizes the files of the last session again, see [TokenizationProfiler]. */
+@Composable
+fun TokenizerProfileScreen(
+  modifier: Modifier = Modifier,
+  onNavigateUp: () -> Unit
+) {
+  BackHandler(onBack = onNavigateUp)
+
+  val scope = rememberCoroutineScope()
+  var profile by remember { mutableStateOf<TokenizationProfiler.Profile?>(null) }
+  var status by remember { mutableStateOf<String?>(null) }
+  var running by remember { mutableStateOf(false) }
+
+  val noFiles = stringResource(R.string.tokenizer_profile_no_files)
+  val runningFormat = stringResource(R.string.tokenizer_profile_running)
+  val exportedFormat = stringResource(R.string.tokenizer_profile_exported)
+
+  LazyColumn(
+    modifier = modifier
+      .fillMaxWidth()
+      .padding(horizontal = 12.dp)
+      .padding(bottom = 12.dp),
+    verticalArrangement = Arrangement.spacedBy(6.dp)
+  ) {
+    item {
+      Row(horizontalArrangement = Arrangement.spacedBy(6.dp)) {
+        Button(
+          enabled = !running,
+          onClick = {
+            running = true
+            scope.launch {
+              val files = withContext(Dispatchers.IO) {
+                GrammarPreloader.readLastOpenedFiles(File(LAST_OPENED_FILES_JSON_PATH))
+              }
+              profile = profileFiles(files) { file ->
+                status = runningFormat.format(file.name)
+              }
+              status = if (files.isEmpty()) noFiles else null
+              running = false
+            }
+          }
+        ) {
+          Text(stringResource(R.string.tokenizer_profile_run))
+        }
+
+        OutlinedButton(
+          enabled = !running && profile != null,
+          onClick = {
+            val json = profile?.toJson() ?: return@OutlinedButton
+            scope.launch {
+              status = withContext(Dispatchers.IO) {
+                exportProfile(json)?.let { exportedFormat.format(it.absolutePath) }
+              }
+            }
+          }
+        ) {
+          Text(stringResource(R.string.tokenizer_profile_export))
+        }
+      }
+    }
+
+    status?.let { item { Text(it, style = MaterialTheme.typography.bodyMedium) } }
+
+    profile?.let { result ->
+      item {
+        Text(
+          text = stringResource(
+            R.string.tokenizer_profile_summary_result,
+            result.files,
+            result.lines,
+            result.timeNanos / 1_000_000
+          ),
+          style = MaterialTheme.typography.titleMedium
+        )
+      }
+
+      items(result.grammars, key = { "grammar:${it.scope}" }) { stats ->
+        Column(modifier = Modifier.padding(vertical = 4.dp)) {
+          Text(stats.scope, style = MaterialTheme.typography.bodyMedium)
+          Text(
+            text = stringResource(
+              R.string.tokenizer_profile_grammar,
+              stats.lines,
+              stats.timeNanos / 1_000_000.0
+            ),
+            style = MaterialTheme.typography.bodySmall
+          )
+        }
+      }
+    }
+  }
+}
+
+private suspend fun profileFiles(
+  files: List<File>,
+  onFile: (File) -> Unit
+): TokenizationProfiler.Profile = withContext(Dispatchers.Default) {
+  val profiler = TokenizationProfiler()
+  for (file in files) {
+    ensureActive()
+    val grammar = GrammarProvider.findGrammarForFile(file) ?: continue
+    withContext(Dispatchers.Main) { onFile(file) }
+
+    try {
+      file.bufferedReader(TextFormatDetector.detect(file).charset).useLines { lines ->
+        profiler.profile(grammar, lines.take(MAX_LINES_PER_FILE)) { isActive }
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+    }
+  }
+  profiler.result()
+}
+
+private fun exportProfile(json: String): File? {
+  return try {
+    val file = File(
+      "${PathUtils.getExternalAppFilesPath()}/profiles",
+      "tokenizer-${System.currentTimeMillis()}.json"
+    )
+    file.parentFile?.mkdirs()
+    file.writeText(json)
+    file
+  } catch (e: IOException) {
+    e.printStackTrace()
+    null
+  }
+}
+
+private const val MAX_LINES_PER_FILE = 50_000
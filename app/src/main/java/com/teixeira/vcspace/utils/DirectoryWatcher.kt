@@ -0,0 +1,88 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.utils
+
+import android.os.FileObserver
+import java.io.File
+
+/**
+ * Watches directories for the whole app.
+ *
+ * Android keeps a single inotify watch per directory for all the [FileObserver]s of a process, so
+ * a second observer of the same directory replaces the events of the first one, and stopping
+ * either stops both. Each directory is watched here by a single observer, with the events of all
+ * its listeners, and each event is passed to the listeners that asked for it.
+ */
+object DirectoryWatcher {
+
+  /** Called on the observer thread with the event type and the file it happened to. */
+  fun interface Listener {
+    fun onEvent(event: Int, file: File)
+  }
+
+  private class Registration(val listener: Listener, val mask: Int)
+
+  private val observers = mutableMapOf<String, DirectoryObserver>()
+
+  /** Starts passing the events of [mask] that happen in [dir] to [listener]. */
+  @Synchronized
+  fun watch(dir: File, mask: Int, listener: Listener) {
+    val observer = observers[dir.path]
+    val registrations = observer?.registrations.orEmpty()
+      .filter { it.listener !== listener } + Registration(listener, mask)
+    val observerMask = registrations.fold(0) { events, registration -> events or registration.mask }
+
+    if (observer != null && observer.mask == observerMask) {
+      observer.registrations = registrations
+      return
+    }
+
+    // The watch has to be removed before it is added again with the new events
+    observer?.stopWatching()
+    observers[dir.path] = DirectoryObserver(dir, observerMask, registrations).apply {
+      startWatching()
+    }
+  }
+
+  /** Stops passing the events of [dir] to [listener]. */
+  @Synchronized
+  fun unwatch(dir: File, listener: Listener) {
+    val observer = observers[dir.path] ?: return
+    val registrations = observer.registrations.filter { it.listener !== listener }
+    if (registrations.isEmpty()) {
+      observer.stopWatching()
+      observers.remove(dir.path)
+    } else observer.registrations = registrations
+  }
+
+  @Suppress("DEPRECATION") // The File constructor requires API 29
+  private class DirectoryObserver(
+    private val dir: File,
+    val mask: Int,
+    @Volatile var registrations: List<Registration>
+  ) : FileObserver(dir.path, mask) {
+
+    override fun onEvent(event: Int, path: String?) {
+      if (path == null) return
+
+      val type = event and ALL_EVENTS
+      val file = File(dir, path)
+      for (registration in registrations) {
+        if (registration.mask and type != 0) registration.listener.onEvent(type, file)
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import com.teixeira.vcspace.providers.GrammarProvider.GrammarModel
+import java.io.File
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/** Checks [LanguageDetector] against the grammars shipped with the app. */
+class LanguageDetectorTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private lateinit var detector: LanguageDetector
+
+  @Before
+  fun setUp() {
+    val json = File("src/main/assets/editor/textmate/grammars.json").readText()
+    val grammars = Gson().fromJson(json, object : TypeToken<List<GrammarModel>>() {})
+    detector = LanguageDetector(grammars)
+  }
+
+  @Test
+  fun detectsByExtension() {
+    assertEquals("source.kotlin", detect("Main.kt").scopeName)
+    assertEquals("source.kotlin", detect("build.gradle.kts").scopeName)
+    assertEquals("source.kotlin", detect("MAIN.KT").scopeName)
+    assertEquals("source.groovy", detect("build.gradle").scopeName)
+    assertEquals("source.python", detect("script.py").scopeName)
+  }
+
+  @Test
+  fun detectsByFileName() {
+    assertEquals("source.groovy", detect("Jenkinsfile").scopeName)
+    assertEquals("source.shell", detect(".bashrc").scopeName)
+    assertEquals("source.shell", detect("PKGBUILD").scopeName)
+  }
+
+  @Test
+  fun detectsByFirstLine() {
+    assertEquals("source.python", detect("run", "#!/usr/bin/env python3\nprint()\n").scopeName)
+    assertEquals("source.shell", detect("install", "#!/bin/bash\r\necho\r\n").scopeName)
+    assertEquals("text.xml", detect("layout", "\uFEFF<?xml version=\"1.0\"?>\n<a/>").scopeName)
+  }
+
+  @Test
+  fun ignoresUnknownFiles() {
+    assertNull(detector.detect(write("notes", "just some text\n")))
+    assertNull(detector.detect(write("empty", "")))
+    assertNull(detector.findByExtension(null))
+    assertNull(detector.findByExtension(""))
+  }
+
+  @Test
+  fun detectsAgainAfterChange() {
+    val file = write("tool", "#!/bin/sh\n")
+    assertEquals("source.shell", detector.detect(file)?.scopeName)
+
+    file.writeText("#!/usr/bin/python\n")
+    file.setLastModified(file.lastModified() + 2000)
+    assertEquals("source.python", detector.detect(file)?.scopeName)
+  }
+
+  private fun detect(name: String, text: String = ""): GrammarModel {
+    return detector.detect(write(name, text)) ?: throw AssertionError("No grammar for $name")
+  }
+
+  private fun write(name: String, text: String): File {
+    return File(folder.root, name).apply { writeText(text) }
+  }
+}
@@ -13,6 +13,8 @@ android {
     }
   }
 
+  testOptions { unitTests.isReturnDefaultValues = true }
+
   buildFeatures { viewBinding = true }
 }
 
@@ -35,4 +37,6 @@ dependencies {
 
   implementation(project(":core:common"))
   implementation(project(":core:resources"))
+
+  testImplementation(libs.test.junit)
 }
@@ -8,8 +8,13 @@ import android.view.LayoutInflater
 import android.view.View
 import android.widget.LinearLayout
 import androidx.appcompat.widget.PopupMenu
+import java.util.regex.PatternSyntaxException
 import com.teixeira.vcspace.editor.databinding.LayoutSearcherBinding
+import com.teixeira.vcspace.editor.search.SearchController
 import com.teixeira.vcspace.resources.R
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.widget.CodeEditor
 import io.github.rosemoe.sora.widget.EditorSearcher
 import io.github.rosemoe.sora.widget.EditorSearcher.SearchOptions
 
@@ -24,8 +29,20 @@ class SearcherLayout @JvmOverloads constructor(
   private val optionsMenu: PopupMenu
 
   private var searchOptions = SearchOptions(true, false)
+  private var editor: CodeEditor? = null
   private var searcher: EditorSearcher? = null
+  private var searchController: SearchController? = null
   private var isSearching = false
+  private var matchCount = 0
+
+  // The query being searched in the background, and the one highlighted by the editor searcher
+  private var pendingQuery: Query? = null
+  private var highlightedQuery: Query? = null
+
+  // Copy of the text shared by the searches of the same document version
+  private var snapshot: Content? = null
+  private var snapshotSource: Content? = null
+  private var snapshotVersion = -1L
 
   init {
     binding.searchText.addTextChangedListener(
@@ -87,7 +104,9 @@ class SearcherLayout @JvmOverloads constructor(
           binding.root.visibility = View.GONE
           isSearching = false
 
-          searcher?.stopSearch()
+          searchController?.cancel()
+          stopHighlighting()
+          clearSnapshot()
         }
       }
     }
@@ -102,14 +121,89 @@ class SearcherLayout @JvmOverloads constructor(
     }
   }
 
-  fun bindSearcher(searcher: EditorSearcher) {
-    this.searcher = searcher
+  fun bindEditor(editor: CodeEditor) {
+    this.editor = editor
+    searcher = editor.searcher
+    highlightedQuery = null
+    searchController?.release()
+    searchController = SearchController({ snapshot(editor) }, searchListener)
+    clearSnapshot()
+
+    editor.subscribeEvent(ContentChangeEvent::class.java) { _, _ ->
+      // The matches of the previous text are not valid anymore
+      if (isSearching) search(binding.searchText.text.toString())
+    }
+  }
+
+  fun release() {
+    searchController?.release()
+    searchController = null
+    clearSnapshot()
+  }
+
+  private fun clearSnapshot() {
+    snapshot = null
+    snapshotSource = null
+  }
+
+  /** Copies the text of [editor], once per document version. */
+  private fun snapshot(editor: CodeEditor): Content {
+    val text = editor.text
+    val version = text.documentVersion
+    snapshot?.let { if (snapshotSource === text && snapshotVersion == version) return it }
+    return text.copyText(false).also {
+      snapshot = it
+      snapshotSource = text
+      snapshotVersion = version
+    }
   }
 
   private fun search(text: String) {
-    if (text.isNotEmpty()) {
-      searcher?.search(text, searchOptions)
-    } else searcher?.stopSearch()
+    val ignoreCase = searchOptions.caseInsensitive
+    val regex = searchOptions.type == SearchOptions.TYPE_REGULAR_EXPRESSION
+    searchController?.search(text, ignoreCase, regex)
+    if (text.isEmpty()) {
+      stopHighlighting()
+      binding.searchCount.visibility = View.GONE
+    }
+  }
+
+  private val searchListener = object : SearchController.Listener {
+    override fun onSearchStarted(query: String, ignoreCase: Boolean, regex: Boolean) {
+      pendingQuery = Query(query, ignoreCase, regex)
+      // The matches of another query are not shown meanwhile
+      if (pendingQuery != highlightedQuery) stopHighlighting()
+      matchCount = 0
+      binding.searchCount.visibility = View.GONE
+    }
+
+    override fun onMatches(matches: List<SearchController.Match>, complete: Boolean) {
+      matchCount += matches.size
+      binding.searchCount.text = if (complete) "$matchCount" else "$matchCount+"
+      binding.searchCount.visibility = View.VISIBLE
+
+      if (complete) {
+        // The editor searcher highlights the matches and moves between them. It searches the text
+        // again, so it only runs once per query, after the matches were found in the background.
+        val query = pendingQuery ?: return
+        pendingQuery = null
+        if (matchCount > 0) {
+          searcher?.search(query.text, SearchOptions(query.ignoreCase, query.regex))
+          highlightedQuery = query
+        } else stopHighlighting()
+      }
+    }
+
+    override fun onInvalidQuery(error: PatternSyntaxException) {
+      stopHighlighting()
+      binding.searchCount.setText(R.string.editor_search_invalid_regex)
+      binding.searchCount.visibility = View.VISIBLE
+    }
+  }
+
+  private fun stopHighlighting() {
+    searcher?.stopSearch()
+    highlightedQuery = null
   }
 
   private fun gotoLast() {
@@ -136,11 +230,47 @@ class SearcherLayout @JvmOverloads constructor(
     }
   }
 
-  private fun replaceAll() {
-    try {
-      searcher?.replaceAll(binding.replaceText.text.toString())
-    } catch (e: IllegalStateException) {
-      e.printStackTrace()
+  /**
+   * Replaces all the matches as a single edit, computed in the background, instead of
+   * [EditorSearcher.replaceAll] which edits each match separately. If the text keeps changing
+   * while the replacement is computed, it gives up after [MAX_REPLACE_ATTEMPTS].
+   */
+  private fun replaceAll(attempt: Int = 1) {
+    val editor = editor ?: return
+    val version = editor.text.documentVersion
+    val ignoreCase = searchOptions.caseInsensitive
+    val regex = searchOptions.type == SearchOptions.TYPE_REGULAR_EXPRESSION
+
+    searchController?.replaceAll(
+      binding.searchText.text.toString(),
+      ignoreCase,
+      regex,
+      binding.replaceText.text.toString()
+    ) { replacement ->
+      when {
+        replacement == null -> {
+          binding.searchCount.setText(R.string.editor_search_invalid_regex)
+          binding.searchCount.visibility = View.VISIBLE
+        }
+
+        // The text changed while the replacement was computed, start over
+        editor.text.documentVersion != version -> {
+          if (attempt < MAX_REPLACE_ATTEMPTS) {
+            replaceAll(attempt + 1)
+          } else {
+            binding.searchCount.setText(R.string.editor_search_replace_text_changed)
+            binding.searchCount.visibility = View.VISIBLE
+          }
+        }
+
+        else -> replacement.applyTo(editor.text)
+      }
     }
   }
+
+  private data class Query(val text: String, val ignoreCase: Boolean, val regex: Boolean)
+
+  companion object {
+    private const val MAX_REPLACE_ATTEMPTS = 3
+  }
 }
@@ -24,6 +24,7 @@ import com.blankj.utilcode.util.ToastUtils
 import com.teixeira.vcspace.editor.completion.CompletionListAdapter
 import com.teixeira.vcspace.editor.completion.CustomCompletionLayout
 import com.teixeira.vcspace.editor.events.OnContentChangeEvent
+import com.teixeira.vcspace.editor.language.ProgressiveLanguage
 import com.teixeira.vcspace.editor.lsp.service.KotlinLSPService
 import io.github.rosemoe.sora.event.ContentChangeEvent
 import io.github.rosemoe.sora.lang.Language
@@ -64,8 +65,16 @@ class VCSpaceEditor @JvmOverloads constructor(
   var file: File? = null
   var modified: Boolean = false
 
+  /** The TextMate language of the editor, also when it is highlighted progressively. */
+  val textMateLanguage: TextMateLanguage?
+    get() = when (val language = editorLanguage) {
+      is TextMateLanguage -> language
+      is ProgressiveLanguage -> language.textMateLanguage
+      else -> null
+    }
+
   val commentRule: CommentRule?
-    get() = (editorLanguage as? TextMateLanguage)?.languageConfiguration?.comments
+    get() = textMateLanguage?.languageConfiguration?.comments
 
   init {
     getComponent(EditorTextActionWindow::class.java).isEnabled = false
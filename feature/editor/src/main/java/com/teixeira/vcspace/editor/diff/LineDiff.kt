@@ -0,0 +1,212 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.diff
+
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentLine
+
+/**
+ * Line based diff between two [Content]s.
+ *
+ * The common prefix and suffix are skipped first, so a small change in a large file only costs a
+ * linear scan. The remaining region is compared with Myers' algorithm, and if the edit distance
+ * exceeds [MAX_EDIT_DISTANCE] the whole region is reported as a single hunk.
+ *
+ * Two lines are equal only if both their text and their line separator are equal.
+ */
+object LineDiff {
+
+  const val MAX_EDIT_DISTANCE = 1000
+
+  /**
+   * Replaces the lines `[oldStart, oldEnd)` of the old content with the lines
+   * `[newStart, newEnd)` of the new content.
+   */
+  data class Hunk(val oldStart: Int, val oldEnd: Int, val newStart: Int, val newEnd: Int)
+
+  /** Computes the hunks that turn [old] into [new], ordered by position. */
+  fun compute(old: Content, new: Content): List<Hunk> {
+    val oldCount = old.lineCount
+    val newCount = new.lineCount
+
+    var prefix = 0
+    while (prefix < oldCount && prefix < newCount && linesEqual(old, prefix, new, prefix)) {
+      prefix++
+    }
+
+    var suffix = 0
+    while (
+      suffix < oldCount - prefix &&
+      suffix < newCount - prefix &&
+      linesEqual(old, oldCount - 1 - suffix, new, newCount - 1 - suffix)
+    ) {
+      suffix++
+    }
+
+    val oldEnd = oldCount - suffix
+    val newEnd = newCount - suffix
+    if (prefix == oldEnd && prefix == newEnd) return emptyList()
+
+    return myers(old, prefix, oldEnd, new, prefix, newEnd)
+      ?: listOf(Hunk(prefix, oldEnd, prefix, newEnd))
+  }
+
+  /**
+   * Applies the [hunks] computed against [target] as a single batch edit, taking the replacement
+   * lines from [new]. The whole change is undone at once.
+   */
+  fun apply(target: Content, new: Content, hunks: List<Hunk>) {
+    if (hunks.isEmpty()) return
+
+    target.beginBatchEdit()
+    try {
+      // Apply from the bottom, so the line numbers of the remaining hunks stay valid
+      for (hunk in hunks.asReversed()) {
+        val text = StringBuilder()
+        for (line in hunk.newStart until hunk.newEnd) {
+          val contentLine = new.getLine(line)
+          text.append(contentLine).append(contentLine.lineSeparator.content)
+        }
+
+        val (startLine, startColumn) = position(target, hunk.oldStart)
+        val (endLine, endColumn) = position(target, hunk.oldEnd)
+        if (startLine == endLine && startColumn == endColumn) {
+          target.insert(startLine, startColumn, text)
+        } else if (text.isEmpty()) {
+          target.delete(startLine, startColumn, endLine, endColumn)
+        } else target.replace(startLine, startColumn, endLine, endColumn, text)
+      }
+    } finally {
+      target.endBatchEdit()
+    }
+  }
+
+  /** Position of the start of [line], or of the end of the text if it is past the last line. */
+  private fun position(content: Content, line: Int): Pair<Int, Int> {
+    if (line < content.lineCount) return line to 0
+    val lastLine = content.lineCount - 1
+    return lastLine to content.getColumnCount(lastLine)
+  }
+
+  private fun myers(
+    old: Content,
+    oldStart: Int,
+    oldEnd: Int,
+    new: Content,
+    newStart: Int,
+    newEnd: Int
+  ): List<Hunk>? {
+    val n = oldEnd - oldStart
+    val m = newEnd - newStart
+    val oldHashes = IntArray(n) { hash(old.getLine(oldStart + it)) }
+    val newHashes = IntArray(m) { hash(new.getLine(newStart + it)) }
+
+    fun equal(x: Int, y: Int): Boolean {
+      return oldHashes[x] == newHashes[y] && linesEqual(old, oldStart + x, new, newStart + y)
+    }
+
+    val maxDistance = minOf(n + m, MAX_EDIT_DISTANCE)
+    val offset = maxDistance + 1
+    val v = IntArray(2 * offset + 1)
+    // v[k] values after each step d, only the [-d, d] range is kept.
+    val trace = ArrayList<IntArray>()
+
+    var found = false
+    for (d in 0..maxDistance) {
+      for (k in -d..d step 2) {
+        var x = if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+          v[offset + k + 1]
+        } else v[offset + k - 1] + 1
+        var y = x - k
+        while (x < n && y < m && equal(x, y)) {
+          x++
+          y++
+        }
+        v[offset + k] = x
+      }
+      trace.add(v.copyOfRange(offset - d, offset + d + 1))
+
+      if (n - m in -d..d && v[offset + n - m] >= n) {
+        found = true
+        break
+      }
+    }
+    if (!found) return null
+
+    // Walk the trace backwards, collecting the edited ranges
+    val hunks = ArrayList<Hunk>()
+    var x = n
+    var y = m
+    var hunkOldEnd = -1
+    var hunkNewEnd = -1
+
+    fun closeHunk() {
+      if (hunkOldEnd >= 0) {
+        hunks.add(Hunk(oldStart + x, oldStart + hunkOldEnd, newStart + y, newStart + hunkNewEnd))
+        hunkOldEnd = -1
+        hunkNewEnd = -1
+      }
+    }
+
+    for (d in trace.size - 1 downTo 1) {
+      val previous = trace[d - 1]
+      fun previousV(k: Int) = previous[k + d - 1]
+
+      val k = x - y
+      val previousK = if (k == -d || (k != d && previousV(k - 1) < previousV(k + 1))) {
+        k + 1
+      } else k - 1
+      val previousX = previousV(previousK)
+      val previousY = previousX - previousK
+
+      while (x > previousX && y > previousY) {
+        closeHunk()
+        x--
+        y--
+      }
+
+      if (hunkOldEnd < 0) {
+        hunkOldEnd = x
+        hunkNewEnd = y
+      }
+      x = previousX
+      y = previousY
+    }
+
+    // Remaining moves of d = 0 are all diagonal
+    closeHunk()
+    hunks.reverse()
+    return hunks
+  }
+
+  private fun hash(line: ContentLine): Int {
+    var hash = line.lineSeparator.ordinal
+    for (i in 0 until line.length) {
+      hash = 31 * hash + line[i].code
+    }
+    return hash
+  }
+
+  private fun linesEqual(old: Content, oldLine: Int, new: Content, newLine: Int): Boolean {
+    val a = old.getLine(oldLine)
+    val b = new.getLine(newLine)
+    if (a.length != b.length || a.lineSeparator != b.lineSeparator) return false
+    for (i in 0 until a.length) {
+      if (a[i] != b[i]) return false
+    }
+    return true
+  }
+}
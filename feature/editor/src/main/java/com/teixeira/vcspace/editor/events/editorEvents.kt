@@ -22,3 +22,6 @@ data class OnContentChangeEvent(
   val file: File?,
   val event: ContentChangeEvent
 )
+
+/** Posted when the unsaved edits of a file have been restored after a crash. */
+data class OnEditsRestoredEvent(val file: File)
@@ -0,0 +1,74 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.nio.ByteBuffer
+
+/**
+ * Literal byte pattern searched with the Boyer-Moore-Horspool algorithm.
+ *
+ * When [ignoreCase] is set only ASCII letters are folded, so callers must fall back to another
+ * matcher for patterns with other cased characters, see [canFoldCase].
+ */
+class BytePattern(pattern: ByteArray, private val ignoreCase: Boolean = false) {
+
+  private val pattern = if (ignoreCase) ByteArray(pattern.size) { fold(pattern[it]) } else pattern
+  private val shift = IntArray(256) { pattern.size }
+
+  /** Length of the pattern in bytes. */
+  val size: Int = pattern.size
+
+  init {
+    val last = size - 1
+    for (i in 0 until last) {
+      val b = this.pattern[i]
+      shift[b.toInt() and 0xFF] = last - i
+      if (ignoreCase) shift[upper(b).toInt() and 0xFF] = last - i
+    }
+  }
+
+  /**
+   * Returns the offset of the first occurrence of the pattern in the range [start, end) of the
+   * [buffer], or -1 if there is none. The position of the buffer is not changed.
+   */
+  fun indexOf(buffer: ByteBuffer, start: Int, end: Int): Int {
+    if (size == 0) return -1
+    val last = size - 1
+    var i = start
+    while (i + last < end) {
+      var j = last
+      while (j >= 0 && byteAt(buffer, i + j) == pattern[j]) j--
+      if (j < 0) return i
+      i += shift[buffer.get(i + last).toInt() and 0xFF]
+    }
+    return -1
+  }
+
+  private fun byteAt(buffer: ByteBuffer, index: Int): Byte {
+    val b = buffer.get(index)
+    return if (ignoreCase) fold(b) else b
+  }
+
+  companion object {
+    /** Whether [text] can be matched ignoring case by a [BytePattern]. */
+    @JvmStatic
+    fun canFoldCase(text: String): Boolean = text.all { it.code < 0x80 }
+
+    private fun fold(b: Byte): Byte = if (b in 'A'.code..'Z'.code) (b + 32).toByte() else b
+
+    private fun upper(b: Byte): Byte = if (b in 'a'.code..'z'.code) (b - 32).toByte() else b
+  }
+}
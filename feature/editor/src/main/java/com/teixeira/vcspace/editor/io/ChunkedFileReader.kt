@@ -0,0 +1,134 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import kotlinx.coroutines.ensureActive
+import java.io.File
+import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CodingErrorAction
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Reads a text file in fixed-size chunks, decoding it with a single reused [CharsetDecoder].
+ *
+ * Decoded text is grouped into batches and handed to the caller as soon as each batch is ready, so
+ * the first screen of a large file can be displayed before the rest has been read. A batch never
+ * ends with a lone `\r`, that way a CRLF pair is never split between two batches.
+ *
+ * The file is decoded with the charset of the given [format], skipping its byte order mark.
+ */
+class ChunkedFileReader(
+  private val format: TextFileFormat = TextFileFormat.DEFAULT,
+  private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+  private val batchSize: Int = DEFAULT_BATCH_SIZE,
+  private val firstBatchLines: Int = DEFAULT_FIRST_BATCH_LINES
+) {
+
+  /**
+   * A batch of decoded text.
+   *
+   * @param text The decoded text of this batch.
+   * @param first Whether this is the first batch of the file.
+   * @param bytesRead Amount of bytes read so far.
+   * @param totalBytes Size of the file in bytes.
+   */
+  class Batch(
+    val text: String,
+    val first: Boolean,
+    val bytesRead: Long,
+    val totalBytes: Long
+  ) {
+    val progress: Int
+      get() = if (totalBytes <= 0) 100 else (bytesRead * 100 / totalBytes).toInt()
+  }
+
+  /**
+   * Reads the given [file], calling [onBatch] for every decoded batch. At least one batch is
+   * always delivered, even for empty files.
+   */
+  suspend fun read(file: File, onBatch: suspend (Batch) -> Unit) {
+    val decoder = newDecoder()
+    val bytes = ByteBuffer.allocate(chunkSize)
+    val chars = CharBuffer.allocate(chunkSize)
+    val batch = StringBuilder(batchSize)
+
+    var first = true
+    var lines = 0
+    var bytesRead = 0L
+
+    FileInputStream(file).channel.use { channel ->
+      val totalBytes = channel.size()
+      if (format.bom.isNotEmpty() && totalBytes >= format.bom.size) {
+        channel.position(format.bom.size.toLong())
+        bytesRead = format.bom.size.toLong()
+      }
+
+      suspend fun flush(force: Boolean) {
+        if (batch.isEmpty() && !(force && first)) return
+
+        // Keep a trailing '\r' for the next batch, it may be part of a CRLF.
+        val holdCarriageReturn = !force && batch.isNotEmpty() && batch.last() == '\r'
+        val text = if (holdCarriageReturn) {
+          batch.substring(0, batch.length - 1)
+        } else batch.toString()
+        batch.setLength(0)
+        if (holdCarriageReturn) batch.append('\r')
+
+        onBatch(Batch(text, first, bytesRead, totalBytes))
+        first = false
+      }
+
+      var endOfInput = false
+      while (!endOfInput) {
+        coroutineContext.ensureActive()
+
+        val read = channel.read(bytes)
+        if (read < 0) endOfInput = true else bytesRead += read
+
+        bytes.flip()
+        decoder.decode(bytes, chars, endOfInput)
+        if (endOfInput) decoder.flush(chars)
+        bytes.compact()
+
+        chars.flip()
+        if (first) lines += chars.count { it == '\n' }
+        batch.append(chars)
+        chars.clear()
+
+        val batchReady = if (first) lines >= firstBatchLines else batch.length >= batchSize
+        if (batchReady) flush(force = false)
+      }
+
+      flush(force = true)
+    }
+  }
+
+  private fun newDecoder(): CharsetDecoder {
+    return format.charset
+      .newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+  }
+
+  companion object {
+    const val DEFAULT_CHUNK_SIZE = 64 * 1024
+    const val DEFAULT_BATCH_SIZE = 1024 * 1024
+    const val DEFAULT_FIRST_BATCH_LINES = 200
+  }
+}
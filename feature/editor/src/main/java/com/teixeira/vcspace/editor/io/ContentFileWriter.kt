@@ -0,0 +1,194 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.LineSeparator
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.charset.CharsetEncoder
+import java.nio.charset.CodingErrorAction
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Writes a [Content] to a file line by line, encoding straight into a reusable direct
+ * [ByteBuffer], so saving never needs a copy of the whole text.
+ *
+ * The text is first written to a temporary file in the same directory, which then atomically
+ * replaces the target file. If the target is a symbolic link the file it points to is replaced
+ * instead, and the permissions of the replaced file are kept. The content may be read from a
+ * background thread, if it is modified while being written the save is aborted and the target
+ * file is left untouched.
+ *
+ * The text is encoded with the charset of the given [format], preceded by its byte order mark.
+ * Characters the charset can't encode abort the save with an [UnencodableTextException].
+ */
+class ContentFileWriter(
+  val format: TextFileFormat = TextFileFormat.DEFAULT,
+  bufferSize: Int = DEFAULT_BUFFER_SIZE
+) {
+
+  private val charset: Charset = format.charset
+
+  private val encoder: CharsetEncoder = charset
+    .newEncoder()
+    .onMalformedInput(CodingErrorAction.REPORT)
+    .onUnmappableCharacter(CodingErrorAction.REPORT)
+
+  private val bytes = ByteBuffer.allocateDirect(bufferSize)
+  private var chars = CharArray(INITIAL_LINE_CAPACITY)
+  private var charBuffer = CharBuffer.wrap(chars)
+
+  private val separators = LineSeparator.values().associateWith { separator ->
+    separator.content.toByteArray(charset)
+  }
+
+  /**
+   * Writes the given [content] to [file].
+   *
+   * @return `true` if the file was written, or `false` if the content was modified during the write.
+   * @throws UnencodableTextException If the text can't be encoded with the charset of the format.
+   */
+  @Synchronized
+  @Throws(IOException::class)
+  fun write(content: Content, file: File): Boolean {
+    val version = content.documentVersion
+    val target = resolveLinks(file.toPath())
+    val tempFile = target.resolveSibling(".${target.fileName}.tmp").toFile()
+
+    try {
+      FileChannel.open(
+        tempFile.toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING
+      ).use { channel ->
+        if (!writeLines(content, version, channel)) {
+          return false
+        }
+        channel.force(false)
+      }
+      copyPermissions(target, tempFile.toPath())
+
+      try {
+        Files.move(tempFile.toPath(), target, StandardCopyOption.ATOMIC_MOVE)
+      } catch (e: AtomicMoveNotSupportedException) {
+        Files.move(tempFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING)
+      }
+      return true
+    } catch (e: IndexOutOfBoundsException) {
+      // The content has been changed by another thread while being read
+      return false
+    } finally {
+      tempFile.delete()
+    }
+  }
+
+  private fun writeLines(content: Content, version: Long, channel: FileChannel): Boolean {
+    encoder.reset()
+    bytes.clear()
+    bytes.put(format.bom)
+
+    for (i in 0 until content.lineCount) {
+      if (content.documentVersion != version) return false
+
+      val line = content.getLine(i)
+      val length = line.length
+      if (chars.size < length) {
+        chars = CharArray(maxOf(length, chars.size * 2))
+        charBuffer = CharBuffer.wrap(chars)
+      }
+      line.getChars(0, length, chars, 0)
+
+      charBuffer.clear()
+      charBuffer.limit(length)
+      encode(charBuffer, channel, i)
+
+      val separator = separators[line.lineSeparator] ?: continue
+      if (separator.isEmpty()) continue
+      if (bytes.remaining() < separator.size) drain(channel)
+      bytes.put(separator)
+    }
+
+    charBuffer.clear()
+    charBuffer.limit(0)
+    encode(charBuffer, channel, content.lineCount - 1, endOfInput = true)
+    while (encoder.flush(bytes).isOverflow) drain(channel)
+    drain(channel)
+
+    return content.documentVersion == version
+  }
+
+  private fun encode(
+    input: CharBuffer,
+    channel: FileChannel,
+    line: Int,
+    endOfInput: Boolean = false
+  ) {
+    while (true) {
+      val result = encoder.encode(input, bytes, endOfInput)
+      when {
+        result.isOverflow -> drain(channel)
+        result.isError -> throw UnencodableTextException(charset, line)
+        else -> return
+      }
+    }
+  }
+
+  /** The file a symbolic link points to, so that the link is kept when the file is replaced. */
+  private fun resolveLinks(path: Path): Path {
+    if (!Files.isSymbolicLink(path)) return path
+    return try {
+      path.toRealPath()
+    } catch (e: IOException) {
+      // Broken link, the save creates the file it points to
+      path.resolveSibling(Files.readSymbolicLink(path))
+    }
+  }
+
+  private fun drain(channel: FileChannel) {
+    bytes.flip()
+    while (bytes.hasRemaining()) channel.write(bytes)
+    bytes.clear()
+  }
+
+  companion object {
+    const val DEFAULT_BUFFER_SIZE = 64 * 1024
+
+    private const val INITIAL_LINE_CAPACITY = 256
+
+    /** Gives [to] the permissions of [from], before it replaces it. */
+    @JvmStatic
+    internal fun copyPermissions(from: Path, to: Path) {
+      if (!Files.exists(from)) return
+      try {
+        Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from))
+      } catch (e: UnsupportedOperationException) {
+        // The file system has no POSIX permissions
+      } catch (e: IOException) {
+        e.printStackTrace()
+      }
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import io.github.rosemoe.sora.text.Content
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+
+/**
+ * Append-only journal of the unsaved edits of a file, used to restore them after a crash or after
+ * the process is killed.
+ *
+ * Each edit is appended as a small binary record to a memory-mapped log, which the system keeps
+ * even if the process dies. The journal is tied to the state of the file on disk (modification
+ * time and length) it was started from, and is only replayed if the file still matches it. When the
+ * records after the last snapshot grow past [COMPACT_THRESHOLD] they are replaced by a new snapshot
+ * of the text, see [startCompaction].
+ *
+ * This class is not thread-safe, it must be used from the main thread like the editor content.
+ * Only [Compaction.write] may run on another thread.
+ */
+class EditJournal private constructor(private val journalFile: File) : Closeable {
+
+  private var channel: FileChannel? = null
+  private var buffer: MappedByteBuffer? = null
+  private var position = HEADER_SIZE
+
+  /** End of the snapshot at the start of the journal, or [HEADER_SIZE] if there is none. */
+  private var snapshotEnd = HEADER_SIZE
+
+  /** Incremented by [begin], so a compaction started before can't replace the new records. */
+  private var generation = 0
+  private var compaction: Compaction? = null
+
+  /**
+   * Whether the records after the last snapshot have grown enough to be compacted, and no
+   * compaction is running already.
+   */
+  val needsCompaction: Boolean
+    get() = compaction == null && position - snapshotEnd > COMPACT_THRESHOLD
+
+  /** Whether there are edits recorded. */
+  val hasRecords: Boolean
+    get() = position > HEADER_SIZE
+
+  /**
+   * Starts a new journal over the current state of the file on disk, discarding all the records.
+   */
+  fun begin(baseModified: Long, baseLength: Long) {
+    val buffer = ensureCapacity(0)
+    buffer.putInt(0, MAGIC)
+    buffer.putInt(4, VERSION)
+    buffer.putLong(8, baseModified)
+    buffer.putLong(16, baseLength)
+    setEnd(HEADER_SIZE)
+    snapshotEnd = HEADER_SIZE
+    generation++
+  }
+
+  fun recordInsert(line: Int, column: Int, text: CharSequence) {
+    val buffer = ensureCapacity(13 + text.length * 2)
+    buffer.position(position)
+    buffer.put(TYPE_INSERT)
+    buffer.putInt(line)
+    buffer.putInt(column)
+    buffer.putInt(text.length)
+    for (i in text.indices) buffer.putChar(text[i])
+    setEnd(buffer.position())
+  }
+
+  fun recordDelete(startLine: Int, startColumn: Int, endLine: Int, endColumn: Int) {
+    val buffer = ensureCapacity(17)
+    buffer.position(position)
+    buffer.put(TYPE_DELETE)
+    buffer.putInt(startLine)
+    buffer.putInt(startColumn)
+    buffer.putInt(endLine)
+    buffer.putInt(endColumn)
+    setEnd(buffer.position())
+  }
+
+  /**
+   * Starts replacing all the records with a single snapshot of the [content].
+   *
+   * Nothing is copied here, the text is read and written by [Compaction.write], which should run
+   * in the background, and then replaces the journal in [finishCompaction]. Edits recorded after
+   * the text was read are kept.
+   */
+  fun startCompaction(content: Content): Compaction {
+    val current = checkNotNull(buffer) { "The journal is closed" }
+    val header = ByteArray(HEADER_SIZE)
+    current.duplicate().apply { position(0) }.get(header)
+    return Compaction(header, content, content.documentVersion, position, generation)
+      .also { compaction = it }
+  }
+
+  /**
+   * Replaces the journal with the snapshot written by the [compaction], followed by the edits
+   * recorded since it was started. The compaction is discarded if it failed, or if the journal was
+   * started over or closed in the meantime.
+   */
+  fun finishCompaction(compaction: Compaction) {
+    val current = buffer
+    val tempFile = compaction.tempFile
+    if (this.compaction !== compaction || current == null || compaction.generation != generation ||
+      !compaction.written
+    ) {
+      if (this.compaction === compaction) this.compaction = null
+      tempFile.delete()
+      return
+    }
+    this.compaction = null
+
+    try {
+      RandomAccessFile(tempFile, "rw").channel.use { tempChannel ->
+        val records = current.duplicate()
+        records.limit(position)
+        records.position(compaction.recordsEnd)
+
+        val end = compaction.snapshotEnd + records.remaining()
+        val temp = tempChannel.map(FileChannel.MapMode.READ_WRITE, 0, end.toLong())
+        temp.position(compaction.snapshotEnd)
+        temp.put(records)
+        temp.putInt(END_OFFSET, end)
+        temp.force()
+      }
+    } catch (e: IOException) {
+      tempFile.delete()
+      throw e
+    }
+
+    close()
+    if (!tempFile.renameTo(journalFile)) {
+      tempFile.delete()
+    }
+    position = HEADER_SIZE
+    load()
+  }
+
+  /**
+   * Replays the recorded edits into the [content], as a single batch edit, if the journal was
+   * started from the given state of the file.
+   *
+   * @return Whether any edit was restored.
+   */
+  fun replay(content: Content, baseModified: Long, baseLength: Long): Boolean {
+    val buffer = buffer ?: return false
+    if (buffer.getLong(8) != baseModified || buffer.getLong(16) != baseLength) return false
+    if (!hasRecords) return false
+
+    val view = buffer.duplicate()
+    view.limit(position)
+    view.position(HEADER_SIZE)
+
+    content.beginBatchEdit()
+    try {
+      while (view.hasRemaining()) {
+        when (view.get()) {
+          TYPE_INSERT -> {
+            val line = view.getInt()
+            val column = view.getInt()
+            content.insert(line, column, readText(view))
+          }
+
+          TYPE_DELETE -> {
+            content.delete(view.getInt(), view.getInt(), view.getInt(), view.getInt())
+          }
+
+          TYPE_SNAPSHOT -> {
+            val lastLine = content.lineCount - 1
+            content.replace(0, 0, lastLine, content.getColumnCount(lastLine), readText(view))
+          }
+
+          else -> break
+        }
+      }
+    } catch (e: IndexOutOfBoundsException) {
+      // Truncated or not matching the content anymore, keep what was restored so far
+    } catch (e: BufferUnderflowException) {
+      // The last record was not completely written
+    } finally {
+      content.endBatchEdit()
+    }
+    return true
+  }
+
+  /** Closes and removes the journal file. */
+  fun delete() {
+    close()
+    journalFile.delete()
+  }
+
+  override fun close() {
+    compaction = null
+    buffer = null
+    channel?.close()
+    channel = null
+  }
+
+  private fun readText(view: ByteBuffer): String {
+    val length = view.getInt()
+    if (length < 0 || length > view.remaining() / 2) throw BufferUnderflowException()
+    val chars = CharArray(length) { view.getChar() }
+    return String(chars)
+  }
+
+  private fun setEnd(end: Int) {
+    position = end
+    buffer!!.putInt(END_OFFSET, end)
+  }
+
+  private fun ensureCapacity(bytes: Int): MappedByteBuffer {
+    val current = buffer
+    val required = position + bytes
+    if (current != null && required <= current.capacity()) return current
+
+    val channel = channel ?: RandomAccessFile(journalFile, "rw").channel.also { channel = it }
+    var size = maxOf(current?.capacity() ?: journalFile.length().toInt(), INITIAL_SIZE)
+    while (size < required) size *= 2
+
+    return channel.map(FileChannel.MapMode.READ_WRITE, 0, size.toLong()).also { buffer = it }
+  }
+
+  private fun load() {
+    if (!journalFile.exists() || journalFile.length() < HEADER_SIZE) return
+
+    val buffer = ensureCapacity(0)
+    val end = buffer.getInt(END_OFFSET)
+    val valid = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+    if (!valid || end !in HEADER_SIZE..buffer.capacity()) {
+      setEnd(HEADER_SIZE)
+      snapshotEnd = HEADER_SIZE
+      return
+    }
+    position = end
+    snapshotEnd = if (end > HEADER_SIZE + 5 && buffer.get(HEADER_SIZE) == TYPE_SNAPSHOT) {
+      minOf(HEADER_SIZE + 5L + buffer.getInt(HEADER_SIZE + 1) * 2L, end.toLong()).toInt()
+    } else {
+      HEADER_SIZE
+    }
+  }
+
+  /**
+   * A snapshot of the text being written to a separate file, so a crash in the middle of the
+   * compaction leaves the previous records intact.
+   */
+  inner class Compaction internal constructor(
+    private val header: ByteArray,
+    private val content: Content,
+    private val version: Long,
+    internal val recordsEnd: Int,
+    internal val generation: Int
+  ) {
+    internal val tempFile = File(journalFile.parentFile, "${journalFile.name}.tmp")
+    internal var snapshotEnd = HEADER_SIZE
+      private set
+
+    @Volatile
+    internal var written = false
+      private set
+
+    /**
+     * Reads the text and writes the snapshot, this can be called from any thread. Nothing is
+     * written if the text was edited since the compaction was started, since the snapshot would
+     * then include edits that are also recorded after it.
+     */
+    fun write() {
+      val text = content.toString()
+      if (content.documentVersion != version) return
+
+      snapshotEnd = HEADER_SIZE + 5 + text.length * 2
+      RandomAccessFile(tempFile, "rw").channel.use { tempChannel ->
+        tempChannel.truncate(0)
+        val temp = tempChannel.map(FileChannel.MapMode.READ_WRITE, 0, snapshotEnd.toLong())
+        temp.put(header)
+        temp.position(HEADER_SIZE)
+        temp.put(TYPE_SNAPSHOT)
+        temp.putInt(text.length)
+        temp.asCharBuffer().put(text)
+        temp.putInt(END_OFFSET, snapshotEnd)
+        temp.force()
+      }
+      written = true
+    }
+  }
+
+  companion object {
+    const val COMPACT_THRESHOLD = 8 * 1024 * 1024
+
+    private const val MAGIC = 0x5643534A // VCSJ
+    private const val VERSION = 1
+    private const val END_OFFSET = 24
+    private const val HEADER_SIZE = 32
+    private const val INITIAL_SIZE = 64 * 1024
+
+    private const val TYPE_INSERT: Byte = 1
+    private const val TYPE_DELETE: Byte = 2
+    private const val TYPE_SNAPSHOT: Byte = 3
+
+    /** Opens the journal of [file] stored in [journalDir], loading its records if it exists. */
+    @JvmStatic
+    fun open(journalDir: File, file: File): EditJournal {
+      journalDir.mkdirs()
+      return EditJournal(File(journalDir, "${hash(file.absolutePath)}.journal")).apply { load() }
+    }
+
+    private fun hash(path: String): String {
+      val digest = MessageDigest.getInstance("MD5").digest(path.toByteArray())
+      return digest.joinToString("") { "%02x".format(it) }
+    }
+  }
+}
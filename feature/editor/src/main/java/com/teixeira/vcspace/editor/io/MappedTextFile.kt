@@ -0,0 +1,154 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+
+/**
+ * Read-only view of a text file backed by a [MappedByteBuffer].
+ *
+ * Lines are located through an offset index built by [indexLines] and decoded one at a time when
+ * requested, so the file content is never materialized as a whole. Files larger than 2 GB can't be
+ * mapped in a single buffer and are rejected.
+ */
+class MappedTextFile private constructor(
+  val file: File,
+  private val buffer: MappedByteBuffer,
+  private val charset: Charset
+) : Closeable {
+
+  private var lineOffsets = IntArray(0)
+
+  /** Size of the mapped file in bytes. */
+  val size: Int = buffer.capacity()
+
+  /** Amount of lines of the file, only valid after [indexLines]. */
+  @Volatile
+  var lineCount = 0
+    private set
+
+  /** Whether the line index has been built. */
+  @Volatile
+  var isIndexed = false
+    private set
+
+  /**
+   * Builds the line offset index by scanning the mapped region for line feeds. This must be called
+   * from a background thread before any line is read.
+   */
+  @Synchronized
+  fun indexLines() {
+    if (isIndexed) return
+
+    var offsets = IntArray(INITIAL_INDEX_CAPACITY)
+    var count = 1
+    val view = buffer.duplicate()
+    for (i in 0 until size) {
+      if (view.get(i) == LF) {
+        if (count == offsets.size) offsets = offsets.copyOf(offsets.size * 2)
+        offsets[count++] = i + 1
+      }
+    }
+
+    lineOffsets = offsets
+    lineCount = count
+    isIndexed = true
+  }
+
+  /**
+   * Decodes the line at the given index, without its line separator. Very long lines are truncated
+   * to [MAX_LINE_BYTES].
+   */
+  fun getLine(line: Int): String {
+    val start = lineOffsets[line]
+    var end = if (line + 1 < lineCount) lineOffsets[line + 1] else size
+
+    val view = buffer.duplicate()
+    if (end > start && view.get(end - 1) == LF) end--
+    if (end > start && view.get(end - 1) == CR) end--
+    end = end.coerceAtMost(start + MAX_LINE_BYTES)
+
+    view.limit(end)
+    view.position(start)
+    return charset.decode(view).toString()
+  }
+
+  /** Returns the line containing the given byte offset. */
+  fun lineOfOffset(offset: Int): Int {
+    var low = 0
+    var high = lineCount - 1
+    while (low < high) {
+      val mid = (low + high + 1) ushr 1
+      if (lineOffsets[mid] <= offset) low = mid else high = mid - 1
+    }
+    return low
+  }
+
+  /**
+   * Searches for the literal [query] starting at the beginning of [fromLine], wrapping around to
+   * the start of the file.
+   *
+   * @return The line of the next match, or -1 if there are no matches.
+   */
+  fun findNext(query: String, fromLine: Int): Int {
+    if (query.isEmpty() || lineCount == 0) return -1
+
+    val pattern = BytePattern(query.toByteArray(charset))
+    val view = buffer.duplicate()
+    val from = lineOffsets[fromLine.coerceIn(0, lineCount - 1)]
+    var offset = pattern.indexOf(view, from, size)
+    if (offset < 0) {
+      offset = pattern.indexOf(view, 0, (from + pattern.size - 1).coerceAtMost(size))
+    }
+    return if (offset < 0) -1 else lineOfOffset(offset)
+  }
+
+  override fun close() {
+    lineOffsets = IntArray(0)
+    lineCount = 0
+    isIndexed = false
+  }
+
+  companion object {
+    const val MAX_LINE_BYTES = 16 * 1024
+
+    private const val INITIAL_INDEX_CAPACITY = 1024
+    private const val LF: Byte = 10
+    private const val CR: Byte = 13
+
+    /** Maps the given file in read-only mode. */
+    @JvmStatic
+    @JvmOverloads
+    fun open(file: File, charset: Charset = Charsets.UTF_8): MappedTextFile {
+      val length = file.length()
+      if (length > Int.MAX_VALUE) {
+        throw IOException("File is too large to be mapped: ${file.path}")
+      }
+
+      // The mapping stays valid after the channel is closed.
+      val buffer = RandomAccessFile(file, "r").use {
+        it.channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+      }
+      return MappedTextFile(file, buffer, charset)
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import io.github.rosemoe.sora.text.LineSeparator
+import java.nio.charset.Charset
+
+/**
+ * Encoding and line ending of a text file.
+ *
+ * @param charset Charset of the text, without the byte order mark.
+ * @param bom Byte order mark found at the start of the file, written back when it is saved.
+ * @param lineSeparator Line separator used by most of the lines, used for new lines.
+ */
+data class TextFileFormat(
+  val charset: Charset,
+  val bom: ByteArray = NO_BOM,
+  val lineSeparator: LineSeparator = LineSeparator.LF
+) {
+
+  /** Whether line breaks are single `\n` or `\r` bytes, as expected by [MappedTextFile]. */
+  val isAsciiCompatible: Boolean
+    get() = charset == Charsets.UTF_8 || charset == Charsets.ISO_8859_1
+
+  override fun equals(other: Any?): Boolean {
+    if (this === other) return true
+    if (other !is TextFileFormat) return false
+    return charset == other.charset &&
+      bom.contentEquals(other.bom) &&
+      lineSeparator == other.lineSeparator
+  }
+
+  override fun hashCode(): Int {
+    var result = charset.hashCode()
+    result = 31 * result + bom.contentHashCode()
+    result = 31 * result + lineSeparator.hashCode()
+    return result
+  }
+
+  companion object {
+    private val NO_BOM = ByteArray(0)
+
+    @JvmField
+    val DEFAULT = TextFileFormat(Charsets.UTF_8)
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import io.github.rosemoe.sora.text.LineSeparator
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+import java.nio.charset.CodingErrorAction
+
+/**
+ * Detects the [TextFileFormat] of a file from a sample of its first [SAMPLE_SIZE] bytes.
+ *
+ * The charset is taken from the byte order mark if there is one. Otherwise the sample is checked
+ * for UTF-16 text without a mark and then for valid UTF-8, falling back to ISO-8859-1, which can
+ * decode any byte. The line separator is the most common one in the sample.
+ *
+ * Results are cached by path and modification time, so reopening a file skips the detection.
+ */
+object TextFormatDetector {
+
+  const val SAMPLE_SIZE = 64 * 1024
+
+  private const val MAX_CACHED_FILES = 256
+
+  private val UTF_8_BOM = byteArrayOf(0xEF.toByte(), 0xBB.toByte(), 0xBF.toByte())
+  private val UTF_16BE_BOM = byteArrayOf(0xFE.toByte(), 0xFF.toByte())
+  private val UTF_16LE_BOM = byteArrayOf(0xFF.toByte(), 0xFE.toByte())
+  private val UTF_32LE_BOM = byteArrayOf(0xFF.toByte(), 0xFE.toByte(), 0, 0)
+  private val UTF_32BE_BOM = byteArrayOf(0, 0, 0xFE.toByte(), 0xFF.toByte())
+
+  private class CacheEntry(val lastModified: Long, val length: Long, val format: TextFileFormat)
+
+  private val cache = object : LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CacheEntry>?): Boolean {
+      return size > MAX_CACHED_FILES
+    }
+  }
+
+  /** Detects the format of the given [file], or returns the cached one if it didn't change. */
+  fun detect(file: File): TextFileFormat {
+    val lastModified = file.lastModified()
+    val length = file.length()
+    synchronized(cache) {
+      val entry = cache[file.path]
+      if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+        return entry.format
+      }
+    }
+
+    val format = try {
+      val sample = ByteArray(minOf(length, SAMPLE_SIZE.toLong()).toInt())
+      var read = 0
+      FileInputStream(file).use { input ->
+        while (read < sample.size) {
+          val count = input.read(sample, read, sample.size - read)
+          if (count < 0) break
+          read += count
+        }
+      }
+      detect(sample, read)
+    } catch (e: IOException) {
+      e.printStackTrace()
+      TextFileFormat.DEFAULT
+    }
+
+    synchronized(cache) {
+      cache[file.path] = CacheEntry(lastModified, length, format)
+    }
+    return format
+  }
+
+  /** Records the [format] a file has just been written with, so it is not detected again. */
+  fun remember(file: File, format: TextFileFormat) {
+    synchronized(cache) {
+      cache[file.path] = CacheEntry(file.lastModified(), file.length(), format)
+    }
+  }
+
+  /** Detects the format of a sample of the first [length] bytes of a file. */
+  fun detect(sample: ByteArray, length: Int): TextFileFormat {
+    val bom = detectBom(sample, length)
+    val charset = when {
+      bom === UTF_8_BOM -> Charsets.UTF_8
+      bom === UTF_32LE_BOM -> Charset.forName("UTF-32LE")
+      bom === UTF_32BE_BOM -> Charset.forName("UTF-32BE")
+      bom === UTF_16LE_BOM -> Charsets.UTF_16LE
+      bom === UTF_16BE_BOM -> Charsets.UTF_16BE
+      else -> detectCharset(sample, length)
+    }
+
+    val separator = detectLineSeparator(sample, bom?.size ?: 0, length, charset)
+    return if (bom != null) {
+      TextFileFormat(charset, bom.copyOf(), separator)
+    } else TextFileFormat(charset, lineSeparator = separator)
+  }
+
+  private fun detectBom(sample: ByteArray, length: Int): ByteArray? {
+    // UTF-32LE must be checked before UTF-16LE, they share the first two bytes
+    val boms = arrayOf(UTF_8_BOM, UTF_32LE_BOM, UTF_32BE_BOM, UTF_16LE_BOM, UTF_16BE_BOM)
+    return boms.firstOrNull { bom ->
+      length >= bom.size && bom.indices.all { sample[it] == bom[it] }
+    }
+  }
+
+  private fun detectCharset(sample: ByteArray, length: Int): Charset {
+    // ASCII text in UTF-16 is also valid UTF-8, so look for the zero high bytes first
+    var evenZeros = 0
+    var oddZeros = 0
+    for (i in 0 until length) {
+      if (sample[i].toInt() == 0) {
+        if (i % 2 == 0) evenZeros++ else oddZeros++
+      }
+    }
+    val units = length / 2
+    if (units > 0) {
+      if (oddZeros > units * 3 / 10 && evenZeros < units / 20) return Charsets.UTF_16LE
+      if (evenZeros > units * 3 / 10 && oddZeros < units / 20) return Charsets.UTF_16BE
+    }
+
+    return if (isValidUtf8(sample, length)) Charsets.UTF_8 else Charsets.ISO_8859_1
+  }
+
+  /**
+   * Checks that the sample is well-formed UTF-8. A sequence cut by the end of the sample is
+   * accepted, the file may continue it.
+   */
+  private fun isValidUtf8(sample: ByteArray, length: Int): Boolean {
+    var i = 0
+    while (i < length) {
+      val b = sample[i].toInt() and 0xFF
+      if (b < 0x80) {
+        i++
+        continue
+      }
+
+      val continuationBytes: Int
+      val min: Int
+      when {
+        b in 0xC2..0xDF -> {
+          continuationBytes = 1
+          min = 0x80
+        }
+
+        b in 0xE0..0xEF -> {
+          continuationBytes = 2
+          min = 0x800
+        }
+
+        b in 0xF0..0xF4 -> {
+          continuationBytes = 3
+          min = 0x10000
+        }
+
+        else -> return false
+      }
+
+      var codePoint = b and (0x3F shr continuationBytes)
+      for (j in 1..continuationBytes) {
+        if (i + j >= length) return true
+        val c = sample[i + j].toInt() and 0xFF
+        if (c and 0xC0 != 0x80) return false
+        codePoint = (codePoint shl 6) or (c and 0x3F)
+      }
+
+      // Overlong encodings, surrogates and code points past U+10FFFF
+      if (codePoint < min || codePoint in 0xD800..0xDFFF || codePoint > 0x10FFFF) return false
+      i += continuationBytes + 1
+    }
+    return true
+  }
+
+  private fun detectLineSeparator(
+    sample: ByteArray,
+    offset: Int,
+    length: Int,
+    charset: Charset
+  ): LineSeparator {
+    val chars = charset
+      .newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+      .decode(ByteBuffer.wrap(sample, offset, length - offset))
+
+    var lf = 0
+    var cr = 0
+    var crlf = 0
+    var i = 0
+    val end = chars.limit()
+    while (i < end) {
+      when (chars[i]) {
+        '\n' -> lf++
+        '\r' -> {
+          if (i + 1 < end && chars[i + 1] == '\n') {
+            crlf++
+            i++
+          } else if (i + 1 < end) {
+            cr++
+          }
+        }
+      }
+      i++
+    }
+
+    return when {
+      crlf > lf && crlf >= cr -> LineSeparator.CRLF
+      cr > lf && cr > crlf -> LineSeparator.CR
+      else -> LineSeparator.LF
+    }
+  }
+}
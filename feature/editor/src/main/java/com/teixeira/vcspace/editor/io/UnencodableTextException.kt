@@ -0,0 +1,30 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.IOException
+import java.nio.charset.Charset
+
+/**
+ * Thrown when the text contains characters that can't be encoded with [charset], so saving it
+ * would lose them.
+ *
+ * @param line Index of the first line with such a character.
+ */
+class UnencodableTextException(
+  val charset: Charset,
+  val line: Int
+) : IOException("Line ${line + 1} can't be encoded as ${charset.name()}")
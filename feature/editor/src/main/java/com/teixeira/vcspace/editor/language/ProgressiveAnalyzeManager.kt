@@ -0,0 +1,347 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.language
+
+import android.os.Bundle
+import android.os.SystemClock
+import io.github.rosemoe.sora.lang.analysis.AnalyzeManager
+import io.github.rosemoe.sora.lang.analysis.AsyncIncrementalAnalyzeManager
+import io.github.rosemoe.sora.lang.analysis.StyleReceiver
+import io.github.rosemoe.sora.lang.styling.MappedSpans
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.lang.styling.Styles
+import io.github.rosemoe.sora.lang.styling.TextStyle
+import io.github.rosemoe.sora.text.CharPosition
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentReference
+import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.yield
+
+/**
+ * Highlights a large document progressively, using the line tokenizer of another analyzer.
+ *
+ * Instead of tokenizing the whole document from the top, the visible lines plus [margin] lines
+ * around them are tokenized first, starting from the initial state if the lines above are not
+ * known yet. The rest of the document is then tokenized in order while the editor is idle, which
+ * also fixes the lines of the viewport that were tokenized with a guessed state.
+ *
+ * All the work happens on a single background thread, edits are applied to a copy of the text
+ * in the order they were made.
+ *
+ * With a [snapshot], the tokens saved the last time the same text was completely tokenized are
+ * shown until the lines are tokenized again. The first lines tokenized in order are compared with
+ * them, and if they differ the rest of the snapshot is dropped. The snapshot is only written again
+ * if the tokens of a line differ from it.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class ProgressiveAnalyzeManager(
+  tokenizer: AsyncIncrementalAnalyzeManager<*, *>,
+  private val margin: Int = DEFAULT_MARGIN,
+  private val idleDelay: Long = DEFAULT_IDLE_DELAY,
+  private val snapshot: TokenSnapshot? = null
+) : AnalyzeManager {
+
+  /**
+   * Tokenization result of a line.
+   *
+   * @param exact Whether the line was tokenized with the real state of the line above.
+   * @param restored Whether the spans come from the [snapshot], the line has no state then.
+   */
+  private class LineTokens(
+    val spans: List<Span>,
+    val state: Any?,
+    val exact: Boolean,
+    val restored: Boolean = false
+  )
+
+  @Suppress("UNCHECKED_CAST")
+  private val tokenizer = tokenizer as AsyncIncrementalAnalyzeManager<Any?, Any?>
+
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default.limitedParallelism(1))
+  private val wakeUp = Channel<Unit>(Channel.CONFLATED)
+  private var job: Job? = null
+
+  @Volatile
+  private var receiver: StyleReceiver? = null
+
+  @Volatile
+  private var firstVisibleLine = 0
+
+  @Volatile
+  private var lastVisibleLine = 0
+
+  @Volatile
+  private var lastActivityTime = 0L
+
+  // Only accessed from the background thread
+  private var text: Content? = null
+  private val lines = ArrayList<LineTokens?>()
+
+  /** Lines before this one are tokenized with their real state. */
+  private var exactLines = 0
+
+  /** Whether lines of the viewport changed since the styles were last sent to the editor. */
+  private var viewportChanged = false
+
+  /** Lines tokenized in order since the styles were last sent to the editor. */
+  private var pendingLines = 0
+
+  /** Amount of lines to tokenize in order before sending the styles again. */
+  private var publishInterval = MIN_PUBLISH_INTERVAL
+
+  private var lastPublishTime = 0L
+
+  /** Lines restored from the snapshot left to compare with their new tokens. */
+  private var linesToValidate = 0
+
+  /** Whether the tokens of the whole text have to be saved once it is tokenized. */
+  private var snapshotPending = false
+
+  /** Whether the tokens differ from the snapshot, which is then written again. */
+  private var snapshotChanged = true
+
+  /** Sets the visible lines of the editor, which are tokenized before any other line. */
+  fun setViewport(firstLine: Int, lastLine: Int) {
+    firstVisibleLine = firstLine
+    lastVisibleLine = lastLine
+    onActivity()
+  }
+
+  override fun setReceiver(receiver: StyleReceiver?) {
+    this.receiver = receiver
+  }
+
+  override fun reset(content: ContentReference, extraArguments: Bundle) {
+    val copy = content.reference.copyText(false)
+    job?.cancel()
+    job = scope.launch {
+      text = copy
+      lines.clear()
+      repeat(copy.lineCount) { lines.add(null) }
+      exactLines = 0
+      publishInterval = MIN_PUBLISH_INTERVAL
+      pendingLines = 0
+      viewportChanged = false
+      lastPublishTime = 0L
+      restoreSnapshot(copy)
+      tokenize()
+    }
+  }
+
+  override fun insert(start: CharPosition, end: CharPosition, insertedContent: CharSequence) {
+    onActivity()
+    scope.launch {
+      val text = text ?: return@launch
+      text.insert(start.line, start.column, insertedContent)
+      for (line in start.line + 1..end.line) lines.add(line, null)
+      invalidate(start.line, end.line)
+      snapshotChanged = true
+    }
+  }
+
+  override fun delete(start: CharPosition, end: CharPosition, deletedContent: CharSequence) {
+    onActivity()
+    scope.launch {
+      val text = text ?: return@launch
+      text.delete(start.line, start.column, end.line, end.column)
+      if (end.line > start.line) lines.subList(start.line + 1, end.line + 1).clear()
+      invalidate(start.line, start.line)
+      snapshotChanged = true
+    }
+  }
+
+  override fun rerun() {
+    job?.cancel()
+    job = scope.launch {
+      for (i in lines.indices) lines[i] = null
+      exactLines = 0
+      publishInterval = MIN_PUBLISH_INTERVAL
+      pendingLines = 0
+      linesToValidate = 0
+      snapshotPending = snapshot != null
+      snapshotChanged = true
+      tokenize()
+    }
+  }
+
+  override fun destroy() {
+    receiver = null
+    scope.cancel()
+  }
+
+  private fun onActivity() {
+    lastActivityTime = SystemClock.uptimeMillis()
+    wakeUp.trySend(Unit)
+  }
+
+  private fun invalidate(startLine: Int, endLine: Int) {
+    for (line in startLine..endLine) lines[line] = null
+    exactLines = minOf(exactLines, startLine)
+  }
+
+  private suspend fun tokenize() {
+    while (currentCoroutineContext().isActive) {
+      val text = text ?: return
+      val lineCount = text.lineCount
+
+      // The viewport goes first, even while the user is typing or scrolling
+      val start = (firstVisibleLine - margin).coerceIn(0, lineCount - 1)
+      val end = (lastVisibleLine + margin).coerceIn(start, lineCount - 1)
+      tokenizeViewport(text, start, end)
+
+      // Rebuilding the styles costs a pass over all the lines, don't do it on every keystroke
+      val now = SystemClock.uptimeMillis()
+      if (viewportChanged && now - lastPublishTime >= idleDelay) publish(text)
+
+      val idleTime = now - lastActivityTime
+      if (idleTime < idleDelay) {
+        delay(idleDelay - idleTime)
+        continue
+      }
+      if (viewportChanged) publish(text)
+
+      if (exactLines >= lineCount) {
+        if (snapshotPending) {
+          snapshotPending = false
+          if (snapshotChanged) snapshot?.write(text, lines.map { it?.spans })
+        }
+        wakeUp.receive()
+        continue
+      }
+
+      tokenizeInOrder(text, minOf(exactLines + CHUNK_LINES, lineCount))
+      if (exactLines >= lineCount || pendingLines >= publishInterval) {
+        publish(text)
+        publishInterval = minOf(publishInterval * 2, MAX_PUBLISH_INTERVAL)
+      }
+      yield()
+    }
+  }
+
+  private fun tokenizeViewport(text: Content, start: Int, end: Int) {
+    for (line in start..end) {
+      if (lines[line] != null) continue
+
+      // Lines below an unknown line start from the initial state, they are fixed later
+      val state = (if (line > 0) lines[line - 1]?.state else null) ?: tokenizer.initialState
+      val exact = line == exactLines
+      lines[line] = tokenizeLine(text, line, state, exact)
+      if (exact) exactLines++
+      viewportChanged = true
+    }
+  }
+
+  /** Tokenizes the lines after [exactLines] with their real state, up to [limit]. */
+  private fun tokenizeInOrder(text: Content, limit: Int) {
+    while (exactLines < limit) {
+      val line = exactLines
+      val state = if (line > 0) lines[line - 1]!!.state else tokenizer.initialState
+      val old = lines[line]
+      val tokens = tokenizeLine(text, line, state, exact = true)
+      lines[line] = tokens
+      exactLines++
+      pendingLines++
+
+      if (old != null && old.restored) {
+        val same = sameSpans(old.spans, tokens.spans)
+        if (!same) snapshotChanged = true
+        if (linesToValidate > 0) {
+          linesToValidate--
+          if (!same) dropRestoredLines()
+        }
+      } else snapshotChanged = true
+
+      // The state converged with the previous tokenization, the following lines are still valid
+      if (old != null && old.exact && tokenizer.stateEquals(old.state, tokens.state)) {
+        while (exactLines < lines.size && lines[exactLines]?.exact == true) exactLines++
+      }
+    }
+  }
+
+  private fun restoreSnapshot(text: Content) {
+    snapshotPending = snapshot != null
+    snapshotChanged = true
+    linesToValidate = 0
+    val restored = snapshot?.read(text) ?: return
+    snapshotChanged = false
+
+    for (line in restored.indices) {
+      lines[line] = LineTokens(restored[line], null, exact = false, restored = true)
+    }
+    linesToValidate = VALIDATED_LINES
+    viewportChanged = true
+  }
+
+  /** The snapshot doesn't match the tokenizer, the lines are tokenized again. */
+  private fun dropRestoredLines() {
+    for (line in lines.indices) {
+      if (lines[line]?.restored == true) lines[line] = null
+    }
+    linesToValidate = 0
+    viewportChanged = true
+  }
+
+  private fun sameSpans(first: List<Span>, second: List<Span>): Boolean {
+    if (first.size != second.size) return false
+    return first.indices.all { i ->
+      first[i].column == second[i].column && first[i].style == second[i].style
+    }
+  }
+
+  private fun tokenizeLine(text: Content, line: Int, state: Any?, exact: Boolean): LineTokens {
+    val result = tokenizer.tokenizeLine(text.getLine(line), state, line)
+    return LineTokens(tokenizer.generateSpansForLine(result), result.state, exact)
+  }
+
+  private fun publish(text: Content) {
+    val builder = MappedSpans.Builder(text.lineCount)
+    for (line in lines.indices) {
+      val spans = lines[line]?.spans
+      if (spans.isNullOrEmpty()) {
+        builder.add(line, Span.obtain(0, DEFAULT_STYLE))
+      } else spans.forEach { builder.add(line, it.copy()) }
+    }
+    builder.determine(lines.size - 1)
+
+    viewportChanged = false
+    pendingLines = 0
+    lastPublishTime = SystemClock.uptimeMillis()
+    receiver?.setStyles(this, Styles(builder.build()))
+  }
+
+  companion object {
+    const val DEFAULT_MARGIN = 200
+    const val DEFAULT_IDLE_DELAY = 300L
+
+    private const val CHUNK_LINES = 500
+    private const val MIN_PUBLISH_INTERVAL = 2000
+    private const val MAX_PUBLISH_INTERVAL = 64000
+    private const val VALIDATED_LINES = 50
+
+    private val DEFAULT_STYLE = TextStyle.makeStyle(EditorColorScheme.TEXT_NORMAL)
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.language
+
+import io.github.rosemoe.sora.lang.Language
+import io.github.rosemoe.sora.lang.analysis.AnalyzeManager
+import io.github.rosemoe.sora.lang.analysis.AsyncIncrementalAnalyzeManager
+import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
+
+/**
+ * A [TextMateLanguage] whose highlighting is computed by a [ProgressiveAnalyzeManager], for files
+ * too large to be tokenized at once. Everything else is handled by the TextMate language.
+ */
+class ProgressiveLanguage(
+  val textMateLanguage: TextMateLanguage,
+  margin: Int = ProgressiveAnalyzeManager.DEFAULT_MARGIN,
+  snapshot: TokenSnapshot? = null
+) : Language by textMateLanguage {
+
+  val analyzer = ProgressiveAnalyzeManager(
+    textMateLanguage.analyzeManager as AsyncIncrementalAnalyzeManager<*, *>,
+    margin,
+    snapshot = snapshot
+  )
+
+  override fun getAnalyzeManager(): AnalyzeManager = analyzer
+
+  override fun destroy() {
+    analyzer.destroy()
+    textMateLanguage.destroy()
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.language
+
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.text.Content
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+
+/**
+ * Tokens of a large file saved to disk, so reopening it shows the highlighting of the viewport at
+ * once instead of waiting for the tokenizer.
+ *
+ * A snapshot only applies to the exact text it was taken from, checked with the size, line count
+ * and a hash of the text, and to the same [version], which identifies the grammar and theme the
+ * spans were computed with.
+ *
+ * Styles repeat a lot, so each span is stored as the distance to the previous one and an index in
+ * a table of the styles used by the file.
+ */
+class TokenSnapshot(
+  private val snapshotFile: File,
+  private val version: () -> String
+) {
+
+  /** Reads the spans of each line if the snapshot was taken from [text], otherwise null. */
+  fun read(text: Content): List<List<Span>>? {
+    if (!snapshotFile.isFile) return null
+
+    return try {
+      val buffer = ByteBuffer.wrap(snapshotFile.readBytes())
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return null
+      if (readString(buffer) != version()) return null
+      if (buffer.getInt() != text.length || buffer.getInt() != text.lineCount) return null
+      if (buffer.getLong() != hash(text)) return null
+
+      val styles = LongArray(buffer.getInt()) { buffer.getLong() }
+      // Kept by trim as recently used, a snapshot that still matches is not written again
+      snapshotFile.setLastModified(System.currentTimeMillis())
+      List(text.lineCount) {
+        val count = readVarInt(buffer)
+        if (count > buffer.remaining()) throw BufferUnderflowException()
+        var column = 0
+        List(count) {
+          column += readVarInt(buffer)
+          Span.obtain(column, styles[readVarInt(buffer)])
+        }
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+      null
+    } catch (e: BufferUnderflowException) {
+      null
+    } catch (e: IndexOutOfBoundsException) {
+      null
+    }
+  }
+
+  /** Saves the spans of each line of [text], replacing the previous snapshot. */
+  fun write(text: Content, lines: List<List<Span>?>) {
+    val styleIndexes = HashMap<Long, Int>()
+    val body = ByteArrayOutputStream(lines.size * 16)
+    for (spans in lines) {
+      writeVarInt(body, spans?.size ?: 0)
+      var column = 0
+      spans?.forEach { span ->
+        writeVarInt(body, span.column - column)
+        writeVarInt(body, styleIndexes.getOrPut(span.style) { styleIndexes.size })
+        column = span.column
+      }
+    }
+
+    val styles = LongArray(styleIndexes.size)
+    styleIndexes.forEach { (style, index) -> styles[index] = style }
+
+    try {
+      snapshotFile.parentFile?.mkdirs()
+      val tempFile = File(snapshotFile.parentFile, "${snapshotFile.name}.tmp")
+      DataOutputStream(tempFile.outputStream().buffered()).use { output ->
+        output.writeInt(MAGIC)
+        output.writeInt(FORMAT_VERSION)
+        val versionBytes = version().toByteArray(Charsets.UTF_8)
+        output.writeInt(versionBytes.size)
+        output.write(versionBytes)
+        output.writeInt(text.length)
+        output.writeInt(text.lineCount)
+        output.writeLong(hash(text))
+        output.writeInt(styles.size)
+        styles.forEach { output.writeLong(it) }
+        body.writeTo(output)
+      }
+      if (!tempFile.renameTo(snapshotFile)) tempFile.delete()
+      trim(snapshotFile.parentFile ?: return)
+    } catch (e: IOException) {
+      e.printStackTrace()
+    }
+  }
+
+  fun delete() {
+    snapshotFile.delete()
+  }
+
+  private fun readString(buffer: ByteBuffer): String {
+    val length = buffer.getInt()
+    if (length < 0 || length > buffer.remaining()) throw BufferUnderflowException()
+    val bytes = ByteArray(length).also { buffer.get(it) }
+    return String(bytes, Charsets.UTF_8)
+  }
+
+  private fun readVarInt(buffer: ByteBuffer): Int {
+    var value = 0
+    var shift = 0
+    while (true) {
+      val byte = buffer.get().toInt()
+      value = value or ((byte and 0x7F) shl shift)
+      if (byte and 0x80 == 0) return value
+      shift += 7
+      if (shift > 28) throw IndexOutOfBoundsException("Malformed varint")
+    }
+  }
+
+  private fun writeVarInt(output: ByteArrayOutputStream, value: Int) {
+    var remaining = value
+    while (remaining and 0x7F.inv() != 0) {
+      output.write((remaining and 0x7F) or 0x80)
+      remaining = remaining ushr 7
+    }
+    output.write(remaining)
+  }
+
+  companion object {
+    private const val MAGIC = 0x5643534B // VCSK
+    private const val FORMAT_VERSION = 1
+
+    /** Maximum number of snapshots kept in a directory, the least recently used go first. */
+    private const val MAX_SNAPSHOTS = 32
+
+    /** Returns the snapshot of [file] stored in [snapshotDir]. */
+    @JvmStatic
+    fun forFile(snapshotDir: File, file: File, version: () -> String): TokenSnapshot {
+      val name = "${file.absolutePath.hashCode().toUInt()}_${file.name}.tokens"
+      return TokenSnapshot(File(snapshotDir, name), version)
+    }
+
+    /** Removes the oldest snapshots of [snapshotDir] past [MAX_SNAPSHOTS]. */
+    private fun trim(snapshotDir: File) {
+      val snapshots = snapshotDir.listFiles { file -> file.name.endsWith(".tokens") } ?: return
+      snapshots.sortedByDescending { it.lastModified() }.drop(MAX_SNAPSHOTS).forEach { it.delete() }
+    }
+
+    /** FNV-1a hash of the characters of [text], including the line separators. */
+    private fun hash(text: Content): Long {
+      var hash = -0x340d631b7bdddcdbL
+      for (line in 0 until text.lineCount) {
+        val contentLine = text.getLine(line)
+        for (i in 0 until contentLine.length) {
+          hash = (hash xor contentLine[i].code.toLong()) * 0x100000001b3L
+        }
+        val separator = contentLine.lineSeparator.content
+        for (i in separator.indices) {
+          hash = (hash xor separator[i].code.toLong()) * 0x100000001b3L
+        }
+      }
+      return hash
+    }
+  }
+}
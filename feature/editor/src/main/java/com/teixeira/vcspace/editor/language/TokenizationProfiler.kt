@@ -0,0 +1,82 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.language
+
+import com.google.gson.GsonBuilder
+import org.eclipse.tm4e.core.grammar.IGrammar
+import org.eclipse.tm4e.core.grammar.IStateStack
+
+/**
+ * Measures how long the tm4e tokenizer used by the editor takes to tokenize files, outside of the
+ * editor.
+ *
+ * The time of each line is measured and added up per grammar. tm4e compiles its regex scanners
+ * inside the grammar and has no hook to wrap them, so the time spent in each rule is not known.
+ */
+class TokenizationProfiler {
+
+  /** Time to tokenize the lines of the files of a grammar. */
+  data class GrammarStats(val scope: String, val lines: Long, val timeNanos: Long)
+
+  data class Profile(
+    val files: Int,
+    val lines: Long,
+    val timeNanos: Long,
+    val grammars: List<GrammarStats>
+  ) {
+    fun toJson(): String = GsonBuilder().setPrettyPrinting().create().toJson(this)
+  }
+
+  private class Counter {
+    var lines = 0L
+    var timeNanos = 0L
+  }
+
+  private val counters = HashMap<String, Counter>()
+  private var files = 0
+  private var lines = 0L
+  private var timeNanos = 0L
+
+  /**
+   * Tokenizes [text], a file of [grammar].
+   *
+   * @param isActive Checked between lines, profiling stops when it returns false.
+   */
+  fun profile(grammar: IGrammar, text: Sequence<String>, isActive: () -> Boolean = { true }) {
+    var state: IStateStack? = null
+    val counter = counters.getOrPut(grammar.scopeName) { Counter() }
+    files++
+    for (line in text) {
+      if (!isActive()) return
+
+      val start = System.nanoTime()
+      state = grammar.tokenizeLine(line, state, null).ruleStack
+      val elapsed = System.nanoTime() - start
+      lines++
+      timeNanos += elapsed
+      counter.lines++
+      counter.timeNanos += elapsed
+    }
+  }
+
+  /** Returns the results so far, the most expensive grammars first. */
+  fun result(): Profile {
+    val grammars = counters.map { (scope, counter) ->
+      GrammarStats(scope, counter.lines, counter.timeNanos)
+    }.sortedByDescending { it.timeNanos }
+    return Profile(files, lines, timeNanos, grammars)
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import com.teixeira.vcspace.utils.INVALID_TEXT_FILES_REGEX
+import java.io.File
+import java.io.IOException
+import java.nio.file.DirectoryIteratorException
+import java.nio.file.Files
+import java.nio.file.LinkOption.NOFOLLOW_LINKS
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Walks a directory tree in parallel on a work-stealing [ForkJoinPool].
+ *
+ * Each directory is a task that forks its subdirectories and then visits its own files, so the
+ * files of a directory are visited by a single thread. Every entry is stat'ed once and symbolic
+ * links are not followed, which also avoids cycles. The callbacks are called from the worker
+ * threads, concurrently.
+ */
+internal class FileWalker(
+  private val includeHidden: Boolean,
+  private val shouldStop: () -> Boolean
+) {
+
+  /** Walks the tree under [root], blocking until it is done or [shouldStop] returns true. */
+  fun walk(
+    root: File,
+    onDirectory: ((File) -> Unit)? = null,
+    onFile: (File, BasicFileAttributes) -> Unit
+  ) {
+    if (!root.isDirectory) return
+    pool.invoke(DirectoryTask(root.toPath(), onDirectory, onFile))
+  }
+
+  private inner class DirectoryTask(
+    private val dir: Path,
+    private val onDirectory: ((File) -> Unit)?,
+    private val onFile: (File, BasicFileAttributes) -> Unit
+  ) : RecursiveAction() {
+
+    override fun compute() {
+      if (shouldStop()) return
+      onDirectory?.invoke(dir.toFile())
+
+      val subtasks = ArrayList<DirectoryTask>()
+      val files = ArrayList<Pair<Path, BasicFileAttributes>>()
+      try {
+        Files.newDirectoryStream(dir).use { entries ->
+          for (entry in entries) {
+            if (!includeHidden && entry.fileName.toString().startsWith('.')) continue
+
+            val attributes = try {
+              Files.readAttributes(entry, BasicFileAttributes::class.java, NOFOLLOW_LINKS)
+            } catch (e: IOException) {
+              continue
+            }
+            if (attributes.isDirectory) {
+              subtasks.add(DirectoryTask(entry, onDirectory, onFile).also { it.fork() })
+            } else if (attributes.isRegularFile) {
+              files.add(entry to attributes)
+            }
+          }
+        }
+      } catch (e: IOException) {
+        // Not readable, visit what was listed
+      } catch (e: DirectoryIteratorException) {
+        // Failed while listing, visit what was listed
+      } catch (e: SecurityException) {
+        // Not readable, skip it
+      }
+
+      for ((file, attributes) in files) {
+        if (shouldStop()) break
+        onFile(file.toFile(), attributes)
+      }
+      for (subtask in subtasks) subtask.join()
+    }
+  }
+
+  companion object {
+    private val pool by lazy { ForkJoinPool(Runtime.getRuntime().availableProcessors()) }
+
+    /** Whether a file may contain text, judging by its name. */
+    fun isTextFileName(name: String): Boolean {
+      return !INVALID_TEXT_FILES_REGEX.matches(name.lowercase())
+    }
+
+    /**
+     * Runs [action] on each of the [items] in parallel, blocking until all are done or
+     * [shouldStop] returns true.
+     */
+    fun <T> forEach(items: List<T>, shouldStop: () -> Boolean, action: (T) -> Unit) {
+      if (items.isNotEmpty()) pool.invoke(ListTask(items, 0, items.size, shouldStop, action))
+    }
+  }
+
+  private class ListTask<T>(
+    private val items: List<T>,
+    private val from: Int,
+    private val to: Int,
+    private val shouldStop: () -> Boolean,
+    private val action: (T) -> Unit
+  ) : RecursiveAction() {
+
+    override fun compute() {
+      if (to - from > LIST_SPLIT_SIZE) {
+        val middle = (from + to) ushr 1
+        invokeAll(
+          ListTask(items, from, middle, shouldStop, action),
+          ListTask(items, middle, to, shouldStop, action)
+        )
+        return
+      }
+      for (i in from until to) {
+        if (shouldStop()) return
+        action(items[i])
+      }
+    }
+
+    companion object {
+      private const val LIST_SPLIT_SIZE = 16
+    }
+  }
+}
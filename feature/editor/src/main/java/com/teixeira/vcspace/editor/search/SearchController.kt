@@ -0,0 +1,325 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import io.github.rosemoe.sora.text.Content
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+import java.util.regex.PatternSyntaxException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Runs in-file searches in the background.
+ *
+ * Queries are debounced while the user types, and a new query cancels the search in progress.
+ * Each search runs on a snapshot of the text taken when it starts, and its matches are delivered
+ * to the [listener] on the main thread in batches, so the first ones show up before a large file
+ * is fully searched. Like the editor searcher, which highlights the matches, regexes are matched
+ * against the whole text, so they can span lines and `^`/`$` only anchor at its start and end.
+ * A regex stops as soon as its search is cancelled, even in the middle of a slow match.
+ *
+ * Replacing all the matches also runs on a snapshot, producing a single [Replacement] to apply.
+ */
+class SearchController(
+  private val snapshot: () -> Content,
+  private val listener: Listener
+) {
+
+  /** A match, which only spans lines with a regex. */
+  data class Match(val startLine: Int, val startColumn: Int, val endLine: Int, val endColumn: Int)
+
+  /**
+   * The text from the start of the first match to the end of the last one, with all the matches
+   * replaced.
+   */
+  class Replacement(
+    val startLine: Int,
+    val startColumn: Int,
+    val endLine: Int,
+    val endColumn: Int,
+    val text: String,
+    val count: Int
+  ) {
+    /**
+     * Applies the replacement as a single batch edit, so it is undone at once. Content listeners
+     * still receive two events for it, a delete of the replaced range and then an insert of the
+     * new text.
+     */
+    fun applyTo(content: Content) {
+      if (count == 0) return
+      content.beginBatchEdit()
+      try {
+        content.replace(startLine, startColumn, endLine, endColumn, text)
+      } finally {
+        content.endBatchEdit()
+      }
+    }
+  }
+
+  interface Listener {
+    /** Called after the debounce with a valid query, before the search starts. */
+    fun onSearchStarted(query: String, ignoreCase: Boolean, regex: Boolean)
+
+    /** Called with each batch of matches, [complete] is true for the last one. */
+    fun onMatches(matches: List<Match>, complete: Boolean)
+
+    /** Called instead of [onSearchStarted] when the query is not a valid regex. */
+    fun onInvalidQuery(error: PatternSyntaxException)
+  }
+
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
+  private var job: Job? = null
+  private var replaceJob: Job? = null
+
+  /** Searches [query] after the debounce delay, or just cancels the search if it is empty. */
+  fun search(query: String, ignoreCase: Boolean, regex: Boolean) {
+    job?.cancel()
+    if (query.isEmpty()) return
+
+    job = scope.launch {
+      delay(if (regex) REGEX_DEBOUNCE_DELAY else DEBOUNCE_DELAY)
+
+      val pattern = try {
+        if (regex) {
+          withContext(Dispatchers.Default) { createPattern(query, ignoreCase, regex = true) }
+        } else null
+      } catch (e: PatternSyntaxException) {
+        listener.onInvalidQuery(e)
+        return@launch
+      }
+
+      listener.onSearchStarted(query, ignoreCase, regex)
+      val text = snapshot()
+      withContext(Dispatchers.Default) {
+        val batch = ArrayList<Match>()
+        if (pattern != null) {
+          val positions = Positions(text)
+          val matcher = pattern.matcher(CancellableText(text.toString(), coroutineContext.job))
+          var count = 0
+          var nextCheckLine = BATCH_LINES
+          while (matcher.find()) {
+            if (++count % BATCH_MATCHES == 0) ensureActive()
+            // Empty matches are not shown
+            if (matcher.end() == matcher.start()) continue
+            val startColumn = positions.column(matcher.start())
+            val startLine = positions.line
+            val endColumn = positions.column(matcher.end())
+            if (positions.line >= nextCheckLine) {
+              ensureActive()
+              nextCheckLine = positions.line + BATCH_LINES
+            }
+            batch.add(Match(startLine, startColumn, positions.line, endColumn))
+            if (batch.size >= BATCH_MATCHES) publish(batch)
+          }
+        } else {
+          for (line in 0 until text.lineCount) {
+            if (line % BATCH_LINES == 0) ensureActive()
+            findLiteral(text.getLine(line), line, query, ignoreCase, batch)
+
+            val endOfBatch = (line + 1) % BATCH_LINES == 0
+            if (batch.size >= BATCH_MATCHES || (endOfBatch && batch.isNotEmpty())) publish(batch)
+          }
+        }
+        withContext(Dispatchers.Main) { listener.onMatches(batch, true) }
+      }
+    }
+  }
+
+  /** Delivers the matches found so far, and clears the [batch]. */
+  private suspend fun publish(batch: MutableList<Match>) {
+    val matches = batch.toList()
+    batch.clear()
+    withContext(Dispatchers.Main) { listener.onMatches(matches, false) }
+  }
+
+  /**
+   * Replaces all the matches of [query] in a snapshot of the text with [replacement], in a single
+   * pass in the background. A regex replacement may refer to groups, like [Matcher.replaceAll].
+   *
+   * [onReplaced] is called on the main thread with the result, or with null if the query or the
+   * replacement is not valid. The text may have changed meanwhile, which the caller must check.
+   */
+  fun replaceAll(
+    query: String,
+    ignoreCase: Boolean,
+    regex: Boolean,
+    replacement: String,
+    onReplaced: (Replacement?) -> Unit
+  ) {
+    replaceJob?.cancel()
+    if (query.isEmpty()) return
+
+    val text = snapshot()
+    replaceJob = scope.launch {
+      val result = try {
+        replaceAll(text, query, ignoreCase, regex, replacement)
+      } catch (e: IllegalArgumentException) {
+        // PatternSyntaxException, or a reference to a group that doesn't exist
+        null
+      } catch (e: IndexOutOfBoundsException) {
+        null
+      }
+      onReplaced(result)
+    }
+  }
+
+  private suspend fun replaceAll(
+    text: Content,
+    query: String,
+    ignoreCase: Boolean,
+    regex: Boolean,
+    replacement: String
+  ): Replacement = withContext(Dispatchers.Default) {
+    // Matched against the whole text like the search, the matches may span lines
+    val matcher = createPattern(query, ignoreCase, regex)
+      .matcher(CancellableText(text.toString(), coroutineContext.job))
+    val quoted = if (regex) replacement else Matcher.quoteReplacement(replacement)
+    // Matcher only appends to a StringBuilder since API 34
+    val out = StringBuffer()
+    var start = -1
+    var end = 0
+    var count = 0
+
+    var found = 0
+    while (matcher.find()) {
+      if (++found % BATCH_MATCHES == 0) ensureActive()
+      // Empty matches are not shown, so they are not replaced either
+      if (matcher.end() == matcher.start()) continue
+      if (start < 0) start = matcher.start()
+      matcher.appendReplacement(out, quoted)
+      end = matcher.end()
+      count++
+    }
+    if (count == 0) return@withContext Replacement(0, 0, 0, 0, "", 0)
+
+    val positions = Positions(text)
+    val startColumn = positions.column(start)
+    val startLine = positions.line
+    val endColumn = positions.column(end)
+    // The text before the first match was appended too
+    Replacement(startLine, startColumn, positions.line, endColumn, out.substring(start), count)
+  }
+
+  /** Cancels the current search, the listener won't be called until the next one. */
+  fun cancel() {
+    job?.cancel()
+    job = null
+  }
+
+  fun release() {
+    scope.cancel()
+  }
+
+  /**
+   * Converts offsets in the text of a [Content] to positions, moving forward from the previous
+   * offset, so converting the offsets of all the matches in order takes a single pass.
+   */
+  private class Positions(private val text: Content) {
+    var line = 0
+      private set
+    private var lineStart = 0
+
+    /**
+     * Moves to the line of [offset], which can't be before the previous offset, and returns the
+     * column of the offset in it.
+     */
+    fun column(offset: Int): Int {
+      while (line < text.lineCount - 1) {
+        val contentLine = text.getLine(line)
+        val next = lineStart + contentLine.length + contentLine.lineSeparator.content.length
+        if (offset < next) break
+        lineStart = next
+        line++
+      }
+      // Within a CRLF separator, the match ends with the line
+      return minOf(offset - lineStart, text.getLine(line).length)
+    }
+  }
+
+  /**
+   * The text given to a [Matcher], which checks [job] every [CHECK_INTERVAL] characters read. A
+   * single [Matcher.find] can take long on a large text, this stops it once the job is cancelled.
+   */
+  private class CancellableText(private val text: String, private val job: Job) : CharSequence {
+    private var reads = 0
+
+    override val length: Int
+      get() = text.length
+
+    override fun get(index: Int): Char {
+      if ((++reads and CHECK_INTERVAL - 1) == 0) job.ensureActive()
+      return text[index]
+    }
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence =
+      text.subSequence(startIndex, endIndex)
+
+    override fun toString() = text
+
+    companion object {
+      private const val CHECK_INTERVAL = 1 shl 16
+    }
+  }
+
+  companion object {
+    private fun findLiteral(
+      line: CharSequence,
+      lineIndex: Int,
+      query: String,
+      ignoreCase: Boolean,
+      out: MutableList<Match>
+    ) {
+      var index = 0
+      while (index <= line.length - query.length) {
+        if (regionMatches(line, index, query, ignoreCase)) {
+          out.add(Match(lineIndex, index, lineIndex, index + query.length))
+          index += query.length
+        } else index++
+      }
+    }
+
+    private fun regionMatches(
+      line: CharSequence,
+      offset: Int,
+      query: String,
+      ignoreCase: Boolean
+    ): Boolean {
+      for (i in query.indices) {
+        if (!line[offset + i].equals(query[i], ignoreCase)) return false
+      }
+      return true
+    }
+
+    private fun createPattern(query: String, ignoreCase: Boolean, regex: Boolean): Pattern {
+      val flags = if (ignoreCase) Pattern.CASE_INSENSITIVE or Pattern.UNICODE_CASE else 0
+      return Pattern.compile(if (regex) query else Pattern.quote(query), flags)
+    }
+
+    private const val DEBOUNCE_DELAY = 150L
+    private const val REGEX_DEBOUNCE_DELAY = 350L
+    private const val BATCH_LINES = 5000
+    private const val BATCH_MATCHES = 1000
+  }
+}
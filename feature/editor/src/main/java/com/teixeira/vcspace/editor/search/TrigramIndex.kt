@@ -0,0 +1,790 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import com.teixeira.vcspace.editor.io.BytePattern
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInput
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.BitSet
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Persistent trigram index of the text files of a workspace, used to narrow a search down to the
+ * files that may contain the query before they are read by [WorkspaceSearch].
+ *
+ * For each trigram of bytes, with ASCII letters folded to lower case, the index keeps the sorted
+ * ids of the files that contain it, so a literal query can only be in the files that contain all
+ * of its trigrams. Trigrams spanning a line break are left out, since queries are matched within
+ * a line.
+ *
+ * The index is written to a single file:
+ * - A header with the offsets of the sections.
+ * - The paths, relative to the root, with the modification time and size of each file.
+ * - The posting lists, as varints of the deltas between the file ids.
+ * - A table of (trigram, postings offset, count) sorted by trigram.
+ *
+ * The table and the postings are memory-mapped and searched in place, only the paths are loaded.
+ * Changes made after the index was written are kept in memory, with the trigrams of the changed
+ * files, until [compact] merges them into a new index file.
+ */
+class TrigramIndex private constructor(
+  private val indexFile: File,
+  val root: File,
+  val includeHidden: Boolean
+) : Closeable {
+
+  /** State of a file changed since the index was written, [trigrams] is null if it was deleted. */
+  private class Change(val lastModified: Long, val size: Long, val trigrams: IntArray?)
+
+  private val rootPath = root.absolutePath
+  private val rootPrefix = rootPath.trimEnd(File.separatorChar) + File.separator
+
+  private var paths = emptyArray<String>()
+  private var lastModified = LongArray(0)
+  private var sizes = LongArray(0)
+  private var ids = HashMap<String, Int>()
+  private var largeIds = EMPTY
+  private var table: ByteBuffer? = null
+  private var postings: ByteBuffer? = null
+  private var trigramCount = 0
+
+  private val changes = HashMap<String, Change>()
+
+  /** Whether the index has been loaded or built, and can be queried. */
+  @Volatile
+  var isReady = false
+    private set
+
+  /** Amount of changes kept in memory, see [compact]. */
+  val pendingChanges: Int
+    @Synchronized get() = changes.size
+
+  /**
+   * Returns the files that may contain [query], or null if the index can't tell, in which case
+   * the whole tree must be searched.
+   */
+  fun candidates(query: String, ignoreCase: Boolean, regex: Boolean): List<File>? {
+    if (regex || !isReady || query.contains('\n')) return null
+    if (ignoreCase && !BytePattern.canFoldCase(query)) return null
+    val trigrams = trigramsOf(query.toByteArray(Charsets.UTF_8)).takeIf { it.isNotEmpty() }
+      ?: return null
+
+    synchronized(this) {
+      val candidates = ArrayList<File>()
+      for (id in findBaseIds(trigrams)) {
+        val path = paths[id]
+        if (path !in changes) candidates.add(File(root, path))
+      }
+      for (id in largeIds) {
+        if (paths[id] !in changes) candidates.add(File(root, paths[id]))
+      }
+      for ((path, change) in changes) {
+        val changed = change.trigrams ?: continue
+        val large = change.size > MAX_INDEXED_FILE_SIZE
+        if (large || trigrams.all { changed.binarySearch(it) >= 0 }) {
+          candidates.add(File(root, path))
+        }
+      }
+      return candidates
+    }
+  }
+
+  /**
+   * Indexes the whole tree again, replacing the index file.
+   *
+   * @param onDirectory Called with each directory of the tree, from the worker threads.
+   */
+  fun build(isActive: () -> Boolean, onDirectory: ((File) -> Unit)? = null) {
+    val files = ConcurrentLinkedQueue<IndexedFile>()
+    FileWalker(includeHidden) { !isActive() }.walk(root, onDirectory) { file, attributes ->
+      val size = attributes.size()
+      if (isIndexable(file.name, size)) {
+        files.add(IndexedFile(relativePath(file), attributes.lastModifiedTime().toMillis(), size))
+      }
+    }
+    if (!isActive()) return
+
+    val entries = files.sortedBy { it.path }
+    val segments = SegmentWriter(indexFile.parentFile!!)
+    try {
+      val chunk = arrayOfNulls<IntArray>(BUILD_CHUNK_SIZE)
+      for (start in entries.indices step BUILD_CHUNK_SIZE) {
+        val end = minOf(start + BUILD_CHUNK_SIZE, entries.size)
+        FileWalker.forEach((start until end).toList(), { !isActive() }) { i ->
+          // Each file has its own slot, no synchronization needed
+          chunk[i - start] = readTrigrams(File(root, entries[i].path))
+        }
+        if (!isActive()) return
+        for (i in start until end) segments.add(i, chunk[i - start] ?: EMPTY)
+      }
+      writeIndex(entries, segments.finish())
+    } finally {
+      segments.delete()
+    }
+
+    synchronized(this) {
+      changes.clear()
+      load()
+    }
+  }
+
+  /**
+   * Compares the tree with the index by modification time and size, indexing the files changed
+   * since it was written, for instance while the app was not running.
+   */
+  fun refresh(isActive: () -> Boolean, onDirectory: ((File) -> Unit)? = null) {
+    val seen = HashSet<String>()
+    FileWalker(includeHidden) { !isActive() }.walk(root, onDirectory) { file, attributes ->
+      val size = attributes.size()
+      if (!isIndexable(file.name, size)) return@walk
+
+      val path = relativePath(file)
+      val modified = attributes.lastModifiedTime().toMillis()
+      val upToDate = synchronized(this) {
+        seen.add(path)
+        val change = changes[path]
+        if (change != null) {
+          change.trigrams != null && change.lastModified == modified && change.size == size
+        } else {
+          val id = ids[path]
+          id != null && lastModified[id] == modified && sizes[id] == size
+        }
+      }
+      if (!upToDate) putChange(path, modified, size, readTrigrams(file))
+    }
+    if (!isActive()) return
+
+    synchronized(this) {
+      for (path in paths) {
+        if (path !in seen && path !in changes) changes[path] = DELETED
+      }
+      changes.keys.filter { it !in seen }.forEach { changes[it] = DELETED }
+    }
+  }
+
+  /** Whether [file] is the root or under it, the other files are ignored. */
+  fun contains(file: File): Boolean {
+    val path = file.absolutePath
+    return path == rootPath || path.startsWith(rootPrefix)
+  }
+
+  /** Indexes [file] again, or all the files under it if it is a directory. */
+  fun update(file: File, onDirectory: ((File) -> Unit)? = null) {
+    if (!contains(file)) return
+    // Left out like the walks do, the files under a hidden directory are hidden too
+    if (!includeHidden && relativePath(file).split(File.separatorChar).any { it.startsWith('.') }) {
+      return
+    }
+
+    if (file.isDirectory) {
+      val prefix = directoryPrefix(file)
+      val seen = HashSet<String>()
+      FileWalker(includeHidden) { false }.walk(file, onDirectory) { child, attributes ->
+        val size = attributes.size()
+        if (!isIndexable(child.name, size)) return@walk
+        val path = relativePath(child)
+        synchronized(this) { seen.add(path) }
+        putChange(path, attributes.lastModifiedTime().toMillis(), size, readTrigrams(child))
+      }
+      removeWhere { it.startsWith(prefix) && it !in seen }
+    } else if (file.isFile && isIndexable(file.name, file.length())) {
+      putChange(relativePath(file), file.lastModified(), file.length(), readTrigrams(file))
+    } else {
+      remove(file)
+    }
+  }
+
+  /** Removes [file], or all the files under it if it was a directory. */
+  fun remove(file: File) {
+    if (!contains(file)) return
+    val path = relativePath(file)
+    synchronized(this) {
+      if (path in ids || path in changes) {
+        changes[path] = DELETED
+        return
+      }
+    }
+    // Not a known file, it may have been a directory
+    val prefix = directoryPrefix(file)
+    removeWhere { it.startsWith(prefix) }
+  }
+
+  /** Writes a new index file with the changes kept in memory. */
+  fun compact() {
+    val snapshot = synchronized(this) { HashMap(changes) }
+    if (snapshot.isEmpty()) return
+
+    // The files kept from the index keep their order, the changed ones are added after them
+    val entries = ArrayList<IndexedFile>()
+    val remap = IntArray(paths.size) { -1 }
+    for (id in paths.indices) {
+      if (paths[id] !in snapshot) {
+        remap[id] = entries.size
+        entries.add(IndexedFile(paths[id], lastModified[id], sizes[id]))
+      }
+    }
+
+    val segments = SegmentWriter(indexFile.parentFile!!)
+    try {
+      for ((path, change) in snapshot.entries.sortedBy { it.key }) {
+        val trigrams = change.trigrams ?: continue
+        segments.add(entries.size, trigrams)
+        entries.add(IndexedFile(path, change.lastModified, change.size))
+      }
+      val streams = listOf(BaseStream(table, postings, trigramCount, remap)) + segments.finish()
+      writeIndex(entries, streams)
+    } finally {
+      segments.delete()
+    }
+
+    synchronized(this) {
+      // Keep the changes made while the index was written
+      changes.entries.removeIf { snapshot[it.key] === it.value }
+      load()
+    }
+  }
+
+  override fun close() {
+    synchronized(this) {
+      isReady = false
+      table = null
+      postings = null
+    }
+  }
+
+  private fun isIndexable(name: String, size: Long): Boolean {
+    return size in 1..WorkspaceSearch.DEFAULT_MAX_FILE_SIZE && FileWalker.isTextFileName(name)
+  }
+
+  /** Path of [file] relative to the root, which it must [contains]. The root itself is empty. */
+  private fun relativePath(file: File): String {
+    val path = file.absolutePath
+    return if (path.startsWith(rootPrefix)) path.substring(rootPrefix.length) else ""
+  }
+
+  /** Prefix of the relative paths of the files under the directory [file]. */
+  private fun directoryPrefix(file: File): String {
+    val path = relativePath(file)
+    return if (path.isEmpty()) path else path + File.separator
+  }
+
+  private fun putChange(path: String, modified: Long, size: Long, trigrams: IntArray) {
+    synchronized(this) { changes[path] = Change(modified, size, trigrams) }
+  }
+
+  @Synchronized
+  private fun removeWhere(predicate: (String) -> Boolean) {
+    for (path in paths) {
+      if (predicate(path)) changes[path] = DELETED
+    }
+    for (path in changes.keys.toList()) {
+      if (predicate(path)) changes[path] = DELETED
+    }
+  }
+
+  /** Ids of the files of the index file that contain all the [trigrams]. */
+  private fun findBaseIds(trigrams: IntArray): IntArray {
+    val table = table ?: return EMPTY
+    val postings = postings ?: return EMPTY
+
+    val entries = trigrams.map { trigram ->
+      findTrigram(table, trigram).takeIf { it >= 0 } ?: return EMPTY
+    }.sortedBy { table.getInt(it * TABLE_ENTRY_SIZE + 8) }
+
+    var result = decodePostings(postings, table, entries[0])
+    for (i in 1 until entries.size) {
+      if (result.isEmpty()) break
+      result = intersect(result, decodePostings(postings, table, entries[i]))
+    }
+    return result
+  }
+
+  private fun findTrigram(table: ByteBuffer, trigram: Int): Int {
+    var low = 0
+    var high = trigramCount - 1
+    while (low <= high) {
+      val mid = (low + high) ushr 1
+      val value = table.getInt(mid * TABLE_ENTRY_SIZE)
+      when {
+        value < trigram -> low = mid + 1
+        value > trigram -> high = mid - 1
+        else -> return mid
+      }
+    }
+    return -1
+  }
+
+  /** Writes the index file through a temporary file that then replaces it. */
+  private fun writeIndex(entries: List<IndexedFile>, streams: List<PostingStream>) {
+    val tempFile = File(indexFile.parentFile, "${indexFile.name}.tmp")
+    val tableFile = File(indexFile.parentFile, "${indexFile.name}.table")
+    val pathsOffset: Int
+    val postingsOffset: Int
+    val tableOffset: Int
+    var count = 0
+
+    try {
+      val output = BufferedOutputStream(FileOutputStream(tempFile), WRITE_BUFFER_SIZE)
+      // size() counts the bytes written, and stops at Int.MAX_VALUE
+      DataOutputStream(output).use { out ->
+        out.write(ByteArray(HEADER_SIZE))
+        pathsOffset = out.size()
+        out.writeUTF(rootPath)
+        for (entry in entries) {
+          out.writeUTF(entry.path)
+          out.writeLong(entry.lastModified)
+          out.writeLong(entry.size)
+        }
+
+        postingsOffset = out.size()
+        val tableOutput = BufferedOutputStream(FileOutputStream(tableFile), WRITE_BUFFER_SIZE)
+        DataOutputStream(tableOutput).use { tableOut ->
+          val ids = IntList()
+          while (true) {
+            var trigram = Int.MAX_VALUE
+            for (stream in streams) {
+              if (stream.trigram in 0 until trigram) trigram = stream.trigram
+            }
+            if (trigram == Int.MAX_VALUE) break
+
+            ids.clear()
+            // Each stream holds a range of ids after the ones of the previous streams
+            for (stream in streams) {
+              if (stream.trigram == trigram) {
+                stream.readInto(ids)
+                stream.next()
+              }
+            }
+            if (ids.size == 0) continue
+
+            tableOut.writeInt(trigram)
+            tableOut.writeInt(out.size() - postingsOffset)
+            tableOut.writeInt(ids.size)
+            var previous = 0
+            for (i in 0 until ids.size) {
+              writeVarint(out, ids[i] - previous)
+              previous = ids[i]
+            }
+            count++
+          }
+        }
+
+        tableOffset = out.size()
+        FileInputStream(tableFile).use { it.copyTo(out, WRITE_BUFFER_SIZE) }
+        if (out.size() == Int.MAX_VALUE) throw IOException("Index too large to be mapped")
+      }
+
+      RandomAccessFile(tempFile, "rw").use { file ->
+        file.writeInt(MAGIC)
+        file.writeInt(VERSION)
+        file.writeInt(if (includeHidden) FLAG_INCLUDE_HIDDEN else 0)
+        file.writeInt(entries.size)
+        file.writeInt(count)
+        file.writeInt(pathsOffset)
+        file.writeInt(postingsOffset)
+        file.writeInt(tableOffset)
+        file.fd.sync()
+      }
+
+      // The current mapping stays valid after the file is replaced
+      if (!tempFile.renameTo(indexFile)) throw IOException("Failed to replace ${indexFile.path}")
+    } finally {
+      streams.forEach { it.close() }
+      tableFile.delete()
+      tempFile.delete()
+    }
+  }
+
+  /** Loads the index file, if it is valid. Must be called holding the lock. */
+  private fun load(): Boolean {
+    isReady = false
+    if (!indexFile.isFile || indexFile.length() < HEADER_SIZE) return false
+
+    try {
+      val buffer = RandomAccessFile(indexFile, "r").use {
+        it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+      }
+      val valid = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION &&
+        ((buffer.getInt(8) and FLAG_INCLUDE_HIDDEN) != 0) == includeHidden
+      if (!valid) return false
+
+      val fileCount = buffer.getInt(12)
+      val count = buffer.getInt(16)
+      val pathsOffset = buffer.getInt(20)
+      val postingsOffset = buffer.getInt(24)
+      val tableOffset = buffer.getInt(28)
+
+      val newPaths = arrayOfNulls<String>(fileCount)
+      val newModified = LongArray(fileCount)
+      val newSizes = LongArray(fileCount)
+      FileInputStream(indexFile).use { stream ->
+        stream.channel.position(pathsOffset.toLong())
+        val input = DataInputStream(BufferedInputStream(stream, WRITE_BUFFER_SIZE))
+        if (input.readUTF() != rootPath) return false
+        for (id in 0 until fileCount) {
+          newPaths[id] = input.readUTF()
+          newModified[id] = input.readLong()
+          newSizes[id] = input.readLong()
+        }
+      }
+
+      @Suppress("UNCHECKED_CAST")
+      paths = newPaths as Array<String>
+      lastModified = newModified
+      sizes = newSizes
+      ids = HashMap<String, Int>(fileCount * 2).apply { paths.forEachIndexed { i, p -> put(p, i) } }
+      largeIds = sizes.indices.filter { sizes[it] > MAX_INDEXED_FILE_SIZE }.toIntArray()
+      postings = slice(buffer, postingsOffset, tableOffset)
+      table = slice(buffer, tableOffset, tableOffset + count * TABLE_ENTRY_SIZE)
+      trigramCount = count
+      isReady = true
+      return true
+    } catch (e: IOException) {
+      e.printStackTrace()
+      return false
+    } catch (e: IndexOutOfBoundsException) {
+      e.printStackTrace()
+      return false
+    }
+  }
+
+  private data class IndexedFile(val path: String, val lastModified: Long, val size: Long)
+
+  /** Posting lists sorted by trigram, read one after the other. */
+  private abstract class PostingStream : Closeable {
+    /** Current trigram, or -1 once all were read. */
+    var trigram = -1
+      protected set
+
+    /** Appends the ascending file ids of the current trigram to [out]. */
+    abstract fun readInto(out: IntList)
+
+    /** Moves to the next trigram. */
+    abstract fun next()
+
+    override fun close() {}
+  }
+
+  /** Stream over the posting lists of the loaded index file, with the ids mapped by [remap]. */
+  private class BaseStream(
+    private val table: ByteBuffer?,
+    private val postings: ByteBuffer?,
+    private val count: Int,
+    private val remap: IntArray
+  ) : PostingStream() {
+
+    private var index = -1
+
+    init {
+      next()
+    }
+
+    override fun readInto(out: IntList) {
+      for (id in decodePostings(postings!!, table!!, index)) {
+        val newId = remap[id]
+        if (newId >= 0) out.add(newId)
+      }
+    }
+
+    override fun next() {
+      index++
+      trigram = if (table != null && index < count) table.getInt(index * TABLE_ENTRY_SIZE) else -1
+    }
+  }
+
+  /** Stream over a temporary segment written by [SegmentWriter]. */
+  private class SegmentStream(private val file: File) : PostingStream() {
+    private val input =
+      DataInputStream(BufferedInputStream(FileInputStream(file), WRITE_BUFFER_SIZE))
+    private var remaining = 0
+
+    init {
+      next()
+    }
+
+    override fun readInto(out: IntList) {
+      var id = 0
+      while (remaining > 0) {
+        id += readVarint(input)
+        out.add(id)
+        remaining--
+      }
+    }
+
+    override fun next() {
+      while (remaining > 0) {
+        readVarint(input)
+        remaining--
+      }
+      trigram = try {
+        input.readInt().also { remaining = readVarint(input) }
+      } catch (e: EOFException) {
+        -1
+      }
+    }
+
+    override fun close() {
+      input.close()
+    }
+  }
+
+  /**
+   * Groups the (trigram, file id) pairs of a range of files in memory and writes them to sorted
+   * temporary segments, to be merged into the index file, so the memory used by a build does not
+   * grow with the size of the tree. Files must be added in ascending id order.
+   */
+  private class SegmentWriter(private val dir: File) {
+    private val files = ArrayList<File>()
+    private var pairs = LongArray(INITIAL_PAIRS)
+    private var size = 0
+
+    fun add(id: Int, trigrams: IntArray) {
+      if (size + trigrams.size > pairs.size) {
+        if (size + trigrams.size > MAX_SEGMENT_PAIRS) flush()
+        if (size + trigrams.size > pairs.size) {
+          pairs = pairs.copyOf(maxOf(pairs.size * 2, size + trigrams.size))
+        }
+      }
+      for (trigram in trigrams) pairs[size++] = (trigram.toLong() shl 32) or id.toLong()
+    }
+
+    fun finish(): List<PostingStream> {
+      flush()
+      pairs = LongArray(0)
+      return files.map { SegmentStream(it) }
+    }
+
+    fun delete() {
+      files.forEach { it.delete() }
+    }
+
+    private fun flush() {
+      if (size == 0) return
+      pairs.sort(0, size)
+
+      val file = File(dir, "segment-${System.nanoTime()}-${files.size}.tmp")
+      files.add(file)
+      DataOutputStream(BufferedOutputStream(FileOutputStream(file), WRITE_BUFFER_SIZE)).use { out ->
+        var i = 0
+        while (i < size) {
+          val trigram = (pairs[i] ushr 32).toInt()
+          var end = i
+          while (end < size && (pairs[end] ushr 32).toInt() == trigram) end++
+
+          out.writeInt(trigram)
+          writeVarint(out, end - i)
+          var previous = 0
+          for (j in i until end) {
+            val id = pairs[j].toInt()
+            writeVarint(out, id - previous)
+            previous = id
+          }
+          i = end
+        }
+      }
+      size = 0
+    }
+  }
+
+  /** Growable list of ints, without boxing. */
+  private class IntList {
+    private var values = IntArray(64)
+    var size = 0
+      private set
+
+    operator fun get(index: Int) = values[index]
+
+    fun add(value: Int) {
+      if (size == values.size) values = values.copyOf(size * 2)
+      values[size++] = value
+    }
+
+    fun clear() {
+      size = 0
+    }
+  }
+
+  companion object {
+    /** Files larger than this are not indexed, and are always searched. */
+    const val MAX_INDEXED_FILE_SIZE = 1024L * 1024
+
+    private const val MAGIC = 0x56435354 // VCST
+    private const val VERSION = 1
+    private const val FLAG_INCLUDE_HIDDEN = 1
+    private const val HEADER_SIZE = 32
+    private const val TABLE_ENTRY_SIZE = 12
+
+    private const val BUILD_CHUNK_SIZE = 256
+    private const val INITIAL_PAIRS = 64 * 1024
+    private const val MAX_SEGMENT_PAIRS = 2 * 1024 * 1024
+    private const val WRITE_BUFFER_SIZE = 64 * 1024
+    private const val SNIFF_LENGTH = 8 * 1024
+
+    private val EMPTY = IntArray(0)
+    private val DELETED = Change(0L, 0L, null)
+
+    /** Opens the index of [root] stored in [indexDir], loading it if it exists and is valid. */
+    @JvmStatic
+    fun open(indexDir: File, root: File, includeHidden: Boolean): TrigramIndex {
+      indexDir.mkdirs()
+      val name = hash(root.absolutePath) + if (includeHidden) "-hidden.idx" else ".idx"
+      return TrigramIndex(File(indexDir, name), root, includeHidden).apply {
+        synchronized(this) { load() }
+      }
+    }
+
+    private fun hash(path: String): String {
+      val digest = MessageDigest.getInstance("MD5").digest(path.toByteArray())
+      return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * Reads the trigrams of [file], or returns an empty array if it looks binary. Files larger
+     * than [MAX_INDEXED_FILE_SIZE] are not read.
+     */
+    private fun readTrigrams(file: File): IntArray {
+      return try {
+        if (file.length() > MAX_INDEXED_FILE_SIZE) return EMPTY
+        val bytes = file.readBytes()
+        for (i in 0 until minOf(bytes.size, SNIFF_LENGTH)) {
+          if (bytes[i] == 0.toByte()) return EMPTY
+        }
+        trigramsOf(bytes)
+      } catch (e: IOException) {
+        EMPTY
+      }
+    }
+
+    /** Sorted, distinct trigrams of [bytes], leaving out the ones spanning a line break. */
+    private fun trigramsOf(bytes: ByteArray): IntArray {
+      if (bytes.size < 3) return EMPTY
+
+      val trigrams = IntArray(bytes.size - 2)
+      var count = 0
+      var trigram = 0
+      var lastBreak = -1
+      for (i in bytes.indices) {
+        val b = bytes[i]
+        if (b == LF || b == CR) lastBreak = i
+        trigram = ((trigram shl 8) or fold(b)) and 0xFFFFFF
+        if (i >= 2 && lastBreak < i - 2) trigrams[count++] = trigram
+      }
+      trigrams.sort(0, count)
+
+      var distinct = 0
+      for (i in 0 until count) {
+        if (distinct == 0 || trigrams[distinct - 1] != trigrams[i]) {
+          trigrams[distinct++] = trigrams[i]
+        }
+      }
+      return trigrams.copyOf(distinct)
+    }
+
+    private fun fold(b: Byte): Int {
+      val value = b.toInt() and 0xFF
+      return if (value in 'A'.code..'Z'.code) value + 32 else value
+    }
+
+    private fun decodePostings(postings: ByteBuffer, table: ByteBuffer, entry: Int): IntArray {
+      val offset = table.getInt(entry * TABLE_ENTRY_SIZE + 4)
+      val count = table.getInt(entry * TABLE_ENTRY_SIZE + 8)
+      val view = postings.duplicate()
+      view.position(offset)
+
+      val ids = IntArray(count)
+      var id = 0
+      for (i in 0 until count) {
+        id += readVarint(view)
+        ids[i] = id
+      }
+      return ids
+    }
+
+    private fun intersect(a: IntArray, b: IntArray): IntArray {
+      val result = IntArray(minOf(a.size, b.size))
+      var i = 0
+      var j = 0
+      var count = 0
+      while (i < a.size && j < b.size) {
+        when {
+          a[i] < b[j] -> i++
+          a[i] > b[j] -> j++
+          else -> {
+            result[count++] = a[i]
+            i++
+            j++
+          }
+        }
+      }
+      return result.copyOf(count)
+    }
+
+    private fun slice(buffer: ByteBuffer, start: Int, end: Int): ByteBuffer {
+      val view = buffer.duplicate()
+      view.limit(end)
+      view.position(start)
+      return view.slice()
+    }
+
+    private fun writeVarint(out: DataOutput, value: Int) {
+      var v = value
+      while ((v and 0x7F.inv()) != 0) {
+        out.writeByte((v and 0x7F) or 0x80)
+        v = v ushr 7
+      }
+      out.writeByte(v)
+    }
+
+    private fun readVarint(input: DataInput): Int {
+      var value = 0
+      var shift = 0
+      while (true) {
+        val b = input.readByte().toInt()
+        value = value or ((b and 0x7F) shl shift)
+        if ((b and 0x80) == 0) return value
+        shift += 7
+      }
+    }
+
+    private fun readVarint(buffer: ByteBuffer): Int {
+      var value = 0
+      var shift = 0
+      while (true) {
+        val b = buffer.get().toInt()
+        value = value or ((b and 0x7F) shl shift)
+        if ((b and 0x80) == 0) return value
+        shift += 7
+      }
+    }
+
+    private const val LF: Byte = 10
+    private const val CR: Byte = 13
+  }
+}
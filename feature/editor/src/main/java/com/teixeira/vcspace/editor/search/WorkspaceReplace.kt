@@ -0,0 +1,269 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import com.teixeira.vcspace.editor.io.ContentFileWriter
+import com.teixeira.vcspace.editor.io.TextFormatDetector
+import io.github.rosemoe.sora.text.Content
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.charset.CharacterCodingException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Applies the replacements carried by the matches of a [WorkspaceSearch].
+ *
+ * Files that are not open are streamed into a temporary file next to them, decoding only the
+ * lines with matches, so they are never loaded as a whole. All the temporary files are written
+ * first, in parallel, and they only replace the original files once every one of them has been
+ * written, so a failed write leaves all the files untouched. The files are then replaced one by
+ * one, which is not atomic: a file that can't be replaced is reported as failed, while the others
+ * are still changed. Files changed since they were searched, or that are not UTF-8, are skipped.
+ * The replaced files keep their permissions.
+ */
+object WorkspaceReplace {
+
+  data class Summary(
+    val filesChanged: Int,
+    val replacements: Int,
+    val bytesWritten: Long,
+    val skipped: List<File>,
+    val failed: List<File>,
+    val elapsedMillis: Long
+  ) {
+    /** Bytes written per second. */
+    val throughput: Double
+      get() = if (elapsedMillis > 0) bytesWritten * 1000.0 / elapsedMillis else 0.0
+  }
+
+  /**
+   * Replaces the [matches] in [content] as a single batch edit, so they are undone at once.
+   *
+   * @return The amount of replacements made.
+   */
+  @JvmStatic
+  fun replaceInContent(content: Content, matches: List<WorkspaceSearch.Match>): Int {
+    var count = 0
+    content.beginBatchEdit()
+    try {
+      // From the end, so the positions of the previous matches stay valid
+      for (match in matches.asReversed()) {
+        val replacement = match.replacement ?: continue
+        if (match.line >= content.lineCount) continue
+        if (match.endColumn > content.getColumnCount(match.line)) continue
+        content.replace(match.line, match.startColumn, match.line, match.endColumn, replacement)
+        count++
+      }
+    } finally {
+      content.endBatchEdit()
+    }
+    return count
+  }
+
+  /**
+   * Replaces the matches of the [results] in their files, blocking until all are written. No file
+   * is changed if [isActive] returns false or a file can't be written before the files start being
+   * replaced, see [WorkspaceReplace].
+   */
+  @JvmStatic
+  fun replaceInFiles(
+    results: List<WorkspaceSearch.FileResult>,
+    isActive: () -> Boolean
+  ): Summary {
+    val start = System.currentTimeMillis()
+    val written = ConcurrentLinkedQueue<Pair<File, File>>()
+    val skipped = ConcurrentLinkedQueue<File>()
+    val failed = ConcurrentLinkedQueue<File>()
+    val replacements = AtomicInteger()
+    val bytesWritten = AtomicLong()
+
+    FileWalker.forEach(results, { !isActive() || failed.isNotEmpty() }) { result ->
+      val file = result.file
+      if (file.lastModified() != result.lastModified || file.length() != result.length) {
+        skipped.add(file)
+        return@forEach
+      }
+      // The matches were found in the text decoded as UTF-8
+      if (TextFormatDetector.detect(file).charset != Charsets.UTF_8) {
+        skipped.add(file)
+        return@forEach
+      }
+
+      val tempFile = File(file.parentFile, ".${file.name}.replace.tmp")
+      try {
+        val (count, bytes) = rewrite(file, tempFile, result.matches)
+        written.add(file to tempFile)
+        replacements.addAndGet(count)
+        bytesWritten.addAndGet(bytes)
+      } catch (e: NotUtf8Exception) {
+        // Invalid after the part of the file sampled by the detector
+        tempFile.delete()
+        skipped.add(file)
+      } catch (e: IOException) {
+        e.printStackTrace()
+        tempFile.delete()
+        failed.add(file)
+      }
+    }
+
+    if (!isActive() || failed.isNotEmpty()) {
+      written.forEach { (_, tempFile) -> tempFile.delete() }
+      return Summary(0, 0, 0, skipped.toList(), failed.toList(), elapsed(start))
+    }
+
+    var changed = 0
+    for ((file, tempFile) in written) {
+      ContentFileWriter.copyPermissions(file.toPath(), tempFile.toPath())
+      if (tempFile.renameTo(file)) {
+        changed++
+      } else {
+        tempFile.delete()
+        failed.add(file)
+      }
+    }
+    return Summary(
+      filesChanged = changed,
+      replacements = replacements.get(),
+      bytesWritten = bytesWritten.get(),
+      skipped = skipped.toList(),
+      failed = failed.toList(),
+      elapsedMillis = elapsed(start)
+    )
+  }
+
+  private fun elapsed(start: Long) = System.currentTimeMillis() - start
+
+  /**
+   * Copies [file] into [tempFile] replacing the [matches], returning the amount of replacements
+   * and of bytes written.
+   */
+  private fun rewrite(
+    file: File,
+    tempFile: File,
+    matches: List<WorkspaceSearch.Match>
+  ): Pair<Int, Long> {
+    val byLine = matches.filter { it.replacement != null }.groupBy { it.line }
+    FileInputStream(file).use { input ->
+      val output = FileOutputStream(tempFile)
+      val rewriter = LineRewriter(BufferedOutputStream(output, BUFFER_SIZE), byLine)
+      rewriter.use {
+        val buffer = ByteArray(BUFFER_SIZE)
+        while (true) {
+          val read = input.read(buffer)
+          if (read < 0) break
+
+          var lineStart = 0
+          for (i in 0 until read) {
+            if (buffer[i] == LF) {
+              rewriter.write(buffer, lineStart, i + 1, endsLine = true)
+              lineStart = i + 1
+            }
+          }
+          if (lineStart < read) rewriter.write(buffer, lineStart, read, endsLine = false)
+        }
+        rewriter.finish()
+        rewriter.flush()
+        output.fd.sync()
+      }
+      return rewriter.replacements to rewriter.bytesWritten
+    }
+  }
+
+  /**
+   * Writes lines without matches as they are, and buffers the lines with matches to decode them,
+   * replace the matches and encode them back.
+   */
+  private class LineRewriter(
+    private val output: OutputStream,
+    private val byLine: Map<Int, List<WorkspaceSearch.Match>>
+  ) : AutoCloseable {
+
+    private val pending = ByteArrayOutputStream()
+    private var line = 0
+
+    var replacements = 0
+      private set
+    var bytesWritten = 0L
+      private set
+
+    fun write(bytes: ByteArray, from: Int, to: Int, endsLine: Boolean) {
+      if (line in byLine) {
+        pending.write(bytes, from, to - from)
+      } else {
+        output.write(bytes, from, to - from)
+        bytesWritten += to - from
+      }
+      if (endsLine) endLine()
+    }
+
+    /** Ends the last line, which has no line separator. */
+    fun finish() {
+      if (pending.size() > 0) endLine()
+    }
+
+    fun flush() = output.flush()
+
+    override fun close() = output.close()
+
+    private fun endLine() {
+      val first = line == 0
+      val matches = byLine[line++] ?: return
+      val bytes = pending.toByteArray()
+      pending.reset()
+
+      var end = bytes.size
+      if (end > 0 && bytes[end - 1] == LF) end--
+      if (end > 0 && bytes[end - 1] == CR) end--
+
+      val text = try {
+        Charsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes, 0, end)).toString()
+      } catch (e: CharacterCodingException) {
+        throw NotUtf8Exception(e)
+      }
+
+      // The columns of the search don't count the byte order mark
+      val bom = if (first && text.startsWith(BOM)) 1 else 0
+      val replaced = StringBuilder(text)
+      for (match in matches.asReversed()) {
+        if (match.startColumn > match.endColumn || match.endColumn + bom > text.length) {
+          throw IOException("The file doesn't match the search anymore")
+        }
+        replaced.replace(match.startColumn + bom, match.endColumn + bom, match.replacement!!)
+        replacements++
+      }
+
+      val encoded = replaced.toString().toByteArray(Charsets.UTF_8)
+      output.write(encoded)
+      output.write(bytes, end, bytes.size - end)
+      bytesWritten += encoded.size + bytes.size - end
+    }
+  }
+
+  private class NotUtf8Exception(cause: Throwable) : IOException("Not a UTF-8 file", cause)
+
+  private const val BUFFER_SIZE = 64 * 1024
+  private const val LF: Byte = 10
+  private const val CR: Byte = 13
+  private const val BOM = '\uFEFF'
+}
@@ -0,0 +1,454 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import com.teixeira.vcspace.editor.io.BytePattern
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Searches the text files of a directory tree.
+ *
+ * The tree is walked in parallel by a [FileWalker], or only the [Options.candidates] are searched
+ * when they are known. Files are skipped by name and then by content when they look binary. Plain
+ * queries are matched on the raw bytes with a [BytePattern], and the text is only decoded around
+ * the matches; regex queries are matched line by line on the decoded text. A UTF-8 byte order mark
+ * is not part of the text, so the columns match the files opened in the editor. The files open in
+ * the editor are searched in their text, see [Options.openFiles].
+ *
+ * When a [Options.replacement] is given each match also carries its replacement, expanding the
+ * group references (`$1`, `${name}`) of regex queries, to be applied by [WorkspaceReplace].
+ *
+ * @throws java.util.regex.PatternSyntaxException If the query is not a valid regex.
+ * @throws IllegalArgumentException If the replacement refers to a group that doesn't exist.
+ */
+class WorkspaceSearch(private val options: Options) {
+
+  data class Options(
+    val query: String,
+    val ignoreCase: Boolean = false,
+    val regex: Boolean = false,
+    val includeHidden: Boolean = false,
+    val maxHits: Int = DEFAULT_MAX_HITS,
+    val maxFileSize: Long = DEFAULT_MAX_FILE_SIZE,
+    /** Files that may contain the query, from an index, instead of walking the whole tree. */
+    val candidates: List<File>? = null,
+    val replacement: String? = null,
+    /**
+     * Text of the files open in the editor, searched instead of the files on disk so that their
+     * unsaved changes are found, and the columns match their text whatever their charset.
+     */
+    val openFiles: Map<File, String> = emptyMap()
+  )
+
+  /** A match within a line, [preview] is the text of the line, truncated if it is too long. */
+  data class Match(
+    val line: Int,
+    val startColumn: Int,
+    val endColumn: Int,
+    val preview: String,
+    val replacement: String? = null
+  )
+
+  /**
+   * Matches of a file, in order. [lastModified] and [length] are the state of the file when it
+   * was searched, the matches are only valid while it doesn't change. If [isOpen], the matches
+   * were found in the text from [Options.openFiles] and [length] is its length in chars.
+   */
+  data class FileResult(
+    val file: File,
+    val matches: List<Match>,
+    val lastModified: Long,
+    val length: Long,
+    val isOpen: Boolean = false
+  )
+
+  data class Summary(
+    val filesSearched: Int,
+    val filesMatched: Int,
+    val hits: Int,
+    val limitReached: Boolean,
+    val elapsedMillis: Long
+  )
+
+  private val bytePattern: BytePattern?
+  private val pattern: Pattern?
+  private val template: ReplacementTemplate?
+
+  init {
+    val literal = !options.regex && !options.query.contains('\n')
+    if (literal && (!options.ignoreCase || BytePattern.canFoldCase(options.query))) {
+      bytePattern = BytePattern(options.query.toByteArray(Charsets.UTF_8), options.ignoreCase)
+      pattern = null
+    } else {
+      var flags = if (options.ignoreCase) Pattern.CASE_INSENSITIVE or Pattern.UNICODE_CASE else 0
+      if (!options.regex) flags = flags or Pattern.LITERAL
+      bytePattern = null
+      pattern = Pattern.compile(options.query, flags)
+    }
+
+    val replacement = options.replacement
+    template = if (options.regex && replacement != null) {
+      ReplacementTemplate(replacement, pattern!!)
+    } else null
+  }
+
+  private val stopped = AtomicBoolean(false)
+  private val limitReached = AtomicBoolean(false)
+  private val hits = AtomicInteger()
+  private val filesSearched = AtomicInteger()
+  private val filesMatched = AtomicInteger()
+
+  private lateinit var isActive: () -> Boolean
+  private lateinit var onResult: (FileResult) -> Unit
+
+  /**
+   * Searches the files under [root], blocking until the whole tree is searched, [isActive]
+   * returns false or [Options.maxHits] matches are found.
+   *
+   * [onResult] is called from the worker threads, concurrently, with the matches of each file
+   * as soon as it is searched. A search can only be run once.
+   */
+  fun search(
+    root: File,
+    isActive: () -> Boolean,
+    onResult: (FileResult) -> Unit
+  ): Summary {
+    check(!::onResult.isInitialized) { "The search has already been run" }
+    this.isActive = isActive
+    this.onResult = onResult
+
+    val start = System.currentTimeMillis()
+    val candidates = options.candidates
+    val openFiles = options.openFiles
+    when {
+      options.query.isEmpty() -> {}
+
+      candidates != null -> FileWalker.forEach(candidates, ::shouldStop) { file ->
+        if (file !in openFiles && file.isFile && isCandidate(file.name, file.length())) {
+          searchFile(file)
+        }
+      }
+
+      else -> FileWalker(options.includeHidden, ::shouldStop).walk(root) { file, attributes ->
+        if (file !in openFiles && isCandidate(file.name, attributes.size())) searchFile(file)
+      }
+    }
+    // Not narrowed by the candidates, their text may differ from the files that were indexed
+    if (options.query.isNotEmpty()) {
+      val open = openFiles.entries.filter { (file, _) -> isInTree(root, file) }
+      FileWalker.forEach(open, ::shouldStop) { (file, text) -> searchText(file, text) }
+    }
+    return Summary(
+      filesSearched = filesSearched.get(),
+      filesMatched = filesMatched.get(),
+      hits = hits.get().coerceAtMost(options.maxHits),
+      limitReached = limitReached.get(),
+      elapsedMillis = System.currentTimeMillis() - start
+    )
+  }
+
+  private fun shouldStop(): Boolean {
+    if (!stopped.get() && !isActive()) stopped.set(true)
+    return stopped.get()
+  }
+
+  /** Whether the walk of [root] reaches [file], which is open. */
+  private fun isInTree(root: File, file: File): Boolean {
+    val prefix = root.path.trimEnd(File.separatorChar) + File.separator
+    if (!file.path.startsWith(prefix) || !FileWalker.isTextFileName(file.name)) return false
+    if (options.includeHidden) return true
+    return file.path.substring(prefix.length).split(File.separatorChar).none { it.startsWith('.') }
+  }
+
+  private fun isCandidate(name: String, size: Long): Boolean {
+    return size in 1..options.maxFileSize && FileWalker.isTextFileName(name)
+  }
+
+  private fun searchFile(file: File) {
+    val lastModified = file.lastModified()
+    val length = try {
+      read(file)
+    } catch (e: IOException) {
+      return
+    }
+    val bytes = buffer.get()!!
+    // Large files don't keep their buffer, each worker would hold up to maxFileSize otherwise
+    if (bytes.size > MAX_RETAINED_BUFFER_SIZE) buffer.set(ByteArray(INITIAL_BUFFER_SIZE))
+    filesSearched.incrementAndGet()
+    if (isBinary(bytes, length)) return
+
+    val start = if (hasBom(bytes, length)) UTF_8_BOM_SIZE else 0
+    val matches = ArrayList<Match>()
+    if (bytePattern != null) {
+      findLiteral(bytePattern, bytes, start, length, matches)
+    } else {
+      findPattern(pattern!!, String(bytes, start, length - start, Charsets.UTF_8), matches)
+    }
+
+    if (matches.isNotEmpty()) {
+      filesMatched.incrementAndGet()
+      onResult(FileResult(file, matches, lastModified, length.toLong()))
+    }
+  }
+
+  /** Searches the [text] of an open file. */
+  private fun searchText(file: File, text: String) {
+    filesSearched.incrementAndGet()
+    val matches = ArrayList<Match>()
+    if (bytePattern != null) {
+      val bytes = text.toByteArray(Charsets.UTF_8)
+      findLiteral(bytePattern, bytes, 0, bytes.size, matches)
+    } else {
+      findPattern(pattern!!, text, matches)
+    }
+
+    if (matches.isNotEmpty()) {
+      filesMatched.incrementAndGet()
+      onResult(FileResult(file, matches, file.lastModified(), text.length.toLong(), isOpen = true))
+    }
+  }
+
+  /** Reads [file] into the buffer of the current thread, returning its length. */
+  private fun read(file: File): Int {
+    FileInputStream(file).use { input ->
+      var bytes = buffer.get()!!
+      var length = 0
+      while (true) {
+        if (length == bytes.size) {
+          if (bytes.size >= options.maxFileSize) break
+          bytes = bytes.copyOf((bytes.size * 2L).coerceAtMost(options.maxFileSize).toInt())
+          buffer.set(bytes)
+        }
+        val read = input.read(bytes, length, bytes.size - length)
+        if (read < 0) break
+        length += read
+      }
+      return length
+    }
+  }
+
+  private fun hasBom(bytes: ByteArray, length: Int): Boolean {
+    return length >= UTF_8_BOM_SIZE && bytes[0] == 0xEF.toByte() && bytes[1] == 0xBB.toByte() &&
+      bytes[2] == 0xBF.toByte()
+  }
+
+  private fun isBinary(bytes: ByteArray, length: Int): Boolean {
+    for (i in 0 until minOf(length, SNIFF_LENGTH)) {
+      if (bytes[i] == NUL) return true
+    }
+    return false
+  }
+
+  /** Reserves a hit, returning false once the limit has been reached. */
+  private fun takeHit(): Boolean {
+    if (hits.incrementAndGet() <= options.maxHits) return true
+    limitReached.set(true)
+    stopped.set(true)
+    return false
+  }
+
+  private fun findLiteral(
+    pattern: BytePattern,
+    bytes: ByteArray,
+    start: Int,
+    length: Int,
+    out: MutableList<Match>
+  ) {
+    val buffer = ByteBuffer.wrap(bytes, 0, length)
+    var line = 0
+    var lineStart = start
+    var scanned = start
+    var preview: String? = null
+    var previewLine = -1
+    // Column of the previous match of the line and its byte offset, the next one counts from it
+    var column = 0
+    var columnOffset = start
+
+    var offset = pattern.indexOf(buffer, start, length)
+    while (offset >= 0) {
+      // Advance the line count up to the match
+      for (i in scanned until offset) {
+        if (bytes[i] == LF) {
+          line++
+          lineStart = i + 1
+        }
+      }
+      scanned = offset
+      if (columnOffset < lineStart) {
+        column = 0
+        columnOffset = lineStart
+      }
+
+      if (previewLine != line) {
+        preview = decodeLine(bytes, lineStart, length)
+        previewLine = line
+      }
+      if (!takeHit()) return
+
+      val startColumn = column + utf16Length(bytes, columnOffset, offset)
+      val endColumn = startColumn + utf16Length(bytes, offset, offset + pattern.size)
+      out.add(Match(line, startColumn, endColumn, preview!!, options.replacement))
+      column = endColumn
+      columnOffset = offset + pattern.size
+
+      offset = pattern.indexOf(buffer, offset + pattern.size, length)
+    }
+  }
+
+  private fun findPattern(pattern: Pattern, text: String, out: MutableList<Match>) {
+    val matcher = pattern.matcher(text)
+    var line = 0
+    var lineStart = 0
+    while (lineStart <= text.length) {
+      var lineEnd = text.indexOf('\n', lineStart)
+      val next = if (lineEnd < 0) text.length + 1 else lineEnd + 1
+      if (lineEnd < 0) lineEnd = text.length
+      if (lineEnd > lineStart && text[lineEnd - 1] == '\r') lineEnd--
+
+      matcher.region(lineStart, lineEnd)
+      var preview: String? = null
+      while (matcher.find()) {
+        // Empty matches are not shown
+        if (matcher.end() == matcher.start()) continue
+        if (!takeHit()) return
+        if (preview == null) preview = text.substring(lineStart, lineEnd).take(MAX_PREVIEW_LENGTH)
+        val replacement = template?.expand(matcher) ?: options.replacement
+        val start = matcher.start() - lineStart
+        out.add(Match(line, start, matcher.end() - lineStart, preview, replacement))
+      }
+
+      if (line % CHECK_LINES == 0 && shouldStop()) return
+      line++
+      lineStart = next
+    }
+  }
+
+  /** Length in UTF-16 chars of the UTF-8 text in `[start, end)`, without decoding it. */
+  private fun utf16Length(bytes: ByteArray, start: Int, end: Int): Int {
+    var count = 0
+    for (i in start until end) {
+      val byte = bytes[i].toInt()
+      // Continuation bytes add nothing, 4 byte sequences are surrogate pairs
+      if (byte and 0xC0 != 0x80) count += if (byte and 0xF8 == 0xF0) 2 else 1
+    }
+    return count
+  }
+
+  private fun decodeLine(bytes: ByteArray, start: Int, length: Int): String {
+    var end = start
+    val max = minOf(length, start + MAX_PREVIEW_LENGTH * 4)
+    while (end < max && bytes[end] != LF) end++
+    if (end > start && bytes[end - 1] == CR) end--
+    return String(bytes, start, end - start, Charsets.UTF_8).take(MAX_PREVIEW_LENGTH)
+  }
+
+  /**
+   * Replacement of regex matches, with `$n` and `${name}` group references and `\` escapes like
+   * [java.util.regex.Matcher.appendReplacement]. Parsed once, and checked against the groups of
+   * the [pattern] so that expanding it can't fail on the worker threads.
+   */
+  private class ReplacementTemplate(replacement: String, pattern: Pattern) {
+    private class NamedGroup(val name: String)
+
+    // Each part is a literal String, the Int index of a group or a NamedGroup
+    private val parts = ArrayList<Any>()
+
+    init {
+      val groupCount = pattern.matcher("").groupCount()
+      val literal = StringBuilder()
+      var i = 0
+      while (i < replacement.length) {
+        val c = replacement[i++]
+        when {
+          c == '\\' && i < replacement.length -> literal.append(replacement[i++])
+
+          c == '$' && i < replacement.length && replacement[i] == '{' -> {
+            val end = replacement.indexOf('}', i)
+            require(end > i + 1) { "Invalid group name reference" }
+            val name = replacement.substring(i + 1, end)
+            require(pattern.pattern().contains("(?<$name>")) { "No group with name {$name}" }
+            addLiteral(literal)
+            parts.add(NamedGroup(name))
+            i = end + 1
+          }
+
+          c == '$' && i < replacement.length && replacement[i].isDigit() -> {
+            var group = replacement[i++] - '0'
+            // Like Matcher, take more digits while they still refer to a group
+            while (i < replacement.length && replacement[i].isDigit()) {
+              val next = group * 10 + (replacement[i] - '0')
+              if (next > groupCount) break
+              group = next
+              i++
+            }
+            require(group <= groupCount) { "No group $group" }
+            addLiteral(literal)
+            parts.add(group)
+          }
+
+          c == '$' -> throw IllegalArgumentException("Illegal group reference")
+          else -> literal.append(c)
+        }
+      }
+      addLiteral(literal)
+    }
+
+    fun expand(matcher: Matcher): String {
+      if (parts.size == 1 && parts[0] is String) return parts[0] as String
+      return buildString {
+        for (part in parts) {
+          when (part) {
+            is Int -> append(matcher.group(part) ?: "")
+            is NamedGroup -> append(matcher.group(part.name) ?: "")
+            is String -> append(part)
+          }
+        }
+      }
+    }
+
+    private fun addLiteral(literal: StringBuilder) {
+      if (literal.isNotEmpty()) parts.add(literal.toString())
+      literal.setLength(0)
+    }
+  }
+
+  companion object {
+    const val DEFAULT_MAX_HITS = 10_000
+    const val DEFAULT_MAX_FILE_SIZE = 8L * 1024 * 1024
+
+    private const val SNIFF_LENGTH = 8 * 1024
+    private const val MAX_PREVIEW_LENGTH = 256
+    private const val CHECK_LINES = 1024
+    private const val INITIAL_BUFFER_SIZE = 64 * 1024
+    private const val MAX_RETAINED_BUFFER_SIZE = 1024 * 1024
+
+    private const val UTF_8_BOM_SIZE = 3
+
+    private const val NUL: Byte = 0
+    private const val LF: Byte = 10
+    private const val CR: Byte = 13
+
+    // Reused by each worker thread, most files fit in the initial size
+    private val buffer = ThreadLocal.withInitial { ByteArray(INITIAL_BUFFER_SIZE) }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.diff
+
+import io.github.rosemoe.sora.text.Content
+import kotlin.random.Random
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LineDiffTest {
+
+  @Test
+  fun equalTextsHaveNoHunks() {
+    assertTrue(LineDiff.compute(Content("a\nb\nc"), Content("a\nb\nc")).isEmpty())
+    assertTrue(LineDiff.compute(Content(""), Content("")).isEmpty())
+  }
+
+  @Test
+  fun changedLineIsASingleHunk() {
+    val hunks = LineDiff.compute(Content("a\nb\nc\nd"), Content("a\nB\nc\nd"))
+    assertEquals(listOf(LineDiff.Hunk(1, 2, 1, 2)), hunks)
+  }
+
+  @Test
+  fun insertionAndDeletionAreSeparateHunks() {
+    val hunks = LineDiff.compute(Content("a\nb\nc\nd\ne"), Content("a\nx\nb\nc\ne"))
+    assertEquals(listOf(LineDiff.Hunk(1, 1, 1, 2), LineDiff.Hunk(3, 4, 4, 4)), hunks)
+  }
+
+  @Test
+  fun lineSeparatorIsPartOfTheLine() {
+    assertEquals(1, LineDiff.compute(Content("a\nb\nc"), Content("a\r\nb\nc")).size)
+  }
+
+  @Test
+  fun appliesEdits() {
+    assertApplies("a\nb\nc", "a\nx\nb\nc")
+    assertApplies("a\nb\nc", "b\nc")
+    assertApplies("a\nb\nc", "a\nb")
+    assertApplies("a\nb\nc", "a\nb\nc\n")
+    assertApplies("a\nb\nc\n", "a\nb\nc")
+    assertApplies("a\nb\nc", "")
+    assertApplies("", "a\nb")
+    assertApplies("a\r\nb\r\nc", "a\nb\r\nd\r\nc")
+  }
+
+  @Test
+  fun appliesRandomEdits() {
+    val random = Random(42)
+    repeat(50) {
+      val old = List(random.nextInt(1, 60)) { "line ${random.nextInt(10)}" }
+      val new = old.toMutableList()
+      repeat(random.nextInt(1, 10)) {
+        when (random.nextInt(3)) {
+          0 -> new.add(random.nextInt(new.size + 1), "new ${random.nextInt(10)}")
+          1 -> if (new.isNotEmpty()) new.removeAt(random.nextInt(new.size))
+          else -> if (new.isNotEmpty()) new[random.nextInt(new.size)] = "changed"
+        }
+      }
+      assertApplies(old.joinToString("\n"), new.joinToString("\n"))
+    }
+  }
+
+  @Test
+  fun distantTextsFallBackToOneHunk() {
+    val count = LineDiff.MAX_EDIT_DISTANCE
+    val old = List(count) { "old $it" }.joinToString("\n", postfix = "\nend")
+    val new = List(count) { "new $it" }.joinToString("\n", postfix = "\nend")
+
+    val hunks = LineDiff.compute(Content(old), Content(new))
+    assertEquals(listOf(LineDiff.Hunk(0, count, 0, count)), hunks)
+    assertApplies(old, new)
+  }
+
+  private fun assertApplies(old: String, new: String) {
+    val target = Content(old)
+    val newContent = Content(new)
+    LineDiff.apply(target, newContent, LineDiff.compute(target, newContent))
+    assertEquals(new, target.toString())
+  }
+}
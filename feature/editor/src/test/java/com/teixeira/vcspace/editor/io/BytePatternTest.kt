@@ -0,0 +1,86 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.nio.ByteBuffer
+import kotlin.random.Random
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class BytePatternTest {
+
+  @Test
+  fun findsFirstOccurrence() {
+    val buffer = buffer("the cat sat on the mat")
+    assertEquals(4, BytePattern(bytes("cat")).indexOf(buffer, 0, buffer.limit()))
+    assertEquals(15, BytePattern(bytes("the")).indexOf(buffer, 1, buffer.limit()))
+    assertEquals(19, BytePattern(bytes("mat")).indexOf(buffer, 0, buffer.limit()))
+    assertEquals(-1, BytePattern(bytes("dog")).indexOf(buffer, 0, buffer.limit()))
+    assertEquals(0, buffer.position())
+  }
+
+  @Test
+  fun searchesWithinRange() {
+    val buffer = buffer("abcabc")
+    val pattern = BytePattern(bytes("abc"))
+    assertEquals(-1, pattern.indexOf(buffer, 1, 5))
+    assertEquals(3, pattern.indexOf(buffer, 1, 6))
+    assertEquals(-1, BytePattern(ByteArray(0)).indexOf(buffer, 0, 6))
+  }
+
+  @Test
+  fun ignoresAsciiCase() {
+    val buffer = buffer("Hello WORLD, hello world")
+    assertEquals(6, BytePattern(bytes("world"), ignoreCase = true).indexOf(buffer, 0, 24))
+    assertEquals(0, BytePattern(bytes("HELLO"), ignoreCase = true).indexOf(buffer, 0, 24))
+    assertEquals(19, BytePattern(bytes("world")).indexOf(buffer, 0, 24))
+    // Only letters are folded, '@' and '`' are next to 'A' and 'a'
+    assertEquals(-1, BytePattern(bytes("@"), ignoreCase = true).indexOf(buffer("`"), 0, 1))
+  }
+
+  @Test
+  fun matchesNaiveSearch() {
+    val random = Random(7)
+    repeat(500) {
+      val text = ByteArray(random.nextInt(0, 200)) { "abAB\n".random(random).code.toByte() }
+      val pattern = ByteArray(random.nextInt(1, 5)) { "abAB\n".random(random).code.toByte() }
+      val ignoreCase = random.nextBoolean()
+
+      val expected = naiveIndexOf(text, pattern, ignoreCase)
+      val actual = BytePattern(pattern, ignoreCase).indexOf(ByteBuffer.wrap(text), 0, text.size)
+      assertEquals(expected, actual)
+    }
+  }
+
+  @Test
+  fun foldsOnlyAsciiText() {
+    assertTrue(BytePattern.canFoldCase("Hello, World!"))
+    assertTrue(BytePattern.canFoldCase(""))
+    assertFalse(BytePattern.canFoldCase("Straße"))
+    assertFalse(BytePattern.canFoldCase("ÉCOLE"))
+  }
+
+  private fun naiveIndexOf(text: ByteArray, pattern: ByteArray, ignoreCase: Boolean): Int {
+    val haystack = String(text, Charsets.US_ASCII)
+    return haystack.indexOf(String(pattern, Charsets.US_ASCII), ignoreCase = ignoreCase)
+  }
+
+  private fun bytes(text: String) = text.toByteArray(Charsets.UTF_8)
+
+  private fun buffer(text: String): ByteBuffer = ByteBuffer.wrap(bytes(text))
+}
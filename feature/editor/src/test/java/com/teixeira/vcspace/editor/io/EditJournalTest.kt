@@ -0,0 +1,160 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import io.github.rosemoe.sora.text.Content
+import java.io.File
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class EditJournalTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private lateinit var journalDir: File
+  private lateinit var file: File
+
+  @Before
+  fun setUp() {
+    journalDir = folder.newFolder("journal")
+    file = folder.newFile("file.txt")
+  }
+
+  @Test
+  fun replaysRecordedEdits() {
+    val content = Content("one\ntwo\nthree")
+    EditJournal.open(journalDir, file).use { journal ->
+      journal.begin(BASE_MODIFIED, BASE_LENGTH)
+      insert(journal, content, 0, 3, " 1")
+      delete(journal, content, 1, 0, 2, 0)
+      insert(journal, content, 1, 5, "\nfour")
+    }
+
+    val restored = Content("one\ntwo\nthree")
+    EditJournal.open(journalDir, file).use { journal ->
+      assertTrue(journal.replay(restored, BASE_MODIFIED, BASE_LENGTH))
+    }
+    assertEquals("one 1\nthree\nfour", restored.toString())
+    assertEquals(content.toString(), restored.toString())
+  }
+
+  @Test
+  fun ignoresChangedFile() {
+    val content = Content("text")
+    EditJournal.open(journalDir, file).use { journal ->
+      journal.begin(BASE_MODIFIED, BASE_LENGTH)
+      insert(journal, content, 0, 4, "!")
+    }
+
+    val restored = Content("text")
+    EditJournal.open(journalDir, file).use { journal ->
+      assertFalse(journal.replay(restored, BASE_MODIFIED + 1, BASE_LENGTH))
+      assertFalse(journal.replay(restored, BASE_MODIFIED, BASE_LENGTH + 1))
+    }
+    assertEquals("text", restored.toString())
+  }
+
+  @Test
+  fun compactionKeepsLaterEdits() {
+    val content = Content("a\nb")
+    EditJournal.open(journalDir, file).use { journal ->
+      journal.begin(BASE_MODIFIED, BASE_LENGTH)
+      insert(journal, content, 0, 1, "x")
+      delete(journal, content, 0, 0, 0, 1)
+
+      val compaction = journal.startCompaction(content)
+      compaction.write()
+      // Recorded while the snapshot is written, it has to be kept after it
+      insert(journal, content, 1, 1, "y")
+      journal.finishCompaction(compaction)
+      assertTrue(journalDir.listFiles()!!.none { it.name.endsWith(".tmp") })
+
+      insert(journal, content, 0, 0, "z")
+    }
+
+    val restored = Content("a\nb")
+    EditJournal.open(journalDir, file).use { journal ->
+      assertTrue(journal.replay(restored, BASE_MODIFIED, BASE_LENGTH))
+    }
+    assertEquals("zx\nby", restored.toString())
+    assertEquals(content.toString(), restored.toString())
+  }
+
+  @Test
+  fun discardsCompactionOfEditedText() {
+    val content = Content("a")
+    EditJournal.open(journalDir, file).use { journal ->
+      journal.begin(BASE_MODIFIED, BASE_LENGTH)
+      insert(journal, content, 0, 1, "b")
+
+      val compaction = journal.startCompaction(content)
+      // Edited before the text is read, the snapshot would contain it twice
+      insert(journal, content, 0, 2, "c")
+      compaction.write()
+      journal.finishCompaction(compaction)
+    }
+
+    val restored = Content("a")
+    EditJournal.open(journalDir, file).use { journal ->
+      assertTrue(journal.replay(restored, BASE_MODIFIED, BASE_LENGTH))
+    }
+    assertEquals("abc", restored.toString())
+  }
+
+  @Test
+  fun discardsCompactionOfRestartedJournal() {
+    val content = Content("a")
+    EditJournal.open(journalDir, file).use { journal ->
+      journal.begin(BASE_MODIFIED, BASE_LENGTH)
+      insert(journal, content, 0, 1, "b")
+
+      val compaction = journal.startCompaction(content)
+      compaction.write()
+      // Saved in the meantime, the snapshot belongs to the previous state of the file
+      journal.begin(BASE_MODIFIED + 1, BASE_LENGTH + 1)
+      journal.finishCompaction(compaction)
+      assertFalse(journal.hasRecords)
+    }
+  }
+
+  private fun insert(journal: EditJournal, content: Content, line: Int, column: Int, text: String) {
+    content.insert(line, column, text)
+    journal.recordInsert(line, column, text)
+  }
+
+  private fun delete(
+    journal: EditJournal,
+    content: Content,
+    startLine: Int,
+    startColumn: Int,
+    endLine: Int,
+    endColumn: Int
+  ) {
+    content.delete(startLine, startColumn, endLine, endColumn)
+    journal.recordDelete(startLine, startColumn, endLine, endColumn)
+  }
+
+  companion object {
+    private const val BASE_MODIFIED = 1000L
+    private const val BASE_LENGTH = 3L
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import io.github.rosemoe.sora.text.LineSeparator
+import java.nio.charset.Charset
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class TextFormatDetectorTest {
+
+  @Test
+  fun detectsByteOrderMarks() {
+    assertFormat(Charsets.UTF_8, bytes(0xEF, 0xBB, 0xBF))
+    assertFormat(Charsets.UTF_16LE, bytes(0xFF, 0xFE))
+    assertFormat(Charsets.UTF_16BE, bytes(0xFE, 0xFF))
+    assertFormat(UTF_32LE, bytes(0xFF, 0xFE, 0, 0))
+    assertFormat(UTF_32BE, bytes(0, 0, 0xFE, 0xFF))
+  }
+
+  @Test
+  fun detectsUtf16WithoutMark() {
+    val text = "fun main() {\n  println(\"Hello\")\n}\n"
+    assertEquals(Charsets.UTF_16LE, detect(text.toByteArray(Charsets.UTF_16LE)).charset)
+    assertEquals(Charsets.UTF_16BE, detect(text.toByteArray(Charsets.UTF_16BE)).charset)
+  }
+
+  @Test
+  fun detectsUtf8() {
+    val format = detect("ação, 日本語, 😀\n".toByteArray(Charsets.UTF_8))
+    assertEquals(Charsets.UTF_8, format.charset)
+    assertEquals(0, format.bom.size)
+    assertEquals(Charsets.UTF_8, detect(ByteArray(0)).charset)
+  }
+
+  @Test
+  fun acceptsSequenceCutBySample() {
+    val bytes = "abc 日".toByteArray(Charsets.UTF_8)
+    assertEquals(Charsets.UTF_8, TextFormatDetector.detect(bytes, bytes.size - 1).charset)
+  }
+
+  @Test
+  fun fallsBackToLatin1() {
+    assertEquals(Charsets.ISO_8859_1, detect("ação\n".toByteArray(Charsets.ISO_8859_1)).charset)
+    // Overlong encoding of '/' and an encoded surrogate
+    assertEquals(Charsets.ISO_8859_1, detect(bytes(0x61, 0xC0, 0xAF)).charset)
+    assertEquals(Charsets.ISO_8859_1, detect(bytes(0x61, 0xED, 0xA0, 0x80, 0x61)).charset)
+  }
+
+  @Test
+  fun detectsLineSeparator() {
+    assertEquals(LineSeparator.LF, detect("a\nb\nc".toByteArray()).lineSeparator)
+    assertEquals(LineSeparator.CRLF, detect("a\r\nb\r\nc\n".toByteArray()).lineSeparator)
+    assertEquals(LineSeparator.CR, detect("a\rb\rc".toByteArray()).lineSeparator)
+    assertEquals(LineSeparator.LF, detect("no line break".toByteArray()).lineSeparator)
+
+    val utf16 = bytes(0xFF, 0xFE) + "a\r\nb\r\n".toByteArray(Charsets.UTF_16LE)
+    assertEquals(LineSeparator.CRLF, detect(utf16).lineSeparator)
+  }
+
+  private fun assertFormat(charset: Charset, bom: ByteArray) {
+    val format = detect(bom + "a\r\nb\r\n".toByteArray(charset))
+    assertEquals(charset, format.charset)
+    assertArrayEquals(bom, format.bom)
+    assertEquals(LineSeparator.CRLF, format.lineSeparator)
+  }
+
+  private fun detect(sample: ByteArray) = TextFormatDetector.detect(sample, sample.size)
+
+  private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+  companion object {
+    private val UTF_32LE = Charset.forName("UTF-32LE")
+    private val UTF_32BE = Charset.forName("UTF-32BE")
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.language
+
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.text.Content
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class TokenSnapshotTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private var version = "grammar-1"
+
+  @Test
+  fun readsWrittenSpans() {
+    val text = Content("a".repeat(20000) + "\nshort\n\nlast")
+    val lines = listOf(
+      spans(0 to 1L, 100 to 2L, 200 to 1L, 16500 to 0x1234_5678_9ABCL, 19999 to 2L),
+      spans(0 to -1L, 3 to Long.MAX_VALUE),
+      null,
+      spans(0 to 2L)
+    )
+
+    val snapshot = snapshot()
+    snapshot.write(text, lines)
+    val read = snapshot.read(text)
+
+    assertNotNull(read)
+    assertEquals(lines.map { it.orEmpty().map(::toPair) }, read!!.map { it.map(::toPair) })
+  }
+
+  @Test
+  fun ignoresSnapshotOfOtherText() {
+    val snapshot = snapshot()
+    snapshot.write(Content("val a = 1\n"), listOf(spans(0 to 1L), null))
+
+    assertNull(snapshot.read(Content("val b = 1\n")))
+    assertNull(snapshot.read(Content("val a = 1\r\n")))
+    assertNull(snapshot.read(Content("val a = 1\nval b = 2")))
+  }
+
+  @Test
+  fun ignoresSnapshotOfOtherVersion() {
+    val text = Content("val a = 1")
+    val snapshot = snapshot()
+    snapshot.write(text, listOf(spans(0 to 1L)))
+
+    version = "grammar-2"
+    assertNull(snapshot.read(text))
+  }
+
+  @Test
+  fun ignoresTruncatedSnapshot() {
+    val text = Content("val a = 1\nval b = 2")
+    val snapshot = snapshot()
+    snapshot.write(text, listOf(spans(0 to 1L, 4 to 2L), spans(0 to 1L, 4 to 2L)))
+
+    val file = folder.root.listFiles()!!.single()
+    file.writeBytes(file.readBytes().copyOf(file.length().toInt() - 3))
+    assertNull(snapshot.read(text))
+  }
+
+  @Test
+  fun deletesSnapshot() {
+    val text = Content("val a = 1")
+    val snapshot = snapshot()
+    snapshot.write(text, listOf(spans(0 to 1L)))
+    snapshot.delete()
+
+    assertNull(snapshot.read(text))
+    assertTrue(folder.root.listFiles()!!.isEmpty())
+  }
+
+  private fun snapshot(): TokenSnapshot {
+    return TokenSnapshot.forFile(folder.root, folder.root.resolve("Main.kt")) { version }
+  }
+
+  private fun spans(vararg spans: Pair<Int, Long>): List<Span> {
+    return spans.map { (column, style) -> Span.obtain(column, style) }
+  }
+
+  private fun toPair(span: Span) = span.column to span.style
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import java.io.File
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class TrigramIndexTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private lateinit var indexDir: File
+  private lateinit var root: File
+
+  @Before
+  fun setUp() {
+    indexDir = folder.newFolder("index")
+    root = folder.newFolder("root")
+
+    // Far apart ids, so the deltas of the posting lists take more than one varint byte
+    for (i in 0 until FILE_COUNT) {
+      val text = if (i in NEEDLE_FILES) "line $i\nfind the Needle here\n" else "line $i\n"
+      file(i).apply { parentFile!!.mkdirs() }.writeText(text)
+    }
+  }
+
+  @Test
+  fun findsCandidates() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      assertFalse(index.isReady)
+      index.build({ true })
+      assertTrue(index.isReady)
+
+      assertEquals(needleFiles(), candidates(index, "needle", ignoreCase = true))
+      // Trigrams are folded, the search checks the case of the candidates
+      assertEquals(needleFiles(), candidates(index, "Needle", ignoreCase = false))
+      assertEquals(setOf(file(300)), candidates(index, "line 300", ignoreCase = false))
+      assertEquals(FILE_COUNT, candidates(index, "line", ignoreCase = false).size)
+    }
+  }
+
+  @Test
+  fun cannotNarrowSomeQueries() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      index.build({ true })
+
+      assertNull(index.candidates("ne", ignoreCase = false, regex = false))
+      assertNull(index.candidates("Need.e", ignoreCase = false, regex = true))
+      assertNull(index.candidates("line\nfind", ignoreCase = false, regex = false))
+      assertNull(index.candidates("Ñeedle", ignoreCase = true, regex = false))
+    }
+  }
+
+  @Test
+  fun loadsWrittenIndex() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { it.build({ true }) }
+
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      assertTrue(index.isReady)
+      assertEquals(needleFiles(), candidates(index, "needle", ignoreCase = true))
+      assertEquals(setOf(file(599)), candidates(index, "line 599", ignoreCase = false))
+    }
+
+    // Indexes including hidden files are kept apart
+    TrigramIndex.open(indexDir, root, includeHidden = true).use { assertFalse(it.isReady) }
+  }
+
+  @Test
+  fun keepsChangesUntilCompacted() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      index.build({ true })
+
+      file(1).writeText("a Needle too\n")
+      index.update(file(1))
+      index.remove(file(0))
+      file(0).delete()
+      val added = File(root, "new/added.txt").apply { parentFile!!.mkdirs() }
+      added.writeText("one more needle\n")
+      index.update(added.parentFile!!)
+
+      val expected = needleFiles() - file(0) + file(1) + added
+      assertEquals(3, index.pendingChanges)
+      assertEquals(expected, candidates(index, "needle", ignoreCase = true))
+
+      index.compact()
+      assertEquals(0, index.pendingChanges)
+      assertEquals(expected, candidates(index, "needle", ignoreCase = true))
+    }
+
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      val expected = needleFiles() - file(0) + file(1) + File(root, "new/added.txt")
+      assertEquals(expected, candidates(index, "needle", ignoreCase = true))
+      assertEquals(emptySet<File>(), candidates(index, "line 0", ignoreCase = false))
+    }
+  }
+
+  @Test
+  fun updateSkipsHiddenFiles() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      index.build({ true })
+
+      val dotfile = File(root, ".env").apply { writeText("needle\n") }
+      val underHidden = File(root, ".git/config").apply { parentFile!!.mkdirs() }
+      underHidden.writeText("needle\n")
+      index.update(dotfile)
+      index.update(underHidden)
+      index.update(underHidden.parentFile!!)
+
+      assertEquals(0, index.pendingChanges)
+      assertEquals(needleFiles(), candidates(index, "needle", ignoreCase = true))
+    }
+
+    TrigramIndex.open(indexDir, root, includeHidden = true).use { index ->
+      index.build({ true })
+      index.update(File(root, ".env"))
+      assertTrue(File(root, ".env") in candidates(index, "needle", ignoreCase = true))
+    }
+  }
+
+  @Test
+  fun ignoresFilesOutsideRoot() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      index.build({ true })
+
+      val sibling = File(root.path + "2", "a.txt").apply { parentFile!!.mkdirs() }
+      sibling.writeText("needle\n")
+      index.update(sibling)
+      index.update(sibling.parentFile!!)
+      index.remove(File(root.path + "2", "dir0"))
+      index.remove(File(folder.root, "elsewhere"))
+
+      assertEquals(0, index.pendingChanges)
+      assertFalse(index.contains(sibling))
+      assertTrue(index.contains(root))
+      assertEquals(needleFiles(), candidates(index, "needle", ignoreCase = true))
+    }
+  }
+
+  @Test
+  fun refreshFindsChangesMadeWhileClosed() {
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { it.build({ true }) }
+
+    file(5).writeText("no longer here\n")
+    file(5).setLastModified(file(5).lastModified() + 2000)
+    file(2).writeText("needle\n")
+    file(2).setLastModified(file(2).lastModified() + 2000)
+
+    TrigramIndex.open(indexDir, root, includeHidden = false).use { index ->
+      index.refresh({ true })
+      val expected = needleFiles() - file(5) + file(2)
+      assertEquals(expected, candidates(index, "needle", ignoreCase = true))
+    }
+  }
+
+  private fun candidates(index: TrigramIndex, query: String, ignoreCase: Boolean): Set<File> {
+    return index.candidates(query, ignoreCase, regex = false)!!.toSet()
+  }
+
+  private fun needleFiles() = NEEDLE_FILES.map { file(it) }.toSet()
+
+  private fun file(i: Int) = File(root, "dir${i / 100}/file%03d.txt".format(i))
+
+  companion object {
+    private const val FILE_COUNT = 600
+    private val NEEDLE_FILES = listOf(0, 5, 300, 599)
+  }
+}
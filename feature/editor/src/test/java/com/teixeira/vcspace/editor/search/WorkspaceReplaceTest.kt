@@ -0,0 +1,105 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermission
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class WorkspaceReplaceTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private lateinit var root: File
+
+  @Before
+  fun setUp() {
+    root = folder.newFolder("root")
+  }
+
+  @Test
+  fun replacesLineAcrossBufferBoundary() {
+    // The second line starts just before the end of the first 64 KiB read
+    val filler = "a".repeat(64 * 1024 - 4)
+    val file = File(root, "large.txt").apply { writeText("$filler\nxx needle yy needle\nneedle\n") }
+
+    val summary = WorkspaceReplace.replaceInFiles(search("needle", "pin"), { true })
+    assertEquals(3, summary.replacements)
+    assertEquals("$filler\nxx pin yy pin\npin\n", file.readText())
+  }
+
+  @Test
+  fun keepsLineSeparators() {
+    val file = File(root, "crlf.txt").apply { writeText("one needle\r\ntwo\r\nneedle three") }
+
+    WorkspaceReplace.replaceInFiles(search("needle", "pin"), { true })
+    // The last line has no line separator and keeps having none
+    assertEquals("one pin\r\ntwo\r\npin three", file.readText())
+  }
+
+  @Test
+  fun skipsFilesChangedSinceSearched() {
+    val changed = File(root, "changed.txt").apply { writeText("needle\n") }
+    val kept = File(root, "kept.txt").apply { writeText("needle\n") }
+    val results = search("needle", "pin")
+
+    changed.writeText("needle moved\n")
+    changed.setLastModified(changed.lastModified() + 2000)
+
+    val summary = WorkspaceReplace.replaceInFiles(results, { true })
+    assertEquals(listOf(changed), summary.skipped)
+    assertEquals(1, summary.filesChanged)
+    assertEquals("needle moved\n", changed.readText())
+    assertEquals("pin\n", kept.readText())
+  }
+
+  @Test
+  fun keepsPermissions() {
+    val script = File(root, "run.sh").apply { writeText("echo needle\n") }
+    val permissions = Files.getPosixFilePermissions(script.toPath()) +
+      PosixFilePermission.OWNER_EXECUTE
+    Files.setPosixFilePermissions(script.toPath(), permissions)
+
+    WorkspaceReplace.replaceInFiles(search("needle", "pin"), { true })
+    assertEquals("echo pin\n", script.readText())
+    assertTrue(script.canExecute())
+  }
+
+  @Test
+  fun keepsByteOrderMark() {
+    val file = File(root, "bom.txt").apply { writeText("\uFEFFneedle and needle\nneedle\n") }
+
+    val summary = WorkspaceReplace.replaceInFiles(search("needle", "pin"), { true })
+    assertEquals(3, summary.replacements)
+    assertEquals("\uFEFFpin and pin\npin\n", file.readText())
+  }
+
+  private fun search(query: String, replacement: String): List<WorkspaceSearch.FileResult> {
+    val options = WorkspaceSearch.Options(query, replacement = replacement)
+    val results = ArrayList<WorkspaceSearch.FileResult>()
+    WorkspaceSearch(options).search(root, { true }) { result ->
+      synchronized(results) { results.add(result) }
+    }
+    return results
+  }
+}
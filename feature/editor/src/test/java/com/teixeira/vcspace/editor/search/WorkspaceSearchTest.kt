@@ -0,0 +1,131 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.search
+
+import java.io.File
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class WorkspaceSearchTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  @Test
+  fun expandsGroupReferences() {
+    val text = "key1=value1\nkey2=value2\n"
+    assertEquals(listOf("value1=key1", "value2=key2"), replace("(\\w+)=(\\w+)", "$2=$1", text))
+    assertEquals(listOf("[key1]", "[key2]"), replace("(?<k>\\w+)=\\w+", "[\${k}]", text))
+    assertEquals(listOf("key1=value1!", "key2=value2!"), replace("\\w+=\\w+", "$0!", text))
+  }
+
+  @Test
+  fun takesDigitsWhileTheyReferToAGroup() {
+    val groups = (1..10).joinToString("") { "(${('a' + it - 1)})" }
+    assertEquals(listOf("j"), replace(groups, "$10", "abcdefghij"))
+    assertEquals(listOf("a1"), replace("(a)(b)", "$11", "ab"))
+  }
+
+  @Test
+  fun escapesAndMissingGroups() {
+    assertEquals(listOf("$1 \\ x"), replace("(x)", "\\$1 \\\\ $1", "x"))
+    assertEquals(listOf("<>"), replace("a(b)?", "<$1>", "a"))
+  }
+
+  @Test
+  fun keepsPlainReplacementAsIs() {
+    assertEquals(listOf("$1"), replace("(x)", "$1", "(x)", regex = false))
+  }
+
+  @Test
+  fun skipsByteOrderMark() {
+    val text = "\uFEFFneedle and needle\nneedle\n"
+    for (regex in listOf(false, true)) {
+      val matches = search("needle", text, regex)
+      assertEquals(listOf(0 to 6, 11 to 17, 0 to 6), matches.map { it.startColumn to it.endColumn })
+      assertEquals("needle and needle", matches[0].preview)
+    }
+  }
+
+  @Test
+  fun searchesOpenFilesInTheirText() {
+    val root = folder.newFolder()
+    val open = File(root, "open.txt").apply { writeText("needle on disk\n") }
+    File(root, "closed.txt").writeText("needle\n")
+    File(folder.root, "outside.txt").writeText("needle\n")
+    val openFiles = mapOf(
+      open to "caf\u00e9 needle, unsaved\n",
+      File(folder.root, "outside.txt") to "needle\n"
+    )
+
+    for (regex in listOf(false, true)) {
+      val options = WorkspaceSearch.Options("needle", regex = regex, openFiles = openFiles)
+      val results = ArrayList<WorkspaceSearch.FileResult>()
+      WorkspaceSearch(options).search(root, { true }) { synchronized(results) { results.add(it) } }
+
+      val byName = results.associateBy { it.file.name }
+      assertEquals(setOf("open.txt", "closed.txt"), byName.keys)
+      assertEquals(true, byName.getValue("open.txt").isOpen)
+      assertEquals(false, byName.getValue("closed.txt").isOpen)
+      val match = byName.getValue("open.txt").matches.single()
+      assertEquals(5 to 11, match.startColumn to match.endColumn)
+      assertEquals("caf\u00e9 needle, unsaved", match.preview)
+    }
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun rejectsMissingGroup() {
+    WorkspaceSearch(WorkspaceSearch.Options("(a)", regex = true, replacement = "$2"))
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun rejectsMissingNamedGroup() {
+    WorkspaceSearch(WorkspaceSearch.Options("(?<a>a)", regex = true, replacement = "\${b}"))
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun rejectsDanglingDollar() {
+    WorkspaceSearch(WorkspaceSearch.Options("a", regex = true, replacement = "$"))
+  }
+
+  private fun replace(
+    query: String,
+    replacement: String,
+    text: String,
+    regex: Boolean = true
+  ): List<String?> {
+    return search(query, text, regex, replacement).map { it.replacement }
+  }
+
+  private fun search(
+    query: String,
+    text: String,
+    regex: Boolean,
+    replacement: String? = null
+  ): List<WorkspaceSearch.Match> {
+    val root = folder.newFolder()
+    File(root, "file.txt").writeText(text)
+
+    val options = WorkspaceSearch.Options(query, regex = regex, replacement = replacement)
+    val matches = ArrayList<WorkspaceSearch.Match>()
+    WorkspaceSearch(options).search(root, { true }) { result ->
+      synchronized(matches) { matches.addAll(result.matches) }
+    }
+    return matches
+  }
+}